@@ -0,0 +1,321 @@
+package com.logentries.jul;
+
+import java.util.logging.ErrorManager;
+import java.util.logging.Filter;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import com.logentries.net.AsyncLogger;
+import com.logentries.net.EventFormatter;
+import com.logentries.net.RoutingTable;
+
+/**
+ * Logentries handler for java.util.logging.
+ *
+ * <p>Records are sent straight to an {@link AsyncLogger}, without bridging
+ * through another logging framework. The handler is configured through the
+ * <code>logging.properties</code> of the {@link LogManager}:</p>
+ *
+ * <pre>
+ * handlers = com.logentries.jul.LogentriesHandler
+ * com.logentries.jul.LogentriesHandler.token = LOGENTRIES_TOKEN
+ * com.logentries.jul.LogentriesHandler.level = INFO
+ * com.logentries.jul.LogentriesHandler.lazy = true
+ * </pre>
+ *
+ * <p>Other properties are <code>formatter</code> (defaults to
+ * {@link SimpleFormatter}), <code>filter</code>, <code>ssl</code>, <code>verifyHostname</code>,
+ * <code>httpPut</code>, <code>key</code>, <code>location</code>,
+ * <code>keepAlive</code>, <code>idleTimeout</code>, <code>writeTimeout</code>,
+ * <code>endpoints</code>, <code>dnsTtl</code>, <code>maxEventSize</code>,
+ * <code>oversizePolicy</code>, <code>redact</code>, <code>slowEventThreshold</code>,
+ * <code>stagingDelay</code>, <code>debug</code> and <code>routes</code>.</p>
+ *
+ * <p>Records below the level are dropped before any string work. In lazy mode
+ * records are formatted by the sender thread; only the source class and
+ * method are resolved on the logging thread, so parameters must not change
+ * after they are logged.</p>
+ */
+public class LogentriesHandler extends Handler {
+
+	/*
+	 * Fields
+	 */
+	/** Asynchronous Background logger */
+	AsyncLogger le_async;
+	/** Routes to tokens other than the default one, null if not configured */
+	RoutingTable routes;
+	/** Lazy formatting flag */
+	boolean lazy;
+	/** Level value, read without locking */
+	private volatile int levelValue = Level.ALL.intValue();
+	/** Formats records on the sender thread */
+	private final EventFormatter<LogRecord> senderFormatter = new EventFormatter<LogRecord>() {
+		public String format( LogRecord record) {
+			return LogentriesHandler.this.format(record);
+		}
+	};
+
+	/**
+	 * Creates the handler configured from the {@link LogManager} properties.
+	 */
+	public LogentriesHandler()
+	{
+		this(new AsyncLogger());
+		// Take over the queue and connection of the handler replaced by a reset, in the same
+		// application: containers such as Tomcat create the handlers of each webapp with its class loader
+		le_async = AsyncLogger.share(Thread.currentThread().getContextClassLoader(), getClass().getName(), le_async);
+	}
+
+	/**
+	 * Creates the handler configured from the {@link LogManager} properties.
+	 * <p>Used for unit testing.</p>
+	 *
+	 * @param logger the {@link AsyncLogger} to dispatch records
+	 */
+	LogentriesHandler( AsyncLogger logger)
+	{
+		this.le_async = logger;
+		configure();
+	}
+
+	private void configure()
+	{
+		String prefix = getClass().getName();
+		LogManager manager = LogManager.getLogManager();
+
+		setLevel(parseLevel(manager.getProperty(prefix + ".level"), Level.ALL));
+		Formatter formatter = newInstance(manager.getProperty(prefix + ".formatter"), Formatter.class);
+		setFormatter(formatter != null ? formatter : new SimpleFormatter());
+		Filter filter = newInstance(manager.getProperty(prefix + ".filter"), Filter.class);
+		if (filter != null)
+			setFilter(filter);
+
+		le_async.setDebug(Boolean.parseBoolean(manager.getProperty(prefix + ".debug")));
+		String token = manager.getProperty(prefix + ".token");
+		if (token != null)
+			le_async.setToken(token.trim());
+		le_async.setHttpPut(Boolean.parseBoolean(manager.getProperty(prefix + ".httpPut")));
+		String key = manager.getProperty(prefix + ".key");
+		if (key != null)
+			le_async.setKey(key.trim());
+		String location = manager.getProperty(prefix + ".location");
+		if (location != null)
+			le_async.setLocation(location.trim());
+		le_async.setSsl(Boolean.parseBoolean(manager.getProperty(prefix + ".ssl")));
+		le_async.setKeepAlive(Boolean.parseBoolean(manager.getProperty(prefix + ".keepAlive")));
+		le_async.setVerifyHostname(!"false".equalsIgnoreCase(manager.getProperty(prefix + ".verifyHostname")));
+		le_async.setIdleTimeout(parseInt(manager.getProperty(prefix + ".idleTimeout")));
+		le_async.setWriteTimeout(parseInt(manager.getProperty(prefix + ".writeTimeout")));
+		le_async.setEndpoints(manager.getProperty(prefix + ".endpoints"));
+		le_async.setMaxEventSize(parseInt(manager.getProperty(prefix + ".maxEventSize")));
+		le_async.setOversizePolicy(manager.getProperty(prefix + ".oversizePolicy"));
+		le_async.setRedact(manager.getProperty(prefix + ".redact"));
+		le_async.setSlowEventThreshold(parseInt(manager.getProperty(prefix + ".slowEventThreshold")));
+		le_async.setStagingDelay(parseInt(manager.getProperty(prefix + ".stagingDelay")));
+		String dnsTtl = manager.getProperty(prefix + ".dnsTtl");
+		if (dnsTtl != null)
+			le_async.setDnsTtl(parseInt(dnsTtl));
+
+		lazy = Boolean.parseBoolean(manager.getProperty(prefix + ".lazy"));
+		setRoutes(manager.getProperty(prefix + ".routes"));
+	}
+
+	/**
+	 * Sets the routing table, see {@link RoutingTable} for the syntax. JUL
+	 * levels map to SEVERE = ERROR, WARNING = WARN, INFO and CONFIG = INFO,
+	 * FINE = DEBUG and lower = TRACE.
+	 *
+	 * @param routes routing specification
+	 */
+	public void setRoutes( String routes)
+	{
+		RoutingTable table = RoutingTable.parse(routes);
+		this.routes = table.isEmpty() ? null : table;
+	}
+
+	/**
+	 * Sets the lazy formatting flag. When set, records are formatted by the
+	 * sender thread.
+	 *
+	 * @param lazy lazy formatting flag
+	 */
+	public void setLazy( boolean lazy)
+	{
+		this.lazy = lazy;
+	}
+
+	@Override
+	public synchronized void setLevel( Level newLevel)
+	{
+		super.setLevel(newLevel);
+		levelValue = newLevel.intValue();
+	}
+
+	/**
+	 * Queues the record if it passes the level and filter.
+	 *
+	 * @param record record to log
+	 */
+	@Override
+	public void publish( LogRecord record)
+	{
+		// Cheap checks first, nothing is rendered for dropped records
+		if (record == null)
+			return;
+		int value = levelValue;
+		if (record.getLevel().intValue() < value || value == Level.OFF.intValue())
+			return;
+		Filter filter = getFilter();
+		if (filter != null && !filter.isLoggable(record))
+			return;
+
+		String token = null;
+		if (routes != null)
+			token = routes.route(record.getLoggerName(), toLevel(record.getLevel()), null);
+
+		if (lazy)
+		{
+			// The caller can only be inferred on the logging thread
+			record.getSourceClassName();
+			le_async.addEventToQueue(record, senderFormatter, token);
+		}
+		else
+		{
+			String line = format(record);
+			if (line != null)
+				le_async.addLineToQueue(line, token);
+		}
+	}
+
+	/**
+	 * Formats the record without its trailing line break.
+	 *
+	 * @return rendered record, null if the formatter failed
+	 */
+	String format( LogRecord record)
+	{
+		String line;
+		try
+		{
+			line = getFormatter().format(record);
+		}
+		catch (Exception e)
+		{
+			reportError(null, e, ErrorManager.FORMAT_FAILURE);
+			return null;
+		}
+
+		int end = line.length();
+		if (end > 0 && line.charAt(end - 1) == '\n')
+		{
+			end--;
+			if (end > 0 && line.charAt(end - 1) == '\r')
+				end--;
+			line = line.substring(0, end);
+		}
+		return line;
+	}
+
+	/**
+	 * Nothing to flush, records are sent by the asynchronous logger.
+	 */
+	@Override
+	public void flush()
+	{
+	}
+
+	/**
+	 * Closes all connections to Logentries, once no handler replacing this
+	 * one uses them.
+	 */
+	@Override
+	public void close()
+	{
+		AsyncLogger.release(this.le_async);
+	}
+
+	/**
+	 * Maps a JUL level to the integer scale of log4j and logback used by
+	 * {@link RoutingTable}.
+	 */
+	static int toLevel( Level level)
+	{
+		int value = level.intValue();
+		if (value >= Level.SEVERE.intValue())
+			return 40000;
+		if (value >= Level.WARNING.intValue())
+			return 30000;
+		if (value >= Level.CONFIG.intValue())
+			return 20000;
+		if (value >= Level.FINE.intValue())
+			return 10000;
+		return 5000;
+	}
+
+	private static Level parseLevel( String name, Level defaultLevel)
+	{
+		if (name == null)
+			return defaultLevel;
+		try
+		{
+			return Level.parse(name.trim());
+		}
+		catch (IllegalArgumentException e)
+		{
+			return defaultLevel;
+		}
+	}
+
+	private static int parseInt( String value)
+	{
+		if (value == null)
+			return 0;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Creates an instance of the configured class, loaded through the
+	 * context class loader, then the system one as {@link LogManager} does.
+	 *
+	 * @return the instance, null if not configured or on failure, which is reported
+	 */
+	private <T> T newInstance( String className, Class<T> type)
+	{
+		if (className == null)
+			return null;
+		className = className.trim();
+		try
+		{
+			Class<?> c;
+			try
+			{
+				ClassLoader loader = Thread.currentThread().getContextClassLoader();
+				if (loader == null)
+					throw new ClassNotFoundException(className);
+				c = loader.loadClass(className);
+			}
+			catch (ClassNotFoundException e)
+			{
+				c = ClassLoader.getSystemClassLoader().loadClass(className);
+			}
+			return type.cast(c.getDeclaredConstructor().newInstance());
+		}
+		catch (Exception e)
+		{
+			reportError("Cannot create " + type.getSimpleName() + " " + className, e, ErrorManager.OPEN_FAILURE);
+			return null;
+		}
+	}
+}
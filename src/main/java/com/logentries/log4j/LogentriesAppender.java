@@ -1,9 +1,19 @@
 package com.logentries.log4j;
 
+import java.util.Iterator;
+import java.util.Map;
+
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Category;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.spi.LoggerRepository;
 import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.apache.log4j.spi.ThrowableRendererSupport;
 
 import com.logentries.net.AsyncLogger;
+import com.logentries.net.JsonWriter;
+import com.logentries.net.RoutingTable;
 
 /**
  * Logentries appender for log4j.
@@ -18,6 +28,18 @@ public class LogentriesAppender extends AppenderSkeleton {
 	 */
 	/** Asynchronous Background logger */
 	AsyncLogger le_async;
+	/** Routes to tokens other than the default one, null if not configured */
+	RoutingTable routes;
+	/** JSON event format flag */
+	boolean json;
+	/** Reusable writer for the JSON format, guarded by the appender lock */
+	final JsonWriter jsonWriter = new JsonWriter(new StringBuilder(256));
+	/** Stack trace renderer */
+	final ThrowableFormatter throwableFormatter = new ThrowableFormatter();
+	/** Reusable buffer for events with stack traces, guarded by the appender lock */
+	StringBuilder line = new StringBuilder(256);
+	/** Largest buffer kept between events, bigger ones are dropped after use */
+	private static final int MAX_RETAINED = 64 * 1024;
 
 	public LogentriesAppender()
 	{
@@ -84,6 +106,175 @@ public class LogentriesAppender extends AppenderSkeleton {
 		this.le_async.setDebug(debug);
 	}
 	
+	/**
+	 * Sets the TCP keepalive flag
+	 *
+	 * @param keepAlive
+	 */
+	public void setKeepAlive( boolean keepAlive)
+	{
+		this.le_async.setKeepAlive(keepAlive);
+	}
+
+	/**
+	 * Sets whether the TLS certificate must match the endpoint host name,
+	 * true by default. Turn it off for endpoints given by IP address.
+	 *
+	 * @param verify host name check flag
+	 */
+	public void setVerifyHostname( boolean verify)
+	{
+		this.le_async.setVerifyHostname(verify);
+	}
+
+	/**
+	 * Sets the number of idle seconds after which the connection is reopened
+	 * before sending, 0 (the default) keeps it forever.
+	 *
+	 * @param seconds idle timeout
+	 */
+	public void setIdleTimeout( int seconds)
+	{
+		this.le_async.setIdleTimeout(seconds);
+	}
+
+	/**
+	 * Sets the number of seconds after which a blocked write is aborted and
+	 * the connection reopened, 0 (the default) waits forever.
+	 *
+	 * @param seconds write timeout
+	 */
+	public void setWriteTimeout( int seconds)
+	{
+		this.le_async.setWriteTimeout(seconds);
+	}
+
+	/**
+	 * Sets the endpoints to connect to instead of the Logentries API server,
+	 * in order of preference, for instance "localhost:10000, api.logentries.com:10000".
+	 *
+	 * @param endpoints endpoint list
+	 */
+	public void setEndpoints( String endpoints)
+	{
+		this.le_async.setEndpoints(endpoints);
+	}
+
+	/**
+	 * Sets the number of seconds resolved addresses are cached.
+	 *
+	 * @param seconds cache time
+	 */
+	public void setDnsTtl( int seconds)
+	{
+		this.le_async.setDnsTtl(seconds);
+	}
+
+	/**
+	 * Sets the largest event size in bytes, 0 (the default) for no limit.
+	 *
+	 * @param bytes size limit
+	 */
+	public void setMaxEventSize( int bytes)
+	{
+		this.le_async.setMaxEventSize(bytes);
+	}
+
+	/**
+	 * Sets what happens to larger events, "truncate" (the default) or "split"
+	 * into several events.
+	 *
+	 * @param policy oversize policy
+	 */
+	public void setOversizePolicy( String policy)
+	{
+		this.le_async.setOversizePolicy(policy);
+	}
+
+	/**
+	 * Sets the redaction rules, for instance "card, email, key:password".
+	 * See {@link com.logentries.net.Redactor} for the syntax.
+	 *
+	 * @param rules comma separated redaction rules
+	 */
+	public void setRedact( String rules)
+	{
+		this.le_async.setRedact(rules);
+	}
+
+	/**
+	 * Sets the delivery time above which events are reported as slow, see
+	 * {@link AsyncLogger#setSlowEventThreshold(int)}.
+	 *
+	 * @param millis threshold in milliseconds, 0 for none
+	 */
+	public void setSlowEventThreshold( int millis)
+	{
+		this.le_async.setSlowEventThreshold(millis);
+	}
+
+	/**
+	 * Sets how long events may be staged by the logging thread before they
+	 * are queued, see {@link AsyncLogger#setStagingDelay(int)}.
+	 *
+	 * @param millis staging delay in milliseconds, 0 to queue events at once
+	 */
+	public void setStagingDelay( int millis)
+	{
+		this.le_async.setStagingDelay(millis);
+	}
+
+	/**
+	 * Sets the routing table, see {@link RoutingTable} for the syntax. Events
+	 * not matched by any route go to the default token.
+	 *
+	 * @param routes routing specification
+	 */
+	public void setRoutes( String routes)
+	{
+		RoutingTable table = RoutingTable.parse(routes);
+		this.routes = table.isEmpty() ? null : table;
+	}
+
+	/**
+	 * Sets the event format, "text" (default) renders events with the layout,
+	 * "json" writes timestamp, level, logger, thread, message, MDC and
+	 * exception as a single JSON object.
+	 *
+	 * @param format "text" or "json"
+	 */
+	public void setFormat( String format)
+	{
+		if (format == null || "text".equalsIgnoreCase(format.trim()))
+			json = false;
+		else if ("json".equalsIgnoreCase(format.trim()))
+			json = true;
+		else
+			throw new IllegalArgumentException("Unknown format " + format + ", expected text or json");
+	}
+
+	/**
+	 * Sets the maximum number of stack frames sent per throwable, 0 (the
+	 * default) sends all of them.
+	 *
+	 * @param maxFrames frame limit
+	 */
+	public void setMaxFrames( int maxFrames)
+	{
+		this.throwableFormatter.setMaxFrames(maxFrames);
+	}
+
+	/**
+	 * Sets the packages whose stack frames are skipped, separated by commas,
+	 * for instance "sun.reflect, java.lang.reflect, com.sun.proxy".
+	 *
+	 * @param packages class name prefixes to filter
+	 */
+	public void setFrameFilter( String packages)
+	{
+		this.throwableFormatter.setFrameFilter(packages);
+	}
+
 	/**
 	 * Implements AppenderSkeleton Append method, handles time and format
 	 * 
@@ -92,37 +283,150 @@ public class LogentriesAppender extends AppenderSkeleton {
 	@Override
 	protected void append( LoggingEvent event) {
 
-		// Render the event according to layout
-		String formattedEvent = layout.format( event);
+		String formattedEvent;
+		if (json)
+		{
+			formattedEvent = formatJson(event);
+		}
+		else
+		{
+			// Render the event according to layout
+			formattedEvent = layout.format( event);
+
+			// Append stack trace if present
+			ThrowableInformation info = event.getThrowableInformation();
+			if (info != null)
+				formattedEvent = appendThrowable(formattedEvent, info.getThrowable(), event);
+		}
+
+		// Pick the destination token
+		String token = null;
+		if (routes != null)
+			token = routes.route(event.getLoggerName(), event.getLevel().toInt(),
+					routes.usesMdc() ? properties(event) : null);
+
+		// Prepare to be queued
+		this.le_async.addLineToQueue(formattedEvent, token);
+	}
+
+	/**
+	 * Returns the MDC of the event. log4j 1.2 predates generics, its keys are
+	 * always strings.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, ?> properties( LoggingEvent event)
+	{
+		return event.getProperties();
+	}
+
+	/**
+	 * Appends the stack trace to the rendered event in a single pre-sized
+	 * buffer
+	 */
+	String appendThrowable( String rendered, Throwable t, LoggingEvent event)
+	{
+		StringBuilder b = line;
+		b.setLength(0);
+		if (t != null && !hasThrowableRenderer(event))
+		{
+			b.ensureCapacity(rendered.length() + 2 + throwableFormatter.estimateSize(t));
+			b.append(rendered).append(", ");
+			throwableFormatter.format(t, b);
+		}
+		else
+		{
+			// No throwable at hand or a custom renderer configured, use its lines
+			b.append(rendered).append(", ");
+			String[] stack = event.getThrowableStrRep();
+			if (stack != null)
+				ThrowableFormatter.formatLines(stack, b);
+		}
+
+		String formatted = b.toString();
+		if (b.capacity() > MAX_RETAINED)
+			line = new StringBuilder(256);
+		return formatted;
+	}
+
+	/**
+	 * Returns true if the repository of the event has a throwable renderer
+	 * configured, whose output must be used as is
+	 */
+	static boolean hasThrowableRenderer( LoggingEvent event)
+	{
+		Category logger = event.getLogger();
+		if (logger == null)
+			return false;
+		LoggerRepository repository = logger.getLoggerRepository();
+		return repository instanceof ThrowableRendererSupport
+				&& ((ThrowableRendererSupport) repository).getThrowableRenderer() != null;
+	}
+
+	/**
+	 * Renders the event as a single JSON object
+	 */
+	String formatJson( LoggingEvent event)
+	{
+		JsonWriter w = jsonWriter.reset().beginObject()
+			.name("timestamp").value(event.getTimeStamp())
+			.name("level").value(event.getLevel().toString())
+			.name("logger").value(event.getLoggerName())
+			.name("thread").value(event.getThreadName())
+			.name("message").value(event.getRenderedMessage());
 
-		// Append stack trace if present
-		String[] stack = event.getThrowableStrRep();
-		if (stack != null)
+		Map<?, ?> mdc = event.getProperties();
+		if (!mdc.isEmpty())
 		{
-			int len = stack.length;
-			formattedEvent += ", ";
-			for(int i = 0; i < len; i++)
+			w.name("mdc").beginObject();
+			for (Iterator<?> i = mdc.entrySet().iterator(); i.hasNext(); )
 			{
-				formattedEvent += stack[i];
-				if(i < len - 1)
-					formattedEvent += "\u2028";
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) i.next();
+				w.name(String.valueOf(e.getKey())).value(e.getValue() == null ? null : e.getValue().toString());
 			}
+			w.endObject();
 		}
-				
-		// Prepare to be queued
-		this.le_async.addLineToQueue(formattedEvent);
+
+		ThrowableInformation info = event.getThrowableInformation();
+		if (info != null)
+		{
+			Throwable t = info.getThrowable();
+			w.name("exception").beginObject();
+			if (t != null)
+				w.name("class").value(t.getClass().getName()).name("message").value(t.getMessage());
+			w.name("stack").beginArray();
+			String[] stack = event.getThrowableStrRep();
+			if (stack != null)
+			{
+				for (String line : stack)
+					w.value(line);
+			}
+			w.endArray().endObject();
+		}
+
+		return w.endObject().buffer().toString();
+	}
+
+	/**
+	 * Takes over the queue and connection of the appender of the same name
+	 * replaced by a configuration reload.
+	 */
+	@Override
+	public void activateOptions() {
+		if (getName() != null)
+			le_async = AsyncLogger.share(LogManager.getLoggerRepository(), "log4j/" + getName(), le_async);
 	}
 
 	/**
-	 * Closes all connections to Logentries
+	 * Closes all connections to Logentries, once no appender replacing this
+	 * one uses them.
 	 */
 	@Override
 	public void close() {
-		this.le_async.close();
+		AsyncLogger.release(this.le_async);
 	}
 
 	@Override
 	public boolean requiresLayout() {
-		return true;
+		return !json;
 	}
 }
@@ -0,0 +1,211 @@
+package com.logentries.log4j;
+
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Renders throwables into a single Logentries event.
+ *
+ * <p>The trace is written straight into a {@link StringBuilder}, in the same
+ * shape as {@link Throwable#printStackTrace()} (causes, common frames and
+ * suppressed exceptions), with lines delimited by the unicode line separator.
+ * Optionally only the first frames of each throwable are kept, and frames of
+ * filtered packages such as <code>sun.reflect</code> are collapsed.</p>
+ */
+public class ThrowableFormatter {
+
+	/** Logentries newline delimiter. */
+	public static final String DELIMITER = "\u2028";
+	/** Caption of causes. */
+	private static final String CAUSE_CAPTION = "Caused by: ";
+	/** Caption of suppressed exceptions. */
+	private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+	/** No suppressed exceptions. */
+	private static final Throwable[] NONE = new Throwable[0];
+	/** Throwable.getSuppressed, null before Java 7. */
+	private static final Method GET_SUPPRESSED = suppressedMethod();
+
+	/** Maximum number of frames per throwable, 0 for all. */
+	private int maxFrames;
+	/** Class name prefixes of frames to skip. */
+	private String[] filter = new String[0];
+
+	/**
+	 * Sets the maximum number of frames rendered per throwable. Remaining
+	 * frames are summarized as "... N more".
+	 *
+	 * @param maxFrames frame limit, 0 for no limit
+	 */
+	public void setMaxFrames( int maxFrames)
+	{
+		this.maxFrames = Math.max( 0, maxFrames);
+	}
+
+	public int getMaxFrames()
+	{
+		return maxFrames;
+	}
+
+	/**
+	 * Sets the packages whose frames are skipped, separated by commas, for
+	 * instance "sun.reflect, java.lang.reflect, com.sun.proxy". Runs of
+	 * skipped frames are summarized as "... N filtered".
+	 *
+	 * @param packages class name prefixes to filter
+	 */
+	public void setFrameFilter( String packages)
+	{
+		if (packages == null || packages.trim().length() == 0) {
+			filter = new String[0];
+			return;
+		}
+		String[] parts = packages.split( ",");
+		for (int i = 0; i < parts.length; i++)
+			parts[i] = parts[i].trim();
+		filter = parts;
+	}
+
+	/**
+	 * Estimates the rendered size of a throwable, for pre-sizing buffers.
+	 *
+	 * @param t throwable to render
+	 * @return approximate number of characters
+	 */
+	public int estimateSize( Throwable t)
+	{
+		int frames = t.getStackTrace().length;
+		if (maxFrames > 0 && frames > maxFrames)
+			frames = maxFrames + 1;
+		return 128 + frames * 80;
+	}
+
+	/**
+	 * Appends the rendered throwable to the builder.
+	 *
+	 * @param t throwable to render
+	 * @param out destination
+	 */
+	public void format( Throwable t, StringBuilder out)
+	{
+		out.append( t);
+		StackTraceElement[] trace = t.getStackTrace();
+		frames( trace, trace.length, "", out);
+
+		Throwable[] suppressed = suppressed( t);
+		Throwable cause = t.getCause();
+		if (suppressed.length == 0 && cause == null)
+			return;
+
+		Map<Throwable, Boolean> seen = new IdentityHashMap<Throwable, Boolean>();
+		seen.put( t, Boolean.TRUE);
+		for (Throwable s : suppressed)
+			enclosed( s, trace, SUPPRESSED_CAPTION, "\t", seen, out);
+		if (cause != null)
+			enclosed( cause, trace, CAUSE_CAPTION, "", seen, out);
+	}
+
+	/**
+	 * Appends already rendered trace lines, as returned by
+	 * <code>LoggingEvent.getThrowableStrRep()</code>.
+	 *
+	 * @param lines trace lines
+	 * @param out destination
+	 */
+	public static void formatLines( String[] lines, StringBuilder out)
+	{
+		for (int i = 0; i < lines.length; i++) {
+			if (i > 0)
+				out.append( DELIMITER);
+			out.append( lines[i]);
+		}
+	}
+
+	private void enclosed( Throwable t, StackTraceElement[] enclosing, String caption, String prefix,
+			Map<Throwable, Boolean> seen, StringBuilder out)
+	{
+		if (seen.containsKey( t)) {
+			out.append( DELIMITER).append( prefix).append( caption)
+				.append( "[CIRCULAR REFERENCE:").append( t).append( ']');
+			return;
+		}
+		seen.put( t, Boolean.TRUE);
+
+		// Frames in common with the enclosing trace are summarized
+		StackTraceElement[] trace = t.getStackTrace();
+		int m = trace.length - 1;
+		int n = enclosing.length - 1;
+		while (m >= 0 && n >= 0 && trace[m].equals( enclosing[n])) {
+			m--;
+			n--;
+		}
+		int inCommon = trace.length - 1 - m;
+
+		out.append( DELIMITER).append( prefix).append( caption).append( t);
+		frames( trace, m + 1, prefix, out);
+		if (inCommon != 0)
+			out.append( DELIMITER).append( prefix).append( "\t... ").append( inCommon).append( " more");
+
+		for (Throwable s : suppressed( t))
+			enclosed( s, trace, SUPPRESSED_CAPTION, prefix + "\t", seen, out);
+		if (t.getCause() != null)
+			enclosed( t.getCause(), trace, CAUSE_CAPTION, prefix, seen, out);
+	}
+
+	private void frames( StackTraceElement[] trace, int count, String prefix, StringBuilder out)
+	{
+		int printed = 0;
+		int filtered = 0;
+		for (int i = 0; i < count; i++) {
+			if (isFiltered( trace[i])) {
+				filtered++;
+				continue;
+			}
+			if (filtered > 0) {
+				out.append( DELIMITER).append( prefix).append( "\t... ").append( filtered).append( " filtered");
+				filtered = 0;
+			}
+			if (maxFrames > 0 && printed == maxFrames) {
+				out.append( DELIMITER).append( prefix).append( "\t... ").append( count - i).append( " more");
+				return;
+			}
+			out.append( DELIMITER).append( prefix).append( "\tat ").append( trace[i]);
+			printed++;
+		}
+		if (filtered > 0)
+			out.append( DELIMITER).append( prefix).append( "\t... ").append( filtered).append( " filtered");
+	}
+
+	private boolean isFiltered( StackTraceElement frame)
+	{
+		if (filter.length == 0)
+			return false;
+		String className = frame.getClassName();
+		for (String prefix : filter) {
+			if (className.startsWith( prefix))
+				return true;
+		}
+		return false;
+	}
+
+	private static Throwable[] suppressed( Throwable t)
+	{
+		if (GET_SUPPRESSED != null) {
+			try {
+				return (Throwable[]) GET_SUPPRESSED.invoke( t);
+			} catch (Exception e) {
+				// Fall through, treat as none
+			}
+		}
+		return NONE;
+	}
+
+	private static Method suppressedMethod()
+	{
+		try {
+			return Throwable.class.getMethod( "getSuppressed");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package com.logentries.log4j2;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+import com.logentries.net.AsyncLogger;
+import com.logentries.net.RoutingTable;
+
+/**
+ * Logentries appender for Log4j 2.
+ *
+ * <p>Events are encoded by the layout straight into a reusable byte buffer
+ * (the garbage-free {@link org.apache.logging.log4j.core.layout.Encoder}
+ * path, which renders {@link org.apache.logging.log4j.util.StringBuilderFormattable}
+ * messages without intermediate strings) and copied into a recycled
+ * {@link AsyncLogger} event. No reference to the event is kept after
+ * {@link #append(LogEvent)} returns, so reusable events are safe.</p>
+ */
+@Plugin(name = "Logentries", category = "Core", elementType = "appender", printObject = true)
+public class LogentriesAppender extends AbstractAppender {
+
+	/*
+	 * Constants
+	 */
+	/** Initial size of the encode buffer */
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	/** Largest encode buffer kept between events */
+	private static final int MAX_RETAINED = 64 * 1024;
+	/** Charset Logentries expects */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Reads the context data of events without copying it */
+	private static final RoutingTable.MdcLookup<ReadOnlyStringMap> CONTEXT_DATA = new RoutingTable.MdcLookup<ReadOnlyStringMap>()
+	{
+		public Object get( ReadOnlyStringMap contextData, String key)
+		{
+			return contextData.getValue(key);
+		}
+	};
+
+	/*
+	 * Fields
+	 */
+	/** Asynchronous Background logger */
+	final AsyncLogger le_async;
+	/** Routes to tokens other than the default one, null if not configured */
+	final RoutingTable routes;
+	/** Reusable encode buffer, guarded by itself */
+	private final Destination destination = new Destination();
+
+	/**
+	 * Creates the appender.
+	 *
+	 * @param name appender name
+	 * @param filter filter, may be null
+	 * @param layout layout to encode events with
+	 * @param ignoreExceptions whether to swallow errors
+	 * @param properties properties of the configuration, may be null
+	 * @param le_async {@link AsyncLogger} to dispatch events
+	 * @param routes routing table, may be null
+	 */
+	protected LogentriesAppender( String name, Filter filter, Layout<? extends Serializable> layout,
+			boolean ignoreExceptions, Property[] properties, AsyncLogger le_async, RoutingTable routes)
+	{
+		super(name, filter, layout, ignoreExceptions, properties);
+		this.le_async = le_async;
+		this.routes = routes;
+	}
+
+	/**
+	 * Creates a builder of the appender, for the configuration.
+	 */
+	@PluginBuilderFactory
+	public static Builder newBuilder()
+	{
+		return new Builder();
+	}
+
+	/**
+	 * Builds the appender from its configuration. Each attribute has a setter
+	 * of the same name; the name, layout and filter are those of
+	 * {@link AbstractAppender.Builder}.
+	 */
+	public static class Builder extends AbstractAppender.Builder<Builder>
+			implements org.apache.logging.log4j.core.util.Builder<LogentriesAppender> {
+
+		@PluginBuilderAttribute
+		private String token;
+		@PluginBuilderAttribute
+		private boolean httpPut;
+		@PluginBuilderAttribute
+		private String key;
+		@PluginBuilderAttribute
+		private String location;
+		@PluginBuilderAttribute
+		private boolean ssl;
+		@PluginBuilderAttribute
+		private boolean debug;
+		@PluginBuilderAttribute
+		private String routes;
+		@PluginBuilderAttribute
+		private boolean keepAlive;
+		@PluginBuilderAttribute
+		private boolean verifyHostname = true;
+		@PluginBuilderAttribute
+		private int idleTimeout;
+		@PluginBuilderAttribute
+		private int writeTimeout;
+		@PluginBuilderAttribute
+		private String endpoints;
+		@PluginBuilderAttribute
+		private int dnsTtl = 60;
+		@PluginBuilderAttribute
+		private int maxEventSize;
+		@PluginBuilderAttribute
+		private String oversizePolicy;
+		@PluginBuilderAttribute
+		private String redact;
+		@PluginBuilderAttribute
+		private int slowEventThreshold;
+		@PluginBuilderAttribute
+		private int stagingDelay;
+
+		public Builder setToken( String token)
+		{
+			this.token = token;
+			return this;
+		}
+
+		public Builder setHttpPut( boolean httpPut)
+		{
+			this.httpPut = httpPut;
+			return this;
+		}
+
+		public Builder setKey( String key)
+		{
+			this.key = key;
+			return this;
+		}
+
+		public Builder setLocation( String location)
+		{
+			this.location = location;
+			return this;
+		}
+
+		public Builder setSsl( boolean ssl)
+		{
+			this.ssl = ssl;
+			return this;
+		}
+
+		public Builder setDebug( boolean debug)
+		{
+			this.debug = debug;
+			return this;
+		}
+
+		public Builder setRoutes( String routes)
+		{
+			this.routes = routes;
+			return this;
+		}
+
+		public Builder setKeepAlive( boolean keepAlive)
+		{
+			this.keepAlive = keepAlive;
+			return this;
+		}
+
+		public Builder setVerifyHostname( boolean verifyHostname)
+		{
+			this.verifyHostname = verifyHostname;
+			return this;
+		}
+
+		public Builder setIdleTimeout( int idleTimeout)
+		{
+			this.idleTimeout = idleTimeout;
+			return this;
+		}
+
+		public Builder setWriteTimeout( int writeTimeout)
+		{
+			this.writeTimeout = writeTimeout;
+			return this;
+		}
+
+		public Builder setEndpoints( String endpoints)
+		{
+			this.endpoints = endpoints;
+			return this;
+		}
+
+		public Builder setDnsTtl( int dnsTtl)
+		{
+			this.dnsTtl = dnsTtl;
+			return this;
+		}
+
+		public Builder setMaxEventSize( int maxEventSize)
+		{
+			this.maxEventSize = maxEventSize;
+			return this;
+		}
+
+		public Builder setOversizePolicy( String oversizePolicy)
+		{
+			this.oversizePolicy = oversizePolicy;
+			return this;
+		}
+
+		public Builder setRedact( String redact)
+		{
+			this.redact = redact;
+			return this;
+		}
+
+		public Builder setSlowEventThreshold( int slowEventThreshold)
+		{
+			this.slowEventThreshold = slowEventThreshold;
+			return this;
+		}
+
+		public Builder setStagingDelay( int stagingDelay)
+		{
+			this.stagingDelay = stagingDelay;
+			return this;
+		}
+
+		public LogentriesAppender build()
+		{
+			String name = getName();
+			if (name == null)
+			{
+				LOGGER.error("No name provided for LogentriesAppender");
+				return null;
+			}
+			Layout<? extends Serializable> layout = getLayout();
+			if (layout == null)
+				layout = PatternLayout.newBuilder().withCharset(UTF8).build();
+			else if (layout instanceof AbstractStringLayout && !UTF8.equals(((AbstractStringLayout) layout).getCharset()))
+				LOGGER.warn("Layout of LogentriesAppender " + name + " should use the UTF-8 charset");
+
+			AsyncLogger le_async = new AsyncLogger();
+			le_async.setDebug(debug);
+			if (token != null)
+				le_async.setToken(token);
+			le_async.setHttpPut(httpPut);
+			if (key != null)
+				le_async.setKey(key);
+			if (location != null)
+				le_async.setLocation(location);
+			le_async.setSsl(ssl);
+			le_async.setKeepAlive(keepAlive);
+			le_async.setVerifyHostname(verifyHostname);
+			le_async.setIdleTimeout(idleTimeout);
+			le_async.setWriteTimeout(writeTimeout);
+			le_async.setEndpoints(endpoints);
+			le_async.setDnsTtl(dnsTtl);
+			le_async.setMaxEventSize(maxEventSize);
+			le_async.setOversizePolicy(oversizePolicy);
+			le_async.setRedact(redact);
+			le_async.setSlowEventThreshold(slowEventThreshold);
+			le_async.setStagingDelay(stagingDelay);
+
+			// The appender replaced by a reload stops after this one starts, its queue and connection carry over
+			Configuration configuration = getConfiguration();
+			le_async = AsyncLogger.share(configuration != null ? configuration.getLoggerContext() : null,
+					"log4j2/" + name, le_async);
+
+			RoutingTable table = RoutingTable.parse(routes);
+			return new LogentriesAppender(name, getFilter(), layout, isIgnoreExceptions(), getPropertyArray(),
+					le_async, table.isEmpty() ? null : table);
+		}
+	}
+
+	/**
+	 * Encodes the event and queues it.
+	 *
+	 * @param event event to log
+	 */
+	public void append( LogEvent event)
+	{
+		// Pick the destination token
+		String token = null;
+		if (routes != null)
+			token = routes.route(event.getLoggerName(), toLevel(event.getLevel()),
+					routes.usesMdc() ? event.getContextData() : null, CONTEXT_DATA);
+
+		synchronized (destination)
+		{
+			ByteBuffer buffer = destination.buffer;
+			buffer.clear();
+			destination.limit = le_async.getRenderLimit();
+			getLayout().encode(event, destination);
+
+			buffer = destination.buffer;
+			le_async.addEncodedLineToQueue(buffer.array(), buffer.arrayOffset(),
+					Math.min(buffer.position(), destination.limit), token);
+
+			if (buffer.capacity() > MAX_RETAINED)
+				destination.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Closes all connections to Logentries
+	 */
+	@Override
+	public boolean stop( long timeout, TimeUnit timeUnit)
+	{
+		boolean stopped = super.stop(timeout, timeUnit);
+		AsyncLogger.release(this.le_async);
+		return stopped;
+	}
+
+	/**
+	 * Maps a Log4j 2 level to the integer scale of log4j and logback used by
+	 * {@link RoutingTable}.
+	 */
+	static int toLevel( Level level)
+	{
+		switch (level.getStandardLevel())
+		{
+			case OFF: return Integer.MAX_VALUE;
+			case FATAL: return 50000;
+			case ERROR: return 40000;
+			case WARN: return 30000;
+			case INFO: return 20000;
+			case DEBUG: return 10000;
+			case TRACE: return 5000;
+			default: return Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Heap buffer the layout encodes into, grown when the layout drains it.
+	 * Once the render limit is reached further bytes are discarded, so an
+	 * oversized event is never rendered in full.
+	 */
+	static final class Destination implements ByteBufferDestination {
+
+		ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		/** Number of bytes kept, see {@link AsyncLogger#getRenderLimit()}. */
+		int limit = Integer.MAX_VALUE;
+		/** Receives the bytes past the limit. */
+		private ByteBuffer discard;
+
+		public ByteBuffer getByteBuffer()
+		{
+			return buffer;
+		}
+
+		public ByteBuffer drain( ByteBuffer buf)
+		{
+			if (buf != buffer || buffer.position() >= limit)
+			{
+				if (discard == null)
+					discard = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+				discard.clear();
+				return discard;
+			}
+			// Full, keep the content and make room
+			ensure(buf.capacity());
+			return buffer;
+		}
+
+		public void writeBytes( ByteBuffer data)
+		{
+			int n = Math.min(data.remaining(), room());
+			ensure(n);
+			int end = data.limit();
+			data.limit(data.position() + n);
+			buffer.put(data);
+			data.limit(end);
+			data.position(end);
+		}
+
+		public void writeBytes( byte[] data, int offset, int length)
+		{
+			int n = Math.min(length, room());
+			ensure(n);
+			buffer.put(data, offset, n);
+		}
+
+		private int room()
+		{
+			return Math.max(0, limit - buffer.position());
+		}
+
+		private void ensure( int extra)
+		{
+			if (buffer.remaining() >= extra)
+				return;
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+}
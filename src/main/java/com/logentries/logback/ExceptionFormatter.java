@@ -2,6 +2,7 @@ package com.logentries.logback;
 
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import com.logentries.net.JsonWriter;
 
 /**
  * Formatter to generate Logentries-compatible stack traces.
@@ -50,6 +51,35 @@ public class ExceptionFormatter {
 		return ex;
 	}
 
+	/**
+	 * Writes an exception as a JSON object.
+	 *
+	 * <p>The object holds the <code>class</code>, <code>message</code> and
+	 * <code>stack</code> frames of the error, and its <code>cause</code> as a
+	 * nested object of the same shape.</p>
+	 *
+	 * @param error an {@link IThrowableProxy} object
+	 * @param json writer positioned where the value is expected
+	 */
+	public static void writeException(IThrowableProxy error, JsonWriter json) {
+		json.beginObject()
+			.name("class").value(error.getClassName())
+			.name("message").value(error.getMessage())
+			.name("stack").beginArray();
+		StackTraceElementProxy[] elements = error.getStackTraceElementProxyArray();
+		if (elements != null) {
+			for (StackTraceElementProxy e : elements) {
+				json.value(e.getSTEAsString());
+			}
+		}
+		json.endArray();
+		if (error.getCause() != null) {
+			json.name("cause");
+			writeException(error.getCause(), json);
+		}
+		json.endObject();
+	}
+
 	private static String formatStackTraceElements(StackTraceElementProxy[] elements) {
 		String s = "";
         if (elements != null) {
@@ -1,14 +1,25 @@
 package com.logentries.logback;
 
 import ch.qos.logback.classic.PatternLayout;
-import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.pattern.SyslogStartConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.core.net.SyslogAppenderBase;
 import ch.qos.logback.core.net.SyslogConstants;
 import com.logentries.net.AsyncLogger;
+import com.logentries.net.JsonWriter;
+import com.logentries.net.RoutingTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.Map;
 
 /**
  * Logentries appender for logback.
@@ -22,11 +33,32 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
     /**
      * Asynchronous Background logger
      */
-    private final AsyncLogger le_async;
+    private AsyncLogger le_async;
+    /**
+     * Whether the logger is shared with the appender replacing this one on reload
+     */
+    private final boolean shared;
     /**
      * Layout
      */
     private Layout<ILoggingEvent> layout;
+    /**
+     * Encoder rendering events to bytes
+     */
+    private Encoder<ILoggingEvent> encoder;
+    /**
+     * Whether stack traces are appended by the appender rather than the encoder
+     */
+    private boolean appendException;
+    /**
+     * Syslog header written ahead of the default layout, null otherwise
+     */
+    private SyslogHeader header;
+    /**
+     * Reusable encoder output, guarded by the appender lock
+     */
+    private final EventBuffer encoded = new EventBuffer(256);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     /**
      * Facility String
      */
@@ -36,12 +68,27 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
      */
     public static final String DEFAULT_SUFFIX_PATTERN = "[%thread] %logger %msg";
     private String suffixPattern;
+    /**
+     * Routes to tokens other than the default one, null if not configured
+     */
+    private RoutingTable routes;
+    /**
+     * Event format, "text" or "json"
+     */
+    private String format = FORMAT_TEXT;
+    public static final String FORMAT_TEXT = "text";
+    public static final String FORMAT_JSON = "json";
+    /**
+     * Reusable writer for the JSON format, guarded by the appender lock
+     */
+    private final JsonWriter json = new JsonWriter(new StringBuilder(256));
 
     /**
      * Creates a new Logentries appender.
      */
     public LogentriesAppender() {
         this.le_async = new AsyncLogger();
+        this.shared = true;
     }
 
     /**
@@ -51,6 +98,7 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
      */
     public LogentriesAppender(AsyncLogger logger) {
         this.le_async = logger;
+        this.shared = false;
     }
 
     /*
@@ -113,14 +161,203 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
         this.le_async.setDebug(debug);
     }
 
-    public void setEncoder(PatternLayoutEncoder encoder) {
-        // no-op to silence initialization warnings
+    /**
+     * Sets the TCP keepalive flag.
+     *
+     * @param keepAlive keepalive flag
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.le_async.setKeepAlive(keepAlive);
+    }
+
+    /**
+     * Sets whether the TLS certificate must match the endpoint host name,
+     * true by default. Turn it off for endpoints given by IP address.
+     *
+     * @param verify host name check flag
+     */
+    public void setVerifyHostname(boolean verify) {
+        this.le_async.setVerifyHostname(verify);
+    }
+
+    /**
+     * Sets the number of idle seconds after which the connection is reopened
+     * before sending, 0 (the default) keeps it forever.
+     *
+     * @param seconds idle timeout
+     */
+    public void setIdleTimeout(int seconds) {
+        this.le_async.setIdleTimeout(seconds);
+    }
+
+    /**
+     * Sets the number of seconds after which a blocked write is aborted and
+     * the connection reopened, 0 (the default) waits forever.
+     *
+     * @param seconds write timeout
+     */
+    public void setWriteTimeout(int seconds) {
+        this.le_async.setWriteTimeout(seconds);
+    }
+
+    /**
+     * Sets the endpoints to connect to instead of the Logentries API server,
+     * in order of preference, for instance "localhost:10000, api.logentries.com:10000".
+     *
+     * @param endpoints endpoint list
+     */
+    public void setEndpoints(String endpoints) {
+        this.le_async.setEndpoints(endpoints);
+    }
+
+    /**
+     * Sets the number of seconds resolved addresses are cached.
+     *
+     * @param seconds cache time
+     */
+    public void setDnsTtl(int seconds) {
+        this.le_async.setDnsTtl(seconds);
+    }
+
+    /**
+     * Sets the largest event size in bytes, 0 (the default) for no limit.
+     *
+     * @param bytes size limit
+     */
+    public void setMaxEventSize(int bytes) {
+        this.le_async.setMaxEventSize(bytes);
+    }
+
+    /**
+     * Sets what happens to larger events, "truncate" (the default) or "split"
+     * into several events.
+     *
+     * @param policy oversize policy
+     */
+    public void setOversizePolicy(String policy) {
+        this.le_async.setOversizePolicy(policy);
+    }
+
+    /**
+     * Sets the redaction rules, for instance "card, email, key:password".
+     * See {@link com.logentries.net.Redactor} for the syntax.
+     *
+     * @param rules comma separated redaction rules
+     */
+    public void setRedact(String rules) {
+        this.le_async.setRedact(rules);
+    }
+
+    /**
+     * Sets the delivery time above which events are reported as slow, see
+     * {@link AsyncLogger#setSlowEventThreshold(int)}.
+     *
+     * @param millis threshold in milliseconds, 0 for none
+     */
+    public void setSlowEventThreshold(int millis) {
+        this.le_async.setSlowEventThreshold(millis);
+    }
+
+    /**
+     * Sets how long events may be staged by the logging thread before they
+     * are queued, see {@link AsyncLogger#setStagingDelay(int)}.
+     *
+     * @param millis staging delay in milliseconds, 0 to queue events at once
+     */
+    public void setStagingDelay(int millis) {
+        this.le_async.setStagingDelay(millis);
+    }
+
+    /**
+     * Sets the routing table.
+     *
+     * <p>See {@link RoutingTable} for the syntax. Events not matched by any
+     * route go to the default token.</p>
+     *
+     * @param routes routing specification
+     */
+    public void setRoutes(String routes) {
+        RoutingTable table = RoutingTable.parse(routes);
+        this.routes = table.isEmpty() ? null : table;
+    }
+
+    /**
+     * Sets the event format.
+     *
+     * <p>"text" (the default) renders events with the layout, "json" writes
+     * timestamp, level, logger, thread, message, MDC and exception as a
+     * single JSON object.</p>
+     *
+     * @param format "text" or "json"
+     */
+    public void setFormat(String format) {
+        if (format == null || format.trim().length() == 0) {
+            format = FORMAT_TEXT;
+        }
+        format = format.trim().toLowerCase();
+        if (!FORMAT_TEXT.equals(format) && !FORMAT_JSON.equals(format)) {
+            throw new IllegalArgumentException("Unknown format " + format + ", expected text or json");
+        }
+        this.format = format;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the encoder.
+     *
+     * <p>When set, events are rendered by the encoder. Its bytes are sent as
+     * they are and must be UTF-8; the charset of a layout wrapping encoder is
+     * set to UTF-8. Without one, the layout is used and stack traces are
+     * appended with {@link ExceptionFormatter}.</p>
+     *
+     * @param encoder encoder to render events with
+     */
+    public void setEncoder(Encoder<ILoggingEvent> encoder) {
+        this.encoder = encoder;
+    }
+
+    public Encoder<ILoggingEvent> getEncoder() {
+        return encoder;
     }
 
     @Override
     public void start() {
-        if (layout == null) {
-            layout = buildLayout();
+        if (encoder == null) {
+            Layout<ILoggingEvent> l = layout;
+            if (l == null) {
+                // Default format, the syslog header is rendered separately
+                header = buildHeader();
+                l = buildSuffixLayout();
+            }
+            LayoutWrappingEncoder<ILoggingEvent> e = new LayoutWrappingEncoder<ILoggingEvent>();
+            e.setContext(getContext());
+            e.setLayout(l);
+            e.setCharset(UTF8);
+            e.start();
+            encoder = e;
+            appendException = true;
+        } else if (encoder instanceof LayoutWrappingEncoder) {
+            LayoutWrappingEncoder<ILoggingEvent> e = (LayoutWrappingEncoder<ILoggingEvent>) encoder;
+            // The sender only speaks UTF-8
+            if (e.getCharset() != null && !UTF8.equals(e.getCharset())) {
+                addWarn("Charset " + e.getCharset() + " of the encoder of appender named [" + name
+                        + "] replaced by UTF-8");
+            }
+            e.setCharset(UTF8);
+        }
+
+        try {
+            encoder.init(encoded);
+        } catch (IOException e) {
+            addError("Failed to initialize encoder for appender named [" + name + "].", e);
+            return;
+        }
+        // Take over the queue and connection of the appender replaced by a reload
+        if (shared && name != null) {
+            le_async = AsyncLogger.share(getContext(), "logback/" + name, le_async);
         }
         super.start();
     }
@@ -172,17 +409,68 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
      */
     @Override
     protected void append(ILoggingEvent event) {
-        // Render the event according to layout
-        String formattedEvent = layout.doLayout(event);
+        // Pick the destination token
+        String token = null;
+        if (routes != null) {
+            token = routes.route(event.getLoggerName(), event.getLevel().toInt(),
+                    routes.usesMdc() ? event.getMDCPropertyMap() : null);
+        }
+
+        if (FORMAT_JSON.equals(format)) {
+            this.le_async.addLineToQueue(formatJson(event), token);
+            return;
+        }
+
+        // Render the event with the encoder straight to bytes
+        encoded.reset();
+        encoded.limit = le_async.getRenderLimit();
+        try {
+            if (header != null) {
+                header.write(event, encoded);
+            }
+            encoder.doEncode(event);
+
+            // Append stack trace if present
+            IThrowableProxy error = event.getThrowableProxy();
+            if (appendException && error != null) {
+                encoded.write(ExceptionFormatter.formatException(error).getBytes(UTF8));
+            }
+        } catch (IOException e) {
+            addError("Failed to encode event for appender named [" + name + "].", e);
+            return;
+        }
+
+        // Copied into a recycled event
+        this.le_async.addEncodedLineToQueue(encoded.array(), 0, encoded.size(), token);
+    }
+
+    /**
+     * Renders the event as a single JSON object.
+     */
+    String formatJson(ILoggingEvent event) {
+        json.reset().beginObject()
+            .name("timestamp").value(event.getTimeStamp())
+            .name("level").value(event.getLevel().toString())
+            .name("logger").value(event.getLoggerName())
+            .name("thread").value(event.getThreadName())
+            .name("message").value(event.getFormattedMessage());
+
+        Map<String, String> mdc = event.getMDCPropertyMap();
+        if (mdc != null && !mdc.isEmpty()) {
+            json.name("mdc").beginObject();
+            for (Map.Entry<String, String> e : mdc.entrySet()) {
+                json.name(e.getKey()).value(e.getValue());
+            }
+            json.endObject();
+        }
 
-        // Append stack trace if present
         IThrowableProxy error = event.getThrowableProxy();
         if (error != null) {
-            formattedEvent += ExceptionFormatter.formatException(error);
+            json.name("exception");
+            ExceptionFormatter.writeException(error, json);
         }
 
-        // Prepare to be queued
-        this.le_async.addLineToQueue(formattedEvent);
+        return json.endObject().buffer().toString();
     }
 
     /**
@@ -191,7 +479,14 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
     @Override
     public void stop() {
         super.stop();
-        this.le_async.close();
+        if (encoder != null) {
+            try {
+                encoder.close();
+            } catch (IOException e) {
+                addError("Failed to close encoder for appender named [" + name + "].", e);
+            }
+        }
+        AsyncLogger.release(this.le_async);
     }
 
     public Layout<ILoggingEvent> buildLayout() {
@@ -206,6 +501,44 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
         return l;
     }
 
+    /**
+     * Builds the layout of the default format without the syslog header.
+     */
+    Layout<ILoggingEvent> buildSuffixLayout() {
+        PatternLayout l = new PatternLayout();
+        if (suffixPattern == null) {
+            suffixPattern = DEFAULT_SUFFIX_PATTERN;
+        }
+        l.setPattern("%nopex" + suffixPattern);
+        l.setContext(getContext());
+        l.start();
+        return l;
+    }
+
+    /**
+     * Builds the syslog header renderer for the configured facility.
+     *
+     * <p>Falls back to the USER facility if none or an unknown one is set.</p>
+     */
+    SyslogHeader buildHeader() {
+        int facility;
+        try {
+            facility = SyslogAppenderBase.facilityStringToint(getFacility());
+        } catch (IllegalArgumentException e) {
+            addWarn("Invalid facility [" + getFacility() + "], using USER.");
+            facility = SyslogConstants.LOG_USER;
+        }
+
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            addError("Could not determine local host name", e);
+            hostName = "UNKNOWN_LOCALHOST";
+        }
+        return new SyslogHeader(facility, hostName);
+    }
+
     /**
      * See {@link #setSuffixPattern(String).
      *
@@ -224,4 +557,37 @@ public class LogentriesAppender extends AppenderBase<ILoggingEvent> {
     public void setSuffixPattern(String suffixPattern) {
         this.suffixPattern = suffixPattern;
     }
+
+    /**
+     * Reusable output of the encoder. Bytes past the limit are dropped, so an
+     * oversized event is not rendered in full when it is truncated anyway.
+     */
+    static final class EventBuffer extends ByteArrayOutputStream {
+
+        /** Number of bytes kept, see {@link AsyncLogger#getRenderLimit()}. */
+        int limit = Integer.MAX_VALUE;
+
+        EventBuffer(int size) {
+            super(size);
+        }
+
+        /**
+         * Returns the internal array, valid up to {@link #size()}.
+         */
+        byte[] array() {
+            return buf;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (count < limit) {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, Math.min(len, Math.max(0, limit - count)));
+        }
+    }
 }
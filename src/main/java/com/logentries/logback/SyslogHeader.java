@@ -0,0 +1,94 @@
+package com.logentries.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.text.DateFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders the syslog header of an event, as {@link
+ * ch.qos.logback.classic.pattern.SyslogStartConverter} does, straight to bytes.
+ *
+ * <p>The priority prefixes and the host name are encoded once. The formatted
+ * timestamp is cached for the current second and swapped atomically when the
+ * second changes, so the common path neither formats dates nor locks.</p>
+ */
+class SyslogHeader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** Number of syslog severities. */
+    private static final int SEVERITIES = 8;
+
+    /** "&lt;priority&gt;" for each severity. */
+    private final byte[][] priorities = new byte[SEVERITIES][];
+    /** " host " */
+    private final byte[] host;
+    /** Timestamp format, used only when the second changes. */
+    private final SimpleDateFormat format = new SimpleDateFormat("MMM dd HH:mm:ss", new DateFormatSymbols(Locale.US));
+    /** Formatted timestamp of the last second seen. */
+    private final AtomicReference<Stamp> stamp = new AtomicReference<Stamp>(new Stamp(Long.MIN_VALUE, null));
+
+    /**
+     * Creates the header renderer.
+     *
+     * @param facility syslog facility code, already shifted
+     * @param hostName local host name
+     */
+    SyslogHeader(int facility, String hostName) {
+        for (int severity = 0; severity < SEVERITIES; severity++) {
+            priorities[severity] = ("<" + (facility + severity) + ">").getBytes(UTF8);
+        }
+        host = (" " + hostName + " ").getBytes(UTF8);
+    }
+
+    /**
+     * Writes the header of the event.
+     *
+     * @param event event to render the header for
+     * @param out destination
+     */
+    void write(ILoggingEvent event, ByteArrayOutputStream out) {
+        byte[] priority = priorities[LevelToSyslogSeverity.convert(event) & (SEVERITIES - 1)];
+        out.write(priority, 0, priority.length);
+        byte[] time = timestamp(event.getTimeStamp());
+        out.write(time, 0, time.length);
+        out.write(host, 0, host.length);
+    }
+
+    /**
+     * Returns the encoded timestamp, formatting it only once per second.
+     */
+    byte[] timestamp(long millis) {
+        long second = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+        Stamp s = stamp.get();
+        if (s.second == second) {
+            return s.bytes;
+        }
+
+        byte[] bytes;
+        synchronized (format) {
+            bytes = format.format(new Date(millis)).getBytes(UTF8);
+        }
+        stamp.set(new Stamp(second, bytes));
+        return bytes;
+    }
+
+    /**
+     * Immutable pair of second and its formatted timestamp.
+     */
+    private static final class Stamp {
+        final long second;
+        final byte[] bytes;
+
+        Stamp(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package com.logentries.net;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.helpers.LogLog;
 
@@ -28,6 +38,12 @@ public class AsyncLogger {
 	static final String VERSION = "1.1.9";
 	/** Size of the internal event queue. */
 	private static final int QUEUE_SIZE = 32768;
+	/** Slots of the event queue allocated up front, it grows as needed. */
+	private static final int INITIAL_QUEUE_SIZE = 64;
+	/** Number of recycled events kept for reuse. */
+	private static final int POOL_SIZE = 1024;
+	/** Slots of the pool allocated up front, it grows as needed. */
+	private static final int INITIAL_POOL_SIZE = 16;
 	/** UTF-8 output character set. */
 	private static final Charset UTF8 = Charset.forName( "UTF-8");
 	/** ASCII character set used by HTTP. */
@@ -36,14 +52,26 @@ public class AsyncLogger {
 	private static final int MIN_DELAY = 100;
 	/** Maximal delay between attempts to reconnect in milliseconds. */
 	private static final int MAX_DELAY = 10000;
+	/** Bytes above which no more queued events are added to a write. */
+	static final int MAX_BATCH = 64 * 1024;
+	/** Minimal period of the write stall watchdog in milliseconds. */
+	private static final int MIN_WATCHDOG_PERIOD = 100;
 	/** LE appender signature - used for debugging messages. */
 	private static final String LE = "LE ";
 	/** Error message displayed when invalid API key is detected. */
 	private static final String INVALID_TOKEN = "\n\nIt appears your LOGENTRIES_TOKEN parameter in log4j.xml is incorrect!\n\n";
 	/** Key Value for Token Environment Variable. */
 	private static final String CONFIG_TOKEN = "LOGENTRIES_TOKEN";
-	/** Platform dependent line separator to check for. Supported in Java 1.6+ */
-	private static final String LINE_SEP = System.getProperty("line_separator", "\n");
+	/** Marker appended to truncated events. */
+	private static final byte[] TRUNCATED = " [truncated]".getBytes( UTF8);
+	/** Smallest event size limit. */
+	private static final int MIN_EVENT_SIZE = 64;
+	/** Oversized events are truncated. */
+	public static final String OVERSIZE_TRUNCATE = "truncate";
+	/** Oversized events are split into chunks. */
+	public static final String OVERSIZE_SPLIT = "split";
+	/** Whether debugging messages go to log4j's LogLog, it's an optional dependency. */
+	private static final boolean LOGLOG = hasLogLog();
 	/** Error message displayed when queue overflow occurs */
     private static final String QUEUE_OVERFLOW = "\n\nLogentries Buffer Queue Overflow. Message Dropped!\n\n";
 
@@ -52,7 +80,7 @@ public class AsyncLogger {
 	 */
 
 	/** Destination Token. */
-	String token = "";
+	volatile String token = "";
 	/** Account Key. */
 	String key = "";
 	/** Account Log Location. */
@@ -62,16 +90,58 @@ public class AsyncLogger {
 	/** SSL/TLS flag. */
 	boolean ssl = false;
 	/** Debug flag. */
-	boolean debug;
+	volatile boolean debug;
+	/** TCP keepalive flag. */
+	boolean keepAlive = false;
+	/** Whether TLS certificates must match the endpoint host name. */
+	boolean verifyHostname = true;
+	/** Idle time after which the connection is reopened before sending, in seconds. */
+	volatile int idleTimeout = 0;
+	/** Time after which a blocked write or connect is aborted, in seconds. */
+	int writeTimeout = 0;
+	/** Endpoints to connect to in order of preference, null for the Logentries API server. */
+	String endpoints;
+	/** Largest event sent, in bytes without the token, 0 for no limit. */
+	volatile int maxEventSize = 0;
+	/** Whether oversized events are split rather than truncated. */
+	volatile boolean splitOversized = false;
+	/** Bytes above which no more queued events are added to a write. */
+	volatile int batchSize = MAX_BATCH;
+	/** Largest number of queued events. */
+	volatile int queueSize = QUEUE_SIZE;
+	/** Longest time events are staged by their thread, in milliseconds, 0 if not staged. */
+	int stagingDelay = 0;
+	/** Per-thread staging of events, null if not staged. */
+	volatile StagingBuffers staging;
+	/** Redaction rules, null if none. */
+	String redact;
+	/** Compiled redaction rules, null if none. */
+	volatile Redactor redactor;
+	/** Latencies from the queue to the wire. */
+	final LatencyTracker latency = new LatencyTracker();
+	/** Executor running the sender, null for a dedicated thread. */
+	Executor executor;
+	/** Run by the sender whenever it has taken events from the queue. */
+	final CopyOnWriteArrayList<Runnable> drainListeners = new CopyOnWriteArrayList<Runnable>();
+	/** Time resolved addresses are cached, in seconds. */
+	int dnsTtl = (int) TimeUnit.MILLISECONDS.toSeconds( EndpointResolver.DEFAULT_TTL);
 	/** Make local connection only. */
 	boolean local;
 	/** Indicator if the socket appender has been started. */
 	boolean started;
+	/** Incremented when connection settings change, the sender then reconnects. */
+	final AtomicInteger transportVersion = new AtomicInteger();
+	/** Guards connection settings while they are swapped or read to connect. */
+	final Object settingsLock = new Object();
+	/** Events dropped because the queue was full. */
+	final AtomicLong dropped = new AtomicLong();
 
 	/** Asynchronous socket appender. */
 	SocketAppender appender;
 	/** Message queue. */
-	ArrayBlockingQueue<String> queue;
+	EventQueue queue;
+	/** Sent events ready for reuse. */
+	EventQueue pool;
 
 	/*
 	 * Public methods for parameters
@@ -102,6 +172,7 @@ public class AsyncLogger {
 	 */
 	public void setHttpPut( boolean HttpPut) {
 		this.httpPut = HttpPut;
+		transportChanged();
 	}
 
 	/**
@@ -120,6 +191,7 @@ public class AsyncLogger {
 	public void setKey( String account_key)
 	{
 		this.key = account_key;
+		transportChanged();
 	}
 
 	/**
@@ -140,6 +212,7 @@ public class AsyncLogger {
 	public void setLocation( String log_location)
 	{
 		this.location = log_location;
+		transportChanged();
 	}
 
 	/**
@@ -160,6 +233,9 @@ public class AsyncLogger {
 	public void setSsl( boolean ssl)
 	{
 		this.ssl = ssl;
+		if (ssl)
+			TlsContext.preload();
+		transportChanged();
 	}
 
 	/**
@@ -192,6 +268,540 @@ public class AsyncLogger {
 		return debug;
 	}
 
+	/**
+	 * Sets the TCP keepalive flag, so the OS detects dead idle connections.
+	 *
+	 * @param keepAlive keepalive flag
+	 */
+	public void setKeepAlive( boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		transportChanged();
+	}
+
+	/**
+	 * Returns the TCP keepalive flag.
+	 *
+	 * @return true if keepalive is enabled
+	 */
+	public boolean getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Sets whether the TLS certificate of an endpoint must match its host
+	 * name. Turn it off for endpoints given by IP address, or for relays
+	 * whose certificate is issued for another name. Checked on Java 7 and
+	 * later only.
+	 *
+	 * @param verify true (the default) to check the host name
+	 */
+	public void setVerifyHostname( boolean verify) {
+		this.verifyHostname = verify;
+		transportChanged();
+	}
+
+	/**
+	 * Returns whether TLS certificates must match the endpoint host name.
+	 *
+	 * @return true if the host name is checked
+	 */
+	public boolean getVerifyHostname() {
+		return verifyHostname;
+	}
+
+	/**
+	 * Sets the idle timeout. The first event after a longer quiet period is
+	 * sent over a fresh connection, as NATs and load balancers may have
+	 * silently dropped the old one.
+	 *
+	 * @param seconds idle timeout, 0 (the default) keeps connections forever
+	 */
+	public void setIdleTimeout( int seconds) {
+		this.idleTimeout = Math.max( 0, seconds);
+	}
+
+	/**
+	 * Returns the idle timeout in seconds.
+	 *
+	 * @return idle timeout, 0 if disabled
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the write timeout. Connects, handshakes and writes blocked for
+	 * longer are aborted and the connection is reopened.
+	 *
+	 * @param seconds write timeout, 0 (the default) waits forever
+	 */
+	public void setWriteTimeout( int seconds) {
+		this.writeTimeout = Math.max( 0, seconds);
+		transportChanged();
+	}
+
+	/**
+	 * Returns the write timeout in seconds.
+	 *
+	 * @return write timeout, 0 if disabled
+	 */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Sets the endpoints to connect to instead of the Logentries API server,
+	 * separated by commas, in order of preference. For instance
+	 * "localhost:10000, api.logentries.com:10000" sends to a local relay, and
+	 * to Logentries while the relay is down. All addresses of a host are
+	 * used in turn. "unix:/path" endpoints are Unix domain sockets,
+	 * "udp:host:port" and "syslog:host:port" fire-and-forget UDP ones.
+	 *
+	 * @param endpoints endpoint list, host[:port] each
+	 */
+	public void setEndpoints( String endpoints) {
+		if (endpoints != null && endpoints.trim().length() > 0) {
+			// Fail on configuration rather than on connect
+			EndpointResolver.parse( endpoints, 1);
+			this.endpoints = endpoints;
+		} else {
+			this.endpoints = null;
+		}
+		transportChanged();
+	}
+
+	/**
+	 * Returns the endpoints.
+	 *
+	 * @return endpoint list, null for the Logentries API server
+	 */
+	public String getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Sets the time resolved addresses are cached.
+	 *
+	 * @param seconds cache time
+	 */
+	public void setDnsTtl( int seconds) {
+		this.dnsTtl = Math.max( 0, seconds);
+		transportChanged();
+	}
+
+	/**
+	 * Returns the time resolved addresses are cached, in seconds.
+	 *
+	 * @return cache time
+	 */
+	public int getDnsTtl() {
+		return dnsTtl;
+	}
+
+	/**
+	 * Sets the largest event size. Larger events are truncated or split,
+	 * depending on the oversize policy.
+	 *
+	 * @param bytes size limit of the UTF-8 encoded event without its token, 0 (the default) for none
+	 */
+	public void setMaxEventSize( int bytes) {
+		this.maxEventSize = bytes > 0 ? Math.max( MIN_EVENT_SIZE, bytes) : 0;
+	}
+
+	/**
+	 * Returns the largest event size.
+	 *
+	 * @return size limit in bytes, 0 if unlimited
+	 */
+	public int getMaxEventSize() {
+		return maxEventSize;
+	}
+
+	/**
+	 * Sets what happens to events larger than the maximal event size:
+	 * {@link #OVERSIZE_TRUNCATE} (the default) cuts them and appends a
+	 * marker, {@link #OVERSIZE_SPLIT} sends them as several events prefixed
+	 * with "[chunk id n]", the last one with "[chunk id n end]".
+	 *
+	 * @param policy "truncate" or "split"
+	 */
+	public void setOversizePolicy( String policy) {
+		if (policy == null || OVERSIZE_TRUNCATE.equalsIgnoreCase( policy.trim()))
+			splitOversized = false;
+		else if (OVERSIZE_SPLIT.equalsIgnoreCase( policy.trim()))
+			splitOversized = true;
+		else
+			throw new IllegalArgumentException( "Unknown oversize policy " + policy + ", expected truncate or split");
+	}
+
+	/**
+	 * Returns the oversize policy.
+	 *
+	 * @return "truncate" or "split"
+	 */
+	public String getOversizePolicy() {
+		return splitOversized ? OVERSIZE_SPLIT : OVERSIZE_TRUNCATE;
+	}
+
+	/**
+	 * Sets the redaction rules applied to every event before it is sent, see
+	 * {@link Redactor} for the syntax, for instance
+	 * "card, email, key:password, key:token".
+	 *
+	 * @param rules comma separated rules, null or empty for none
+	 * @throws IllegalArgumentException if a rule is invalid
+	 */
+	public void setRedact( String rules) {
+		this.redactor = Redactor.compile( rules);
+		this.redact = redactor != null ? rules : null;
+	}
+
+	/**
+	 * Returns the redaction rules.
+	 *
+	 * @return comma separated rules, null if none
+	 */
+	public String getRedact() {
+		return redact;
+	}
+
+	/**
+	 * Sets the executor running the sender. The sender occupies one of its
+	 * threads, blocked on the queue or the socket, until the logger is
+	 * closed, when the thread is interrupted. By default the sender has its
+	 * own thread, a virtual thread on Java 21 and newer.
+	 *
+	 * <p>Must be set before the first event is logged.</p>
+	 *
+	 * @param executor executor, null for a dedicated thread
+	 */
+	public void setExecutor( Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the executor running the sender.
+	 *
+	 * @return executor, null for a dedicated thread
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the slow event threshold. Events taking longer from the queue to
+	 * the wire are counted and, when JDK Flight Recorder is available,
+	 * reported as <code>com.logentries.SlowEvent</code> (at most 100 per
+	 * second).
+	 *
+	 * @param millis threshold in milliseconds, 0 (the default) for none
+	 */
+	public void setSlowEventThreshold( int millis) {
+		latency.setThreshold( TimeUnit.MILLISECONDS.toNanos( Math.max( 0, millis)));
+	}
+
+	/**
+	 * Returns the slow event threshold.
+	 *
+	 * @return threshold in milliseconds, 0 if none
+	 */
+	public int getSlowEventThreshold() {
+		return (int) TimeUnit.NANOSECONDS.toMillis( latency.threshold);
+	}
+
+	/**
+	 * Returns the number of events slower than the slow event threshold.
+	 *
+	 * @return slow event count
+	 */
+	public long getSlowEvents() {
+		return latency.slowEvents.get();
+	}
+
+	/**
+	 * Returns the time events wait in the queue before the sender encodes them.
+	 *
+	 * @return queue wait histogram
+	 */
+	public LatencyHistogram getQueueWaitLatency() {
+		return latency.queueWait;
+	}
+
+	/**
+	 * Returns the time the sender takes to encode an event.
+	 *
+	 * @return encode histogram
+	 */
+	public LatencyHistogram getEncodeLatency() {
+		return latency.encode;
+	}
+
+	/**
+	 * Returns the time taken by writes of batches of events, reconnections
+	 * included.
+	 *
+	 * @return write histogram
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return latency.write;
+	}
+
+	/**
+	 * Returns the time events take from the queue to the wire.
+	 *
+	 * @return delivery histogram
+	 */
+	public LatencyHistogram getDeliveryLatency() {
+		return latency.delivery;
+	}
+
+	/**
+	 * Sets how many bytes the sender writes at most at once, whatever is
+	 * queued.
+	 *
+	 * @param bytes batch size, values below 1 restore the default of 64 kB
+	 */
+	public void setBatchSize( int bytes) {
+		this.batchSize = bytes > 0 ? bytes : MAX_BATCH;
+	}
+
+	/**
+	 * Returns the batch size.
+	 *
+	 * @return batch size in bytes
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the largest number of queued events. When the queue is full, the
+	 * oldest events are dropped, or new ones refused by the offer methods.
+	 *
+	 * @param events queue size, from 1 to the default of 32768
+	 */
+	public void setQueueSize( int events) {
+		this.queueSize = Math.max( 1, Math.min( QUEUE_SIZE, events));
+	}
+
+	/**
+	 * Returns the largest number of queued events.
+	 *
+	 * @return queue size
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Sets how long events may be staged by the thread logging them before
+	 * they are queued. Staged events are queued in bulk, up to 64 at a time,
+	 * which spares busy threads most of the queue synchronization.
+	 *
+	 * <p>Events of a thread keep their order. Events of different threads
+	 * may be sent out of order by up to the delay, the timestamps of the
+	 * layout tell their order. The offer methods never stage.</p>
+	 *
+	 * @param millis staging delay in milliseconds, 0 to queue events at once
+	 */
+	public void setStagingDelay( int millis) {
+		synchronized (settingsLock) {
+			millis = Math.max( 0, millis);
+			if (millis == stagingDelay)
+				return;
+			StagingBuffers previous = staging;
+			stagingDelay = millis;
+			staging = millis > 0 ? new StagingBuffers( this, millis) : null;
+			if (previous != null)
+				previous.close();
+		}
+	}
+
+	/**
+	 * Returns the staging delay.
+	 *
+	 * @return staging delay in milliseconds, 0 if events are not staged
+	 */
+	public int getStagingDelay() {
+		synchronized (settingsLock) {
+			return stagingDelay;
+		}
+	}
+
+	/**
+	 * Returns the number of queued events.
+	 *
+	 * @return queue length
+	 */
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of events dropped to make room in a full queue.
+	 *
+	 * @return dropped events
+	 */
+	public long getDroppedEvents() {
+		return dropped.get();
+	}
+
+	/**
+	 * Applies the settings of another logger, which is typically freshly
+	 * configured and never started, to this one while it runs.
+	 *
+	 * <p>Queued events are kept. The connection is kept too, unless a
+	 * connection setting changed (HTTP PUT, key, location, SSL, host name
+	 * verification, keepalive, write timeout, endpoints or DNS TTL). In that case the sender reconnects
+	 * once, between two writes, with all the new settings. The executor of a
+	 * started logger can't change.</p>
+	 *
+	 * @param config logger holding the new settings
+	 */
+	public void reconfigure( AsyncLogger config) {
+		if (config == this)
+			return;
+		synchronized (settingsLock) {
+			boolean transport = httpPut != config.httpPut || ssl != config.ssl || keepAlive != config.keepAlive
+					|| verifyHostname != config.verifyHostname
+					|| writeTimeout != config.writeTimeout || dnsTtl != config.dnsTtl
+					|| !equal( key, config.key) || !equal( location, config.location)
+					|| !equal( endpoints, config.endpoints);
+			httpPut = config.httpPut;
+			key = config.key;
+			location = config.location;
+			ssl = config.ssl;
+			keepAlive = config.keepAlive;
+			verifyHostname = config.verifyHostname;
+			writeTimeout = config.writeTimeout;
+			endpoints = config.endpoints;
+			dnsTtl = config.dnsTtl;
+
+			token = config.token;
+			debug = config.debug;
+			idleTimeout = config.idleTimeout;
+			maxEventSize = config.maxEventSize;
+			splitOversized = config.splitOversized;
+			batchSize = config.batchSize;
+			queueSize = config.queueSize;
+			redact = config.redact;
+			redactor = config.redactor;
+			latency.setThreshold( config.latency.threshold);
+			setStagingDelay( config.stagingDelay);
+			if (!started)
+				executor = config.executor;
+
+			if (transport) {
+				dbg( "Connection settings changed");
+				transportChanged();
+			}
+		}
+	}
+
+	/**
+	 * Makes the sender reconnect before its next write, with the current
+	 * connection settings.
+	 */
+	public void reconnect() {
+		transportChanged();
+	}
+
+	private void transportChanged() {
+		transportVersion.incrementAndGet();
+	}
+
+	private static boolean equal( String a, String b) {
+		return a == null ? b == null : a.equals( b);
+	}
+
+	/**
+	 * Returns the running logger shared under the name across the JVM, see
+	 * {@link #share(Object, String, AsyncLogger)}.
+	 *
+	 * @param name name the logger is shared under, null for a private logger
+	 * @param config freshly configured logger
+	 * @return logger to use, to be released when done
+	 */
+	public static AsyncLogger share( String name, AsyncLogger config) {
+		return SharedLoggers.share( null, name, config);
+	}
+
+	/**
+	 * Returns the running logger shared under the name in the context,
+	 * reconfigured with the settings of the given one, or the given one if
+	 * none runs.
+	 *
+	 * <p>Used by appenders so that reloading the logging configuration, which
+	 * replaces them, keeps the queue and the connection: the new appender
+	 * takes over the logger of the old one, see {@link #release(AsyncLogger)}.
+	 * The context is compared by identity; appenders of the same name in
+	 * other contexts get loggers of their own. Shared loggers are also
+	 * registered with JMX as
+	 * <code>com.logentries:type=AsyncLogger,context=...,name=...</code>.</p>
+	 *
+	 * @param context context the name is unique in, such as the logger
+	 *        context of the framework, null for the whole JVM
+	 * @param name name the logger is shared under, null for a private logger
+	 * @param config freshly configured logger
+	 * @return logger to use, to be released when done
+	 */
+	public static AsyncLogger share( Object context, String name, AsyncLogger config) {
+		return SharedLoggers.share( context, name, config);
+	}
+
+	/**
+	 * Releases a logger returned by {@link #share(Object, String, AsyncLogger)}. The
+	 * last release closes it after a grace period, unless it is shared again
+	 * in between, so queued events are still sent while the configuration is
+	 * reloaded. Private loggers are closed at once.
+	 *
+	 * @param logger logger to release
+	 */
+	public static void release( AsyncLogger logger) {
+		SharedLoggers.release( logger);
+	}
+
+	/**
+	 * Returns how many bytes of an event appenders need to render, more are
+	 * cut anyway. Redacted events are rendered in full, a secret across the
+	 * cut must be seen whole to be masked.
+	 *
+	 * @return byte count, {@link Integer#MAX_VALUE} if events are never truncated
+	 */
+	public int getRenderLimit() {
+		return maxEventSize > 0 && !splitOversized && redactor == null ? maxEventSize + 1 : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the number of datagrams sent to UDP endpoints.
+	 *
+	 * @return datagrams sent
+	 */
+	public long getDatagramsSent() {
+		LogentriesClient client = appender.le_client;
+		return client != null ? client.getDatagramsSent() : 0;
+	}
+
+	/**
+	 * Returns the number of lines truncated to fit a datagram.
+	 *
+	 * @return lines truncated
+	 */
+	public long getDatagramsTruncated() {
+		LogentriesClient client = appender.le_client;
+		return client != null ? client.getDatagramsTruncated() : 0;
+	}
+
+	/**
+	 * Returns the number of datagrams which failed to send.
+	 *
+	 * @return failed datagrams
+	 */
+	public long getDatagramErrors() {
+		LogentriesClient client = appender.le_client;
+		return client != null ? client.getDatagramErrors() : 0;
+	}
+
 	/**
 	 * Initializes asynchronous logging.
 	 *
@@ -200,7 +810,8 @@ public class AsyncLogger {
 	AsyncLogger( boolean local) {
 		this.local = local;
 
-		queue = new ArrayBlockingQueue<String>( QUEUE_SIZE);
+		queue = new EventQueue( INITIAL_QUEUE_SIZE, QUEUE_SIZE);
+		pool = new EventQueue( INITIAL_POOL_SIZE, POOL_SIZE);
 
 		appender = new SocketAppender();
 	}
@@ -274,29 +885,263 @@ public class AsyncLogger {
 	 * @param line line to append
 	 */
 	public void addLineToQueue( String line) {
+		addLineToQueue( line, null);
+	}
+
+	/**
+	 * Adds the data to internal queue to be sent to the given token.
+	 *
+	 * Used by appenders with a {@link RoutingTable}; the token is ignored in
+	 * HTTP PUT mode.
+	 *
+	 * @param line line to append
+	 * @param token destination token, null for the default token
+	 */
+	public void addLineToQueue( String line, String token) {
+		dbg( "Queueing " + line);
+		enqueue( lineEvent( line, token));
+	}
+
+	/**
+	 * Queues a line if there is room, without dropping queued events.
+	 *
+	 * @param line line to append
+	 * @param token destination token, null for the default token
+	 * @return false if the queue is full
+	 */
+	public boolean offer( CharSequence line, String token) {
+		String s = line.toString();
+		dbg( "Offering " + s);
+		return tryEnqueue( lineEvent( s, token));
+	}
+
+	/**
+	 * Queues lines, in order, while there is room, without dropping queued
+	 * events. Producers can retry the rest once the sender made room, see
+	 * {@link #remainingCapacity()}.
+	 *
+	 * @param lines lines to append
+	 * @param token destination token, null for the default token
+	 * @return number of lines queued, from the start of the collection
+	 */
+	public int offer( Collection<? extends CharSequence> lines, String token) {
+		int n = 0;
+		for (CharSequence line : lines) {
+			if (!offer( line, token))
+				break;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Copies a record encoded in UTF-8 to the queue if there is room, without
+	 * dropping queued events. The record is the remaining content of the
+	 * buffer, which is consumed if it is queued.
+	 *
+	 * @param record UTF-8 encoded line
+	 * @param token destination token, null for the default token
+	 * @return false if the queue is full
+	 */
+	public boolean offer( ByteBuffer record, String token) {
+		QueuedEvent event = pool.poll();
+		if (event == null)
+			event = new QueuedEvent();
+		int length = record.remaining();
+		int limit = getRenderLimit();
+		event.copy( record, Math.min( length, limit), token);
+		event.truncated = length > limit;
+		if (debug)
+			dbg( "Offering " + new String( event.bytes, 0, event.length, UTF8));
+
+		if (!tryEnqueue( event)) {
+			recycle( event);
+			return false;
+		}
+		record.position( record.limit());
+		return true;
+	}
+
+	/**
+	 * Returns how many events can be queued before the queue is full.
+	 *
+	 * @return free queue capacity
+	 */
+	public int remainingCapacity() {
+		int limit = queueSize;
+		if (limit < QUEUE_SIZE)
+			return Math.max( 0, limit - queue.size());
+		return queue.remainingCapacity();
+	}
+
+	/**
+	 * Creates the event of a line, cut to the render limit.
+	 */
+	private QueuedEvent lineEvent( String line, String token) {
+		// Don't hold on to what will be cut anyway, the encoded size is at least the length
+		int limit = getRenderLimit();
+		if (line.length() > limit) {
+			QueuedEvent event = new QueuedEvent( line.substring( 0, limit), token);
+			event.truncated = true;
+			return event;
+		}
+		return new QueuedEvent( line, token);
+	}
+
+	/**
+	 * Adds an event already encoded in UTF-8 to internal queue.
+	 *
+	 * The array is handed over and must not be modified afterwards. A
+	 * trailing line break is dropped, inner ones are sent as the unicode line
+	 * separator.
+	 *
+	 * @param line UTF-8 encoded line to append
+	 * @param token destination token, null for the default token
+	 */
+	public void addEncodedLineToQueue( byte[] line, String token) {
+		if (debug)
+			dbg( "Queueing " + new String( line, UTF8));
+
+		enqueue( new QueuedEvent( line, token));
+	}
+
+	/**
+	 * Adds an event to internal queue, to be formatted on the sender thread.
+	 *
+	 * The event must not change once queued. Formatting errors drop the event.
+	 *
+	 * @param event event to append
+	 * @param formatter formatter rendering the event
+	 * @param token destination token, null for the default token
+	 */
+	public <T> void addEventToQueue( T event, EventFormatter<? super T> formatter, String token) {
+		enqueue( new QueuedEvent( event, formatter, token));
+	}
+
+	/**
+	 * Copies an event encoded in UTF-8 to internal queue.
+	 *
+	 * The bytes are copied into a recycled event, so the caller can reuse its
+	 * buffer and no memory is allocated in steady state.
+	 *
+	 * @param line buffer holding the UTF-8 encoded line
+	 * @param offset offset of the line in the buffer
+	 * @param length length of the line
+	 * @param token destination token, null for the default token
+	 */
+	public void addEncodedLineToQueue( byte[] line, int offset, int length, String token) {
+		if (debug)
+			dbg( "Queueing " + new String( line, offset, length, UTF8));
+
+		QueuedEvent event = pool.poll();
+		if (event == null)
+			event = new QueuedEvent();
+		int limit = getRenderLimit();
+		if (length > limit) {
+			event.copy( line, offset, limit, token);
+			event.truncated = true;
+		} else {
+			event.copy( line, offset, length, token);
+		}
+
+		enqueue( event);
+	}
+
+	/**
+	 * Returns a sent or dropped event to the pool.
+	 */
+	void recycle( QueuedEvent event) {
+		if (event.pooled) {
+			event.clear();
+			pool.offer( event);
+		}
+	}
+
+	/**
+	 * Starts the socket appender if needed and queues the event.
+	 *
+	 * It does not block. If the queue is full, it removes latest event first to
+	 * make space.
+	 */
+	void enqueue( QueuedEvent event) {
+		StagingBuffers stages = staging;
+		if (stages != null && stages.stage( event))
+			return;
+		if(!tryEnqueue( event))
+			overflow( event);
+	}
+
+	/**
+	 * Queues events staged by a thread in one go, dropping the oldest events
+	 * if the queue is full.
+	 *
+	 * @param events staged events, their enqueue time already stamped
+	 * @param count number of events
+	 * @param removed receives the dropped events, at least count long
+	 */
+	void handoff( QueuedEvent[] events, int count, QueuedEvent[] removed) {
+		startIfReady();
+		int n = queue.offer( events, count, queueSize, removed);
+		if (n > 0) {
+			for (int i = 0; i < n; i++) {
+				recycle( removed[i]);
+				removed[i] = null;
+			}
+			dropped.addAndGet( n);
+			dbg( QUEUE_OVERFLOW);
+		}
+	}
+
+	/**
+	 * Queues the event in place of the oldest one.
+	 */
+	private void overflow( QueuedEvent event) {
+		QueuedEvent oldest = queue.poll();
+		if (oldest != null) {
+			recycle( oldest);
+			dropped.incrementAndGet();
+		}
+		if(!queue.offer( event)) {
+			dropped.incrementAndGet();
+			dbg( QUEUE_OVERFLOW);
+		}
+	}
+
+	/**
+	 * Starts the socket appender if needed and queues the event if there is
+	 * room.
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean tryEnqueue( QueuedEvent event) {
+		startIfReady();
 
-		// Check that we have all parameters set and socket appender running
+		// A lowered queue size is only checked when set, size() takes the lock
+		int limit = queueSize;
+		if (limit < QUEUE_SIZE && queue.size() >= limit)
+			return false;
+		event.enqueued = System.nanoTime();
+		return queue.offer( event);
+	}
+
+	/**
+	 * Starts the socket appender once all parameters are set.
+	 */
+	private void startIfReady() {
 		if (!this.started && this.checkCredentials()) {
 			dbg( "Starting Logentries asynchronous socket appender");
 			appender.start();
 			started = true;
 		}
-
-		dbg( "Queueing " + line);
-
-		// Try to append data to queue
-		if(!queue.offer( line))
-		{
-			queue.poll();
-			if(!queue.offer( line))
-				dbg( QUEUE_OVERFLOW);
-		}
 	}
 
 	/**
 	 * Closes all connections to Logentries.
 	 */
 	public void close() {
+		StagingBuffers stages = staging;
+		if (stages != null)
+			stages.close();
 		appender.interrupt();
 		started = false;
 		dbg( "Closing Logentries asynchronous socket appender");
@@ -308,29 +1153,99 @@ public class AsyncLogger {
 	 * @param msg message to display
 	 */
 	void dbg( String msg) {
-		if (debug)
-			LogLog.error( LE + msg);
+		if (debug) {
+			if (LOGLOG)
+				LogLog.error( LE + msg);
+			else
+				System.err.println( LE + msg);
+		}
+	}
+
+	/**
+	 * Returns true if log4j's internal logger is available.
+	 */
+	private static boolean hasLogLog() {
+		try {
+			Class.forName( "org.apache.log4j.helpers.LogLog");
+			return true;
+		} catch (Throwable e) {
+			return false;
+		}
 	}
 
 	/**
 	 * Asynchronous over the socket appender.
 	 *
+	 * <p>Runs once, on the configured executor or on a thread of its own, until
+	 * it is interrupted.</p>
+	 *
 	 * @author Viliam Holub
 	 *
 	 */
-	class SocketAppender extends Thread {
+	class SocketAppender implements Runnable {
+		/** Name of the sender thread. */
+		static final String NAME = "Logentries Socket appender";
 		/** Random number generator for delays between reconnection attempts. */
 		final Random random = new Random();
 		/** Logentries Client for connecting to Logentries via HTTP or TCP. */
-		LogentriesClient le_client;
+		volatile LogentriesClient le_client;
+		/** Time of the last successful write, in nanoseconds. */
+		long lastWrite;
+		/** Buffer the outgoing line is assembled in. */
+		final LineBuffer buffer = new LineBuffer( 1024);
+		/** Oversized event redacted before it is cut, null until needed. */
+		LineBuffer whole;
+		/** Encoded tokens. */
+		final Map<String, byte[]> tokens = new HashMap<String, byte[]>();
+		/** Thread running the sender, null when not running, guarded by this. */
+		private Thread thread;
+		/** Whether the sender was started, guarded by this. */
+		private boolean submitted;
+		/** Whether the sender was stopped, guarded by this. */
+		private boolean stopped;
+		/** Connection settings version the client was created with. */
+		int clientVersion;
+		/** Write stall watchdog, null if none. */
+		ScheduledFuture<?> watchdog;
+		/** Write timeout the watchdog runs for, in seconds. */
+		int watchdogTimeout;
+
+		/**
+		 * Starts the sender, once.
+		 */
+		void start() {
+			synchronized (this) {
+				if (submitted)
+					return;
+				submitted = true;
+			}
+			Executor e = executor;
+			if (e != null) {
+				try {
+					e.execute( this);
+					return;
+				} catch (RejectedExecutionException ex) {
+					dbg( "Executor rejected the sender, starting a thread: " + ex);
+				}
+			}
+			SenderThreads.newThread( this, NAME).start();
+		}
+
+		/**
+		 * Stops the sender, interrupting its thread. Pool threads are only
+		 * interrupted while they run the sender.
+		 */
+		synchronized void interrupt() {
+			stopped = true;
+			if (thread != null)
+				thread.interrupt();
+		}
 
 		/**
-		 * Initializes the socket appender.
+		 * Returns the thread running the sender, null if it is not running.
 		 */
-		SocketAppender() {
-			super( "Logentries Socket appender");
-			// Don't block shut down
-			setDaemon( true);
+		synchronized Thread getThread() {
+			return thread;
 		}
 
 		/**
@@ -339,21 +1254,85 @@ public class AsyncLogger {
 		 * @throws IOException
 		 */
 		void openConnection() throws IOException {
-			try{
+			boolean put;
+			String header = null;
+			LogentriesClient stale = null;
+			synchronized (settingsLock) {
+				// Settings changed since the client was created
+				if (this.le_client != null && clientVersion != transportVersion.get()) {
+					stale = this.le_client;
+					this.le_client = null;
+				}
 				if(this.le_client == null)
-					this.le_client = new LogentriesClient(httpPut, ssl);
+					this.le_client = createClient();
+				put = httpPut;
+				if (put)
+					header = String.format( "PUT /%s/hosts/%s/?realtime=1 HTTP/1.1\r\n\r\n", key, location);
+			}
+			// Closing may block on a TLS peer, never while holding the monitor
+			if (stale != null)
+				stale.close();
 
-				this.le_client.connect();
+			this.le_client.connect();
+			dbg( "Connected to " + this.le_client.getTarget());
 
-				if(httpPut){
-					final String f = "PUT /%s/hosts/%s/?realtime=1 HTTP/1.1\r\n\r\n";
-					final String header = String.format( f, key, location);
-					byte[] temp = header.getBytes( ASCII);
-					this.le_client.write( temp, 0, temp.length);
-				}
+			if(put){
+				byte[] temp = header.getBytes( ASCII);
+				this.le_client.write( temp, 0, temp.length);
+			}
+			lastWrite = System.nanoTime();
+		}
 
-			}catch(Exception e){
+		/**
+		 * Creates the client with the configured socket options, and adapts
+		 * the watchdog to the write timeout. Called with the settings lock.
+		 */
+		LogentriesClient createClient() {
+			clientVersion = transportVersion.get();
+			scheduleWatchdog();
+			LogentriesClient client = new LogentriesClient( httpPut, ssl);
+			client.setKeepAlive( keepAlive);
+			client.setVerifyHostname( verifyHostname);
+			client.setTimeout( (int) TimeUnit.SECONDS.toMillis( writeTimeout));
+			client.setEndpoints( endpoints);
+			client.setDnsTtl( TimeUnit.SECONDS.toMillis( dnsTtl));
+			return client;
+		}
+
+		/**
+		 * Runs the write stall watchdog as often as the write timeout requires.
+		 */
+		void scheduleWatchdog() {
+			if (watchdog != null && watchdogTimeout == writeTimeout)
+				return;
+			cancelWatchdog();
+			watchdogTimeout = writeTimeout;
+			if (writeTimeout > 0) {
+				long period = Math.max( MIN_WATCHDOG_PERIOD, TimeUnit.SECONDS.toMillis( writeTimeout) / 4);
+				watchdog = SharedScheduler.schedule( new Runnable() {
+					public void run() {
+						checkStall();
+					}
+				}, period);
+			}
+		}
 
+		void cancelWatchdog() {
+			if (watchdog != null) {
+				watchdog.cancel( false);
+				watchdog = null;
+			}
+		}
+
+		/**
+		 * Aborts the connection if a write is blocked for longer than the write
+		 * timeout. Runs on the shared scheduler.
+		 */
+		void checkStall() {
+			LogentriesClient client = le_client;
+			if (client != null && client.isStalled( TimeUnit.SECONDS.toNanos( writeTimeout))) {
+				dbg( "Write blocked for more than " + writeTimeout + "s, closing connection");
+				client.abort();
 			}
 		}
 
@@ -374,7 +1353,7 @@ public class AsyncLogger {
 
 					// Success, leave
 					return;
-				} catch (IOException e) {
+				} catch (Exception e) {
 					// Get information if in debug mode
 					if (debug) {
 						dbg( "Unable to connect to Logentries");
@@ -402,34 +1381,233 @@ public class AsyncLogger {
 
 		}
 
+		/**
+		 * Appends the event, prefixed with its token, to the line buffer.
+		 *
+		 * @return false if the event could not be formatted
+		 */
+		boolean encode( QueuedEvent event) {
+			if (event.formatter != null) {
+				try {
+					event.line = event.formatter.format( event.event);
+				} catch (RuntimeException e) {
+					dbg( "Unable to format event: " + e);
+					return false;
+				}
+				if (event.line == null)
+					return false;
+			}
+
+			byte[] t = null;
+			if (!httpPut) {
+				String name = event.token != null ? event.token : token;
+				t = tokens.get( name);
+				if (t == null) {
+					t = name.getBytes( UTF8);
+					tokens.put( name, t);
+				}
+			}
+
+			int max = maxEventSize;
+			if (max > 0 && (event.truncated || oversized( event, max))) {
+				byte[] bytes = event.bytes;
+				int length = event.length;
+				String line = event.line;
+				Redactor r = redactor;
+				if (r != null) {
+					// Redact before cutting, a secret across a cut would not be recognized
+					if (whole == null)
+						whole = new LineBuffer( 1024);
+					whole.reset();
+					if (bytes != null)
+						whole.appendLine( bytes, 0, length);
+					else
+						whole.appendText( line, 0, Integer.MAX_VALUE);
+					r.redact( whole.buf, 0, whole.length);
+					bytes = whole.buf;
+					length = whole.length;
+					line = null;
+				}
+				if (splitOversized)
+					split( bytes, length, line, t, max);
+				else
+					truncate( bytes, length, line, t, max);
+				// Don't hold on to a huge event
+				if (whole != null && whole.buf.length > MAX_BATCH)
+					whole = null;
+				return true;
+			}
+
+			if (t != null)
+				buffer.append( t, 0, t.length);
+			// Multi-line events are sent with unicode line separators, to display nicely in Logentries UI
+			int start = buffer.length;
+			if (event.bytes != null)
+				buffer.appendLine( event.bytes, 0, event.length);
+			else
+				buffer.appendText( event.line, 0, Integer.MAX_VALUE);
+			redact( start);
+			buffer.append( (byte) '\n');
+			return true;
+		}
+
+		/**
+		 * Masks sensitive values in the content appended since start. Masking
+		 * keeps the length, so size limits still hold. Oversized events are
+		 * redacted whole before they are cut.
+		 */
+		void redact( int start) {
+			Redactor r = redactor;
+			if (r != null)
+				r.redact( buffer.buf, start, buffer.length);
+		}
+
+		/**
+		 * Returns true if the encoded event is larger than max bytes.
+		 */
+		boolean oversized( QueuedEvent event, int max) {
+			// Cheap bounds first, new lines take 3 bytes and UTF-8 1 to 3 bytes per char
+			if (event.bytes != null) {
+				if (3L * event.length <= max)
+					return false;
+				return LineBuffer.lineLength( event.bytes, 0, event.length) > max;
+			}
+			int len = event.line.length();
+			if (len > max)
+				return true;
+			if (3L * len <= max)
+				return false;
+			return LineBuffer.textLength( event.line) > max;
+		}
+
+		/**
+		 * Appends the start of the event, given either encoded or as text,
+		 * followed by the truncation marker.
+		 */
+		void truncate( byte[] bytes, int length, String line, byte[] t, int max) {
+			if (t != null)
+				buffer.append( t, 0, t.length);
+			int limit = max - TRUNCATED.length;
+			if (bytes != null)
+				buffer.appendLine( bytes, 0, length, limit);
+			else
+				buffer.appendText( line, 0, limit);
+			buffer.append( TRUNCATED, 0, TRUNCATED.length);
+			buffer.append( (byte) '\n');
+		}
+
+		/**
+		 * Appends the event, given either encoded or as text, as several lines
+		 * of at most max bytes each, correlated by a random id.
+		 */
+		void split( byte[] bytes, int length, String line, byte[] t, int max) {
+			String id = Integer.toHexString( random.nextInt());
+			long remaining = bytes != null
+					? LineBuffer.lineLength( bytes, 0, length)
+					: LineBuffer.textLength( line);
+			int pos = 0;
+			for (int chunk = 1; ; chunk++) {
+				if (t != null)
+					buffer.append( t, 0, t.length);
+
+				// Whatever is left fits, unless the prefix is too long
+				byte[] prefix = ("[chunk " + id + " " + chunk + " end] ").getBytes( UTF8);
+				boolean last = remaining <= max - prefix.length;
+				if (!last)
+					prefix = ("[chunk " + id + " " + chunk + "] ").getBytes( UTF8);
+				buffer.append( prefix, 0, prefix.length);
+
+				int start = buffer.length;
+				if (bytes != null)
+					pos = buffer.appendLine( bytes, pos, length - pos, max - prefix.length);
+				else
+					pos = buffer.appendText( line, pos, max - prefix.length);
+				remaining -= buffer.length - start;
+				buffer.append( (byte) '\n');
+				if (last)
+					return;
+			}
+		}
+
 		/**
 		 * Initializes the connection and starts to log.
 		 *
 		 */
-		@Override
 		public void run() {
+			synchronized (this) {
+				if (stopped)
+					return;
+				thread = Thread.currentThread();
+			}
+			try {
+				send();
+			} finally {
+				synchronized (this) {
+					thread = null;
+				}
+				// Don't leave a pool thread interrupted
+				Thread.interrupted();
+			}
+		}
+
+		/**
+		 * Sends queued events until interrupted.
+		 */
+		void send() {
 			try {
 				// Open connection
 				reopenConnection();
 
 				// Send data in queue
 				while (true) {
-					// Take data from queue
-					String data = queue.take();
-
-					// Replace platform-independent carriage return with unicode line separator character to format multi-line events nicely in Logentries UI
-					data = data.replace(LINE_SEP, "\u2028");
-
-					String final_data = (!httpPut ? token + data : data) + '\n';
+					// Take data from queue, with whatever else is already waiting
+					buffer.reset();
+					QueuedEvent event = queue.take();
+					long now = System.nanoTime();
+					do {
+						// Build the final lines in the buffer, the event is not needed afterwards
+						int start = buffer.length;
+						boolean encoded = encode( event);
+						long end = System.nanoTime();
+						if (encoded)
+							latency.encoded( event.enqueued, now, end, buffer.length - start);
+						recycle( event);
+						now = end;
+					} while (buffer.length < batchSize && (event = queue.poll()) != null);
+					// Let throttled producers know there is room again
+					if (!drainListeners.isEmpty()) {
+						for (Runnable listener : drainListeners) {
+							try {
+								listener.run();
+							} catch (RuntimeException e) {
+								dbg( "Drain listener failed: " + e);
+							}
+						}
+					}
+					if (buffer.length == 0) {
+						latency.discard();
+						continue;
+					}
 
-					// Get bytes of final event
-					byte[] finalLine = final_data.getBytes(UTF8);
+					// Don't trust a connection that has been quiet for too long
+					long idle = TimeUnit.SECONDS.toNanos( idleTimeout);
+					if (idle > 0 && System.nanoTime() - lastWrite > idle) {
+						dbg( "Connection idle, reconnecting");
+						reopenConnection();
+					} else if (clientVersion != transportVersion.get()) {
+						dbg( "Connection settings changed, reconnecting");
+						reopenConnection();
+					}
 
 					// Send data, reconnect if needed
+					long writeStart = System.nanoTime();
 					while (true) {
 						try {
-							this.le_client.write( finalLine, 0, finalLine.length);
+							this.le_client.write( buffer.buf, 0, buffer.length);
+							lastWrite = System.nanoTime();
+							latency.written( writeStart, lastWrite);
 						} catch (IOException e) {
+							dbg( "Unable to send event: " + e);
 							// Reopen the lost connection
 							reopenConnection();
 							continue;
@@ -442,6 +1620,7 @@ public class AsyncLogger {
 				dbg( "Asynchronous socket writer interrupted");
 			}
 
+			cancelWatchdog();
 			closeConnection();
 		}
 	}
@@ -0,0 +1,103 @@
+package com.logentries.net;
+
+/**
+ * JMX view of a shared {@link AsyncLogger}, registered as
+ * <code>com.logentries:type=AsyncLogger,name=...</code>.
+ *
+ * <p>Settings take effect at once. Changing a connection setting makes the
+ * sender reconnect before its next write, queued events are kept.</p>
+ */
+public interface AsyncLoggerMXBean {
+
+	boolean getDebug();
+
+	void setDebug( boolean debug);
+
+	boolean getSsl();
+
+	void setSsl( boolean ssl);
+
+	boolean getKeepAlive();
+
+	void setKeepAlive( boolean keepAlive);
+
+	boolean getVerifyHostname();
+
+	void setVerifyHostname( boolean verify);
+
+	/** Idle timeout in seconds. */
+	int getIdleTimeout();
+
+	void setIdleTimeout( int seconds);
+
+	/** Write timeout in seconds. */
+	int getWriteTimeout();
+
+	void setWriteTimeout( int seconds);
+
+	String getEndpoints();
+
+	void setEndpoints( String endpoints);
+
+	/** DNS cache time in seconds. */
+	int getDnsTtl();
+
+	void setDnsTtl( int seconds);
+
+	/** Largest event size in bytes, 0 for none. */
+	int getMaxEventSize();
+
+	void setMaxEventSize( int bytes);
+
+	String getOversizePolicy();
+
+	void setOversizePolicy( String policy);
+
+	String getRedact();
+
+	void setRedact( String rules);
+
+	/** Slow event threshold in milliseconds, 0 for none. */
+	int getSlowEventThreshold();
+
+	void setSlowEventThreshold( int millis);
+
+	/** Longest time events are staged by their thread in milliseconds, 0 if not staged. */
+	int getStagingDelay();
+
+	void setStagingDelay( int millis);
+
+	/** Largest write in bytes. */
+	int getBatchSize();
+
+	void setBatchSize( int bytes);
+
+	/** Largest number of queued events. */
+	int getQueueSize();
+
+	void setQueueSize( int events);
+
+	/** Number of queued events. */
+	int getQueueLength();
+
+	/** Number of events dropped because the queue was full. */
+	long getDroppedEvents();
+
+	/** Number of events slower than the threshold. */
+	long getSlowEvents();
+
+	/** 99th percentile of the time from the queue to the wire, in microseconds. */
+	long getDeliveryLatencyP99();
+
+	/** Largest time from the queue to the wire, in microseconds. */
+	long getDeliveryLatencyMax();
+
+	long getDatagramsSent();
+
+	long getDatagramsTruncated();
+
+	long getDatagramErrors();
+
+	/** Reconnects before the next write. */
+	void reconnect();
+}
@@ -0,0 +1,171 @@
+package com.logentries.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AsyncLoggerMXBean} of a shared logger.
+ */
+final class AsyncLoggerManagement implements AsyncLoggerMXBean {
+
+	private final AsyncLogger logger;
+
+	AsyncLoggerManagement( AsyncLogger logger) {
+		this.logger = logger;
+	}
+
+	public boolean getDebug() {
+		return logger.getDebug();
+	}
+
+	public void setDebug( boolean debug) {
+		logger.setDebug( debug);
+	}
+
+	public boolean getSsl() {
+		return logger.getSsl();
+	}
+
+	public void setSsl( boolean ssl) {
+		logger.setSsl( ssl);
+	}
+
+	public boolean getKeepAlive() {
+		return logger.getKeepAlive();
+	}
+
+	public void setKeepAlive( boolean keepAlive) {
+		logger.setKeepAlive( keepAlive);
+	}
+
+	public boolean getVerifyHostname() {
+		return logger.getVerifyHostname();
+	}
+
+	public void setVerifyHostname( boolean verify) {
+		logger.setVerifyHostname( verify);
+	}
+
+	public int getIdleTimeout() {
+		return logger.getIdleTimeout();
+	}
+
+	public void setIdleTimeout( int seconds) {
+		logger.setIdleTimeout( seconds);
+	}
+
+	public int getWriteTimeout() {
+		return logger.getWriteTimeout();
+	}
+
+	public void setWriteTimeout( int seconds) {
+		logger.setWriteTimeout( seconds);
+	}
+
+	public String getEndpoints() {
+		return logger.getEndpoints();
+	}
+
+	public void setEndpoints( String endpoints) {
+		logger.setEndpoints( endpoints);
+	}
+
+	public int getDnsTtl() {
+		return logger.getDnsTtl();
+	}
+
+	public void setDnsTtl( int seconds) {
+		logger.setDnsTtl( seconds);
+	}
+
+	public int getMaxEventSize() {
+		return logger.getMaxEventSize();
+	}
+
+	public void setMaxEventSize( int bytes) {
+		logger.setMaxEventSize( bytes);
+	}
+
+	public String getOversizePolicy() {
+		return logger.getOversizePolicy();
+	}
+
+	public void setOversizePolicy( String policy) {
+		logger.setOversizePolicy( policy);
+	}
+
+	public String getRedact() {
+		return logger.getRedact();
+	}
+
+	public void setRedact( String rules) {
+		logger.setRedact( rules);
+	}
+
+	public int getSlowEventThreshold() {
+		return logger.getSlowEventThreshold();
+	}
+
+	public void setSlowEventThreshold( int millis) {
+		logger.setSlowEventThreshold( millis);
+	}
+
+	public int getStagingDelay() {
+		return logger.getStagingDelay();
+	}
+
+	public void setStagingDelay( int millis) {
+		logger.setStagingDelay( millis);
+	}
+
+	public int getBatchSize() {
+		return logger.getBatchSize();
+	}
+
+	public void setBatchSize( int bytes) {
+		logger.setBatchSize( bytes);
+	}
+
+	public int getQueueSize() {
+		return logger.getQueueSize();
+	}
+
+	public void setQueueSize( int events) {
+		logger.setQueueSize( events);
+	}
+
+	public int getQueueLength() {
+		return logger.getQueueLength();
+	}
+
+	public long getDroppedEvents() {
+		return logger.getDroppedEvents();
+	}
+
+	public long getSlowEvents() {
+		return logger.getSlowEvents();
+	}
+
+	public long getDeliveryLatencyP99() {
+		return TimeUnit.NANOSECONDS.toMicros( logger.getDeliveryLatency().getPercentile( 99));
+	}
+
+	public long getDeliveryLatencyMax() {
+		return TimeUnit.NANOSECONDS.toMicros( logger.getDeliveryLatency().getMax());
+	}
+
+	public long getDatagramsSent() {
+		return logger.getDatagramsSent();
+	}
+
+	public long getDatagramsTruncated() {
+		return logger.getDatagramsTruncated();
+	}
+
+	public long getDatagramErrors() {
+		return logger.getDatagramErrors();
+	}
+
+	public void reconnect() {
+		logger.reconnect();
+	}
+}
@@ -0,0 +1,206 @@
+package com.logentries.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fire-and-forget UDP transport.
+ *
+ * <p>Batches of lines are packed into as few datagrams as fit
+ * {@link #MAX_DATAGRAM} bytes, each holding whole lines. In syslog mode every
+ * line is sent as its own RFC 5424 message instead. Lines too long for a
+ * datagram are truncated at a character boundary. Sends never block on flow
+ * control and failed sends are counted, not retried.</p>
+ *
+ * <p>Used by the sender thread only, except the counters.</p>
+ */
+final class DatagramSender {
+
+	/** Largest payload, fits an Ethernet MTU with IPv6 and UDP headers. */
+	static final int MAX_DATAGRAM = 1400;
+	/** Syslog priority, facility user and severity informational. */
+	private static final String PRIORITY = "<14>1 ";
+	private static final Charset UTF8 = Charset.forName( "UTF-8");
+
+	/** Datagrams sent. */
+	final AtomicLong datagrams = new AtomicLong();
+	/** Lines sent. */
+	final AtomicLong lines = new AtomicLong();
+	/** Lines truncated to fit a datagram. */
+	final AtomicLong truncated = new AtomicLong();
+	/** Datagrams which failed to send. */
+	final AtomicLong errors = new AtomicLong();
+
+	/** Largest payload. */
+	private final int maxSize;
+	/** Staging area for truncated lines and syslog messages. */
+	private final byte[] packet;
+	private final DatagramPacket datagram;
+	private DatagramSocket socket;
+	/** RFC 5424 framing flag. */
+	private boolean syslog;
+
+	/** Syslog timestamp format, UTC. */
+	private SimpleDateFormat format;
+	/** " host - - - - " */
+	private byte[] host;
+	/** Second of the cached syslog header. */
+	private long headerSecond = Long.MIN_VALUE;
+	/** Cached "&lt;pri&gt;1 timestamp" prefix. */
+	private byte[] header;
+
+	DatagramSender( int maxSize) {
+		this.maxSize = maxSize;
+		this.packet = new byte[maxSize];
+		this.datagram = new DatagramPacket( packet, 0);
+	}
+
+	/**
+	 * Opens the socket, sending to the given address.
+	 *
+	 * @param address receiver
+	 * @param syslog RFC 5424 framing flag
+	 */
+	void open( SocketAddress address, boolean syslog) throws IOException {
+		close();
+		DatagramSocket s = new DatagramSocket();
+		s.connect( address);
+		this.socket = s;
+		this.syslog = syslog;
+		if (syslog && host == null) {
+			String name;
+			try {
+				name = InetAddress.getLocalHost().getHostName();
+			} catch (IOException e) {
+				name = "-";
+			}
+			host = (" " + name + " - - - - ").getBytes( UTF8);
+			format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+			format.setTimeZone( TimeZone.getTimeZone( "UTC"));
+		}
+	}
+
+	boolean isOpen() {
+		return socket != null;
+	}
+
+	/**
+	 * Closes the socket, may be called from any thread.
+	 */
+	void close() {
+		DatagramSocket s = socket;
+		if (s != null)
+			s.close();
+		socket = null;
+	}
+
+	/**
+	 * Sends the lines, each terminated by a line feed.
+	 *
+	 * @param buf buffer holding the lines
+	 * @param offset offset of the first line
+	 * @param length length of the lines
+	 */
+	void send( byte[] buf, int offset, int length) {
+		int end = offset + length;
+		int start = offset;
+		int pos = offset;
+		while (pos < end) {
+			int lineEnd = pos;
+			while (lineEnd < end && buf[lineEnd] != '\n')
+				lineEnd++;
+			if (lineEnd < end)
+				lineEnd++;
+			lines.incrementAndGet();
+
+			if (syslog) {
+				sendSyslog( buf, pos, lineEnd);
+			} else {
+				// Send what is packed if the line doesn't fit with it
+				if (pos > start && lineEnd - start > maxSize) {
+					transmit( buf, start, pos - start);
+					start = pos;
+				}
+				if (lineEnd - pos > maxSize) {
+					int n = boundary( buf, pos, maxSize - 1);
+					System.arraycopy( buf, pos, packet, 0, n);
+					packet[n] = '\n';
+					truncated.incrementAndGet();
+					transmit( packet, 0, n + 1);
+					start = lineEnd;
+				}
+			}
+			pos = lineEnd;
+		}
+		if (!syslog && pos > start)
+			transmit( buf, start, pos - start);
+	}
+
+	/**
+	 * Sends the line as an RFC 5424 message, one per datagram.
+	 */
+	private void sendSyslog( byte[] buf, int start, int end) {
+		if (end > start && buf[end - 1] == '\n')
+			end--;
+		byte[] h = header( System.currentTimeMillis());
+		System.arraycopy( h, 0, packet, 0, h.length);
+		System.arraycopy( host, 0, packet, h.length, host.length);
+		int n = h.length + host.length;
+		int room = maxSize - n;
+		int len = end - start;
+		if (len > room) {
+			len = boundary( buf, start, room);
+			truncated.incrementAndGet();
+		}
+		System.arraycopy( buf, start, packet, n, len);
+		transmit( packet, 0, n + len);
+	}
+
+	/**
+	 * Returns the syslog header prefix, formatted once per second.
+	 */
+	private byte[] header( long millis) {
+		long second = millis / 1000;
+		if (second != headerSecond) {
+			header = (PRIORITY + format.format( new Date( millis))).getBytes( UTF8);
+			headerSecond = second;
+		}
+		return header;
+	}
+
+	private void transmit( byte[] buf, int offset, int length) {
+		DatagramSocket s = socket;
+		if (s == null) {
+			errors.incrementAndGet();
+			return;
+		}
+		datagram.setData( buf, offset, length);
+		try {
+			s.send( datagram);
+			datagrams.incrementAndGet();
+		} catch (IOException e) {
+			// Fire and forget, the receiver may be down
+			errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the longest length up to the limit which doesn't split an UTF-8
+	 * encoded character.
+	 */
+	static int boundary( byte[] buf, int start, int limit) {
+		int n = limit;
+		while (n > 0 && (buf[start + n] & 0xc0) == 0x80)
+			n--;
+		return n;
+	}
+}
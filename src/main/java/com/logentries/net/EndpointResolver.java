@@ -0,0 +1,337 @@
+package com.logentries.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the addresses to connect to from an ordered list of endpoints.
+ *
+ * <p>Host names are resolved to all their addresses, which are cached for a
+ * TTL, so reconnects don't wait for DNS. Connections are spread round-robin
+ * over the addresses of an endpoint. Addresses that failed are skipped for a
+ * growing backoff period; they are only tried once every healthy address of
+ * every endpoint failed too. Failed lookups are retried after the same
+ * backoff, with stale addresses kept meanwhile, so a transient DNS failure
+ * doesn't hide an endpoint for the whole TTL. Earlier endpoints are
+ * preferred, so a local relay can be listed before the Logentries
+ * servers.</p>
+ *
+ * <p>Endpoints written "unix:/path" are Unix domain sockets, see
+ * {@link UnixSockets}. Endpoints written "udp:host:port" receive lines
+ * packed into datagrams, "syslog:host:port" RFC 5424 messages over UDP.</p>
+ *
+ * <p>Not thread safe, used by the sender thread only.</p>
+ */
+class EndpointResolver {
+
+	/** Default time addresses are cached, in milliseconds. */
+	static final long DEFAULT_TTL = 60000;
+	/** Backoff after the first failure, in milliseconds. */
+	private static final long MIN_BACKOFF = 1000;
+	/** Maximal backoff, in milliseconds. */
+	private static final long MAX_BACKOFF = 60000;
+
+	/** Endpoints in order of preference. */
+	private final List<Endpoint> endpoints;
+	/** Time addresses are cached, in nanoseconds. */
+	private final long ttl;
+	/** Prefix of Unix domain socket endpoints. */
+	static final String UNIX_PREFIX = "unix:";
+	/** Prefix of UDP endpoints. */
+	static final String UDP_PREFIX = "udp:";
+	/** Prefix of RFC 5424 syslog over UDP endpoints. */
+	static final String SYSLOG_PREFIX = "syslog:";
+
+	/** Health of the addresses which failed, by {@link Target#key()}. */
+	private final Map<Object, Health> health = new HashMap<Object, Health>();
+
+	/**
+	 * Creates the resolver.
+	 *
+	 * @param endpoints endpoints in order of preference
+	 * @param ttl time addresses are cached, in milliseconds
+	 */
+	EndpointResolver( List<Endpoint> endpoints, long ttl) {
+		if (endpoints.isEmpty())
+			throw new IllegalArgumentException( "No endpoint");
+		this.endpoints = endpoints;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos( ttl);
+	}
+
+	/**
+	 * Parses a list of endpoints separated by commas, such as
+	 * "unix:/run/relay.sock, api.logentries.com:10000". IPv6 addresses are
+	 * written in brackets, "[::1]:10000".
+	 *
+	 * @param spec endpoint list
+	 * @param defaultPort port of endpoints without one
+	 * @return endpoints in order
+	 */
+	static List<Endpoint> parse( String spec, int defaultPort) {
+		List<Endpoint> list = new ArrayList<Endpoint>();
+		for (String part : spec.split( ",")) {
+			String s = part.trim();
+			if (s.length() == 0)
+				continue;
+			if (s.startsWith( UNIX_PREFIX)) {
+				String path = s.substring( UNIX_PREFIX.length()).trim();
+				if (path.length() == 0)
+					throw new IllegalArgumentException( "Invalid endpoint " + s);
+				list.add( new Endpoint( path));
+				continue;
+			}
+
+			String scheme = null;
+			if (s.startsWith( UDP_PREFIX))
+				scheme = UDP_PREFIX;
+			else if (s.startsWith( SYSLOG_PREFIX))
+				scheme = SYSLOG_PREFIX;
+			if (scheme != null)
+				s = s.substring( scheme.length()).trim();
+
+			String host = s;
+			int port = defaultPort;
+			int colon = s.lastIndexOf( ':');
+			if (s.startsWith( "[")) {
+				int end = s.indexOf( ']');
+				if (end < 0)
+					throw new IllegalArgumentException( "Invalid endpoint " + s);
+				host = s.substring( 1, end);
+				if (colon > end)
+					port = parsePort( s, s.substring( colon + 1));
+			} else if (colon >= 0) {
+				host = s.substring( 0, colon);
+				port = parsePort( s, s.substring( colon + 1));
+			}
+			list.add( new Endpoint( scheme, host, port));
+		}
+		return list;
+	}
+
+	private static int parsePort( String endpoint, String port) {
+		try {
+			int p = Integer.parseInt( port.trim());
+			if (p > 0 && p < 65536)
+				return p;
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException( "Invalid port in endpoint " + endpoint);
+	}
+
+	/**
+	 * Returns the endpoints.
+	 */
+	List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Returns the addresses to try, in order: the healthy addresses of each
+	 * endpoint, starting at the next one of the round, then the failed ones,
+	 * those closest to the end of their backoff first.
+	 *
+	 * @return addresses to try, empty if no host could be resolved
+	 */
+	List<Target> candidates() {
+		long now = now();
+		List<Target> healthy = new ArrayList<Target>();
+		List<Target> failed = new ArrayList<Target>();
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.path != null) {
+				Target target = new Target( endpoint, null);
+				Health h = health.get( target.key());
+				if (h == null || now - h.retryAt >= 0)
+					healthy.add( target);
+				else
+					failed.add( target);
+				continue;
+			}
+			InetAddress[] addresses = resolve( endpoint, now);
+			int n = addresses.length;
+			if (n == 0)
+				continue;
+			int start = (endpoint.next++ & Integer.MAX_VALUE) % n;
+			for (int i = 0; i < n; i++) {
+				Target target = new Target( endpoint, new InetSocketAddress( addresses[(start + i) % n], endpoint.port));
+				Health h = health.get( target.key());
+				if (h == null || now - h.retryAt >= 0)
+					healthy.add( target);
+				else
+					failed.add( target);
+			}
+		}
+		if (failed.size() > 1) {
+			Collections.sort( failed, new Comparator<Target>() {
+				public int compare( Target a, Target b) {
+					long d = health.get( a.key()).retryAt - health.get( b.key()).retryAt;
+					return d < 0 ? -1 : d > 0 ? 1 : 0;
+				}
+			});
+		}
+		healthy.addAll( failed);
+		return healthy;
+	}
+
+	/**
+	 * Marks the address as failed, it is avoided for a backoff period
+	 * doubling with each consecutive failure.
+	 */
+	void failed( Target target) {
+		Health h = health.get( target.key());
+		if (h == null) {
+			h = new Health();
+			health.put( target.key(), h);
+		}
+		h.retryAt = now() + backoff( h.failures++);
+	}
+
+	/**
+	 * Returns the backoff after the given number of consecutive failures, in
+	 * nanoseconds.
+	 */
+	private static long backoff( int failures) {
+		long backoff = MAX_BACKOFF;
+		if (failures < 16)
+			backoff = Math.min( MAX_BACKOFF, MIN_BACKOFF << failures);
+		return TimeUnit.MILLISECONDS.toNanos( backoff);
+	}
+
+	/**
+	 * Marks the address as healthy again.
+	 */
+	void succeeded( Target target) {
+		health.remove( target.key());
+	}
+
+	/**
+	 * Returns the cached addresses of the endpoint, resolving them again once
+	 * the TTL expired. If the lookup fails, stale addresses are kept and the
+	 * lookup is retried after a backoff, not the TTL.
+	 */
+	private InetAddress[] resolve( Endpoint endpoint, long now) {
+		if (endpoint.addresses != null && now - endpoint.expires < 0)
+			return endpoint.addresses;
+		try {
+			endpoint.addresses = lookup( endpoint.host);
+			endpoint.lookupFailures = 0;
+			endpoint.expires = now + ttl;
+		} catch (UnknownHostException e) {
+			if (endpoint.addresses == null)
+				endpoint.addresses = new InetAddress[0];
+			endpoint.expires = now + Math.min( ttl, backoff( endpoint.lookupFailures++));
+		}
+		return endpoint.addresses;
+	}
+
+	/**
+	 * Resolves all A and AAAA records of the host.
+	 */
+	InetAddress[] lookup( String host) throws UnknownHostException {
+		return InetAddress.getAllByName( host);
+	}
+
+	/**
+	 * Returns the current time in nanoseconds.
+	 */
+	long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Host and port, with the cached addresses of the host, or the path of a
+	 * Unix domain socket.
+	 */
+	static final class Endpoint {
+		final String host;
+		final int port;
+		/** Socket file, null for TCP and UDP endpoints. */
+		final String path;
+		/** {@link #UDP_PREFIX} or {@link #SYSLOG_PREFIX} for UDP endpoints, null otherwise. */
+		final String scheme;
+		/** Cached addresses, null until resolved. */
+		InetAddress[] addresses;
+		/** Expiry of the cached addresses, in nanoseconds. */
+		long expires;
+		/** Consecutive failed lookups. */
+		int lookupFailures;
+		/** Round-robin position. */
+		int next;
+
+		Endpoint( String host, int port) {
+			this( null, host, port);
+		}
+
+		Endpoint( String scheme, String host, int port) {
+			this.scheme = scheme;
+			this.host = host;
+			this.port = port;
+			this.path = null;
+		}
+
+		Endpoint( String path) {
+			this.scheme = null;
+			this.host = null;
+			this.port = 0;
+			this.path = path;
+		}
+
+		/**
+		 * Returns true for UDP endpoints.
+		 */
+		boolean isDatagram() {
+			return scheme != null;
+		}
+
+		@Override
+		public String toString() {
+			if (path != null)
+				return UNIX_PREFIX + path;
+			return (scheme != null ? scheme : "") + host + ":" + port;
+		}
+	}
+
+	/**
+	 * Address to connect to, with the endpoint it belongs to.
+	 */
+	static final class Target {
+		final Endpoint endpoint;
+		/** Address of TCP endpoints, null for Unix domain sockets. */
+		final InetSocketAddress address;
+
+		Target( Endpoint endpoint, InetSocketAddress address) {
+			this.endpoint = endpoint;
+			this.address = address;
+		}
+
+		/**
+		 * Returns the key the health of the address is tracked by.
+		 */
+		Object key() {
+			return address != null ? address : endpoint.path;
+		}
+
+		@Override
+		public String toString() {
+			if (address == null)
+				return endpoint.toString();
+			return (endpoint.scheme != null ? endpoint.scheme : "") + endpoint.host + "/" + address.getAddress().getHostAddress() + ":" + address.getPort();
+		}
+	}
+
+	/**
+	 * Failure count and end of the backoff of an address.
+	 */
+	private static final class Health {
+		int failures;
+		long retryAt;
+	}
+}
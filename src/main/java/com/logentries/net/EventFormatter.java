@@ -0,0 +1,18 @@
+package com.logentries.net;
+
+/**
+ * Renders events queued with {@link AsyncLogger#addEventToQueue} on the
+ * sender thread, keeping formatting off the application threads.
+ *
+ * @param <T> event type
+ */
+public interface EventFormatter<T> {
+
+	/**
+	 * Formats the event.
+	 *
+	 * @param event event to format
+	 * @return rendered line
+	 */
+	String format( T event);
+}
@@ -0,0 +1,194 @@
+package com.logentries.net;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded blocking queue of events, as {@link java.util.concurrent.ArrayBlockingQueue}
+ * but with an array which starts small and doubles up to the capacity.
+ *
+ * <p>Loggers that never log, or log a little, then hold a few slots instead
+ * of the full capacity. Only the sender blocks, in {@link #take()}; producers
+ * never wait for room.</p>
+ */
+final class EventQueue {
+
+	/** Largest number of events. */
+	private final int capacity;
+	/** Guards all state. */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when an event is added. */
+	private final Condition notEmpty = lock.newCondition();
+	/** Ring of events. */
+	private QueuedEvent[] items;
+	/** Index of the oldest event. */
+	private int head;
+	/** Number of events. */
+	private int count;
+
+	/**
+	 * Creates the queue.
+	 *
+	 * @param initial initial number of slots
+	 * @param capacity largest number of events
+	 */
+	EventQueue( int initial, int capacity) {
+		this.capacity = capacity;
+		this.items = new QueuedEvent[Math.min( initial, capacity)];
+	}
+
+	/**
+	 * Adds the event if there is room.
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean offer( QueuedEvent event) {
+		lock.lock();
+		try {
+			if (count == items.length) {
+				if (count == capacity)
+					return false;
+				grow();
+			}
+			items[index( count)] = event;
+			count++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the events in order, at once, removing the oldest events as
+	 * needed to stay within the limit. If the events don't fit on their own,
+	 * the first ones are removed too.
+	 *
+	 * @param events events to add
+	 * @param n number of events
+	 * @param limit largest number of events, if below the capacity
+	 * @param removed receives the removed events, at least n long
+	 * @return number of events removed
+	 */
+	int offer( QueuedEvent[] events, int n, int limit, QueuedEvent[] removed) {
+		lock.lock();
+		try {
+			int max = Math.min( limit, capacity);
+			int skip = Math.max( 0, n - max);
+			int dropped = 0;
+			for (; dropped < skip; dropped++)
+				removed[dropped] = events[dropped];
+			int excess = Math.min( count + n - skip - max, n - skip);
+			for (int i = 0; i < excess; i++)
+				removed[dropped++] = remove();
+			while (count + n - skip > items.length)
+				grow();
+			for (int i = skip; i < n; i++) {
+				items[index( count)] = events[i];
+				count++;
+			}
+			if (n > skip)
+				notEmpty.signal();
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest event.
+	 *
+	 * @return oldest event, null if empty
+	 */
+	QueuedEvent poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest event, waiting for one if empty.
+	 *
+	 * @return oldest event
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	QueuedEvent take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0)
+				notEmpty.await();
+			return remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the oldest event without removing it, null if empty.
+	 */
+	QueuedEvent peek() {
+		lock.lock();
+		try {
+			return count == 0 ? null : items[head];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	int remainingCapacity() {
+		return capacity - size();
+	}
+
+	/**
+	 * Returns the number of slots currently allocated.
+	 */
+	int slots() {
+		lock.lock();
+		try {
+			return items.length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private QueuedEvent remove() {
+		QueuedEvent event = items[head];
+		items[head] = null;
+		head = index( 1);
+		count--;
+		return event;
+	}
+
+	private int index( int offset) {
+		int i = head + offset;
+		return i < items.length ? i : i - items.length;
+	}
+
+	/**
+	 * Doubles the array, unwrapping the ring. Called with the lock.
+	 */
+	private void grow() {
+		QueuedEvent[] bigger = new QueuedEvent[Math.min( items.length * 2, capacity)];
+		int tail = Math.min( count, items.length - head);
+		System.arraycopy( items, head, bigger, 0, tail);
+		System.arraycopy( items, 0, bigger, tail, count - tail);
+		items = bigger;
+		head = 0;
+	}
+}
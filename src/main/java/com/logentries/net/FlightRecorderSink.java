@@ -0,0 +1,105 @@
+package com.logentries.net;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reports slow events to JDK Flight Recorder as
+ * <code>com.logentries.SlowEvent</code>.
+ *
+ * <p>The event type is defined at run time with <code>jdk.jfr.EventFactory</code>,
+ * through reflection, so the library builds and runs on JVMs without the
+ * <code>jdk.jfr</code> API. The event is disabled unless a recording enables
+ * it. Slow events are rate limited, so the cost of reflection doesn't
+ * matter.</p>
+ */
+final class FlightRecorderSink implements LatencyTracker.Sink {
+
+	private static final String JFR = "jdk.jfr.";
+
+	/** Factory of the event type. */
+	private final Object factory;
+	private final Method newEvent;
+	private final Method isEnabled;
+	private final Method set;
+	private final Method commit;
+
+	private FlightRecorderSink() throws Exception {
+		Class<?> element = Class.forName( JFR + "AnnotationElement");
+		Class<?> descriptor = Class.forName( JFR + "ValueDescriptor");
+		Class<?> factoryClass = Class.forName( JFR + "EventFactory");
+		Class<?> eventClass = Class.forName( JFR + "Event");
+		Constructor<?> newElement = element.getConstructor( Class.class, Object.class);
+		Constructor<?> newDescriptor = descriptor.getConstructor( Class.class, String.class, List.class);
+
+		List<Object> type = new ArrayList<Object>();
+		type.add( newElement.newInstance( annotation( "Name"), "com.logentries.SlowEvent"));
+		type.add( newElement.newInstance( annotation( "Label"), "Slow Logentries Event"));
+		type.add( newElement.newInstance( annotation( "Category"), new String[] { "Logentries" }));
+		type.add( newElement.newInstance( annotation( "Description"), "Log event delivered later than the slow event threshold"));
+		type.add( newElement.newInstance( annotation( "StackTrace"), Boolean.FALSE));
+
+		Object nanos = newElement.newInstance( annotation( "Timespan"), "NANOSECONDS");
+		Object bytes = newElement.newInstance( annotation( "DataAmount"), "BYTES");
+		List<Object> fields = new ArrayList<Object>();
+		fields.add( newDescriptor.newInstance( long.class, "queueWait",
+				Arrays.asList( newElement.newInstance( annotation( "Label"), "Queue Wait"), nanos)));
+		fields.add( newDescriptor.newInstance( long.class, "encode",
+				Arrays.asList( newElement.newInstance( annotation( "Label"), "Encode"), nanos)));
+		fields.add( newDescriptor.newInstance( long.class, "write",
+				Arrays.asList( newElement.newInstance( annotation( "Label"), "Write"),
+						newElement.newInstance( annotation( "Description"), "Time to write the batch holding the event, reconnections included"),
+						nanos)));
+		fields.add( newDescriptor.newInstance( long.class, "delivery",
+				Arrays.asList( newElement.newInstance( annotation( "Label"), "Delivery"),
+						newElement.newInstance( annotation( "Description"), "Time from the queue to the wire"),
+						nanos)));
+		fields.add( newDescriptor.newInstance( int.class, "bytes",
+				Arrays.asList( newElement.newInstance( annotation( "Label"), "Size"), bytes)));
+
+		factory = factoryClass.getMethod( "create", List.class, List.class).invoke( null, type, fields);
+		newEvent = factoryClass.getMethod( "newEvent");
+		isEnabled = eventClass.getMethod( "isEnabled");
+		set = eventClass.getMethod( "set", int.class, Object.class);
+		commit = eventClass.getMethod( "commit");
+	}
+
+	/**
+	 * Creates the sink, registering a new event type. Loggers share the one
+	 * of {@link LatencyTracker#flightRecorderSink()}.
+	 *
+	 * @return the sink, null if the JVM has no <code>jdk.jfr</code> API
+	 */
+	static FlightRecorderSink create() {
+		try {
+			return new FlightRecorderSink();
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	public void slowEvent( long queueWait, long encode, long write, long delivery, int bytes) {
+		try {
+			Object event = newEvent.invoke( factory);
+			if (!((Boolean) isEnabled.invoke( event)).booleanValue())
+				return;
+			set.invoke( event, 0, queueWait);
+			set.invoke( event, 1, encode);
+			set.invoke( event, 2, write);
+			set.invoke( event, 3, delivery);
+			set.invoke( event, 4, bytes);
+			commit.invoke( event);
+		} catch (Exception e) {
+			// Not reported, as when no recording runs
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotation( String name) throws ClassNotFoundException {
+		return (Class<? extends Annotation>) Class.forName( JFR + name);
+	}
+}
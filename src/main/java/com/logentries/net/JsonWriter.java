@@ -0,0 +1,171 @@
+package com.logentries.net;
+
+/**
+ * Minimal streaming JSON writer used by the appenders' JSON event format.
+ *
+ * <p>Values are escaped straight into the target {@link StringBuilder}, so an
+ * event can be rendered without building maps or intermediate strings. The
+ * builder is meant to be reused between events, see {@link #reset()}.</p>
+ *
+ * <p>Line breaks and the unicode line separators are always escaped, so the
+ * output fits on a single line of the Logentries token protocol.</p>
+ */
+public final class JsonWriter {
+
+	/** Hex digits for unicode escapes. */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Output buffer. */
+	private final StringBuilder out;
+	/** Whether a separator is needed before the next name or value. */
+	private boolean needsComma;
+
+	/**
+	 * Creates a writer appending to the given builder.
+	 *
+	 * @param out output buffer
+	 */
+	public JsonWriter( StringBuilder out) {
+		this.out = out;
+	}
+
+	/**
+	 * Clears the output buffer, keeping its capacity.
+	 *
+	 * @return this writer
+	 */
+	public JsonWriter reset() {
+		out.setLength( 0);
+		needsComma = false;
+		return this;
+	}
+
+	/**
+	 * Returns the output buffer.
+	 */
+	public StringBuilder buffer() {
+		return out;
+	}
+
+	public JsonWriter beginObject() {
+		separate();
+		out.append( '{');
+		needsComma = false;
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		out.append( '}');
+		needsComma = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		separate();
+		out.append( '[');
+		needsComma = false;
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		out.append( ']');
+		needsComma = true;
+		return this;
+	}
+
+	/**
+	 * Writes the name of the next object member.
+	 *
+	 * @param name member name
+	 * @return this writer
+	 */
+	public JsonWriter name( String name) {
+		separate();
+		string( name);
+		out.append( ':');
+		needsComma = false;
+		return this;
+	}
+
+	/**
+	 * Writes a string value, or null.
+	 *
+	 * @param value value to write
+	 * @return this writer
+	 */
+	public JsonWriter value( CharSequence value) {
+		separate();
+		if (value == null)
+			out.append( "null");
+		else
+			string( value);
+		needsComma = true;
+		return this;
+	}
+
+	/**
+	 * Writes a number value.
+	 *
+	 * @param value value to write
+	 * @return this writer
+	 */
+	public JsonWriter value( long value) {
+		separate();
+		out.append( value);
+		needsComma = true;
+		return this;
+	}
+
+	private void separate() {
+		if (needsComma)
+			out.append( ',');
+	}
+
+	private void string( CharSequence s) {
+		out.append( '"');
+		int len = s.length();
+		int start = firstEscape( s, len);
+		if (start == len) {
+			// Common case, nothing to escape
+			out.append( s);
+			out.append( '"');
+			return;
+		}
+		out.append( s, 0, start);
+		for (int i = start; i < len; i++) {
+			char c = s.charAt( i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+				continue;
+
+			// Flush the plain run in one go, then the escape
+			out.append( s, start, i);
+			start = i + 1;
+			switch (c) {
+				case '"': out.append( "\\\""); break;
+				case '\\': out.append( "\\\\"); break;
+				case '\n': out.append( "\\n"); break;
+				case '\r': out.append( "\\r"); break;
+				case '\t': out.append( "\\t"); break;
+				case '\b': out.append( "\\b"); break;
+				case '\f': out.append( "\\f"); break;
+				default:
+					out.append( "\\u")
+						.append( HEX[(c >> 12) & 0xf])
+						.append( HEX[(c >> 8) & 0xf])
+						.append( HEX[(c >> 4) & 0xf])
+						.append( HEX[c & 0xf]);
+			}
+		}
+		out.append( s, start, len);
+		out.append( '"');
+	}
+
+	private static int firstEscape( CharSequence s, int len) {
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt( i);
+			if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029')
+				return i;
+		}
+		return len;
+	}
+}
@@ -0,0 +1,133 @@
+package com.logentries.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, with log-linear buckets as in HDR
+ * histograms.
+ *
+ * <p>Each power of two is split into 16 buckets, so recorded values are
+ * known within about 6% over the whole range, in a fixed array of 960
+ * counters allocated with the first value. Values are recorded by a single
+ * thread, the sender, and may be read by any thread.</p>
+ */
+public final class LatencyHistogram {
+
+	/** Bits of the value kept below its highest bit. */
+	private static final int SUB_BITS = 4;
+	/** Buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Number of buckets, up to {@link Long#MAX_VALUE}. */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/** Counters of the buckets, null until a value is recorded. */
+	private volatile AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value, by the single writer thread.
+	 *
+	 * @param nanos latency in nanoseconds, negative values count as 0
+	 */
+	public void record( long nanos) {
+		long value = Math.max( 0, nanos);
+		int i = index( value);
+		AtomicLongArray counts = this.counts;
+		if (counts == null)
+			this.counts = counts = new AtomicLongArray( BUCKETS);
+		// Single writer, plain increments published with ordered writes
+		counts.lazySet( i, counts.get( i) + 1);
+		total.lazySet( total.get() + value);
+		if (value > max.get())
+			max.lazySet( value);
+		count.lazySet( count.get() + 1);
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the largest recorded value in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values in nanoseconds, 0 if none.
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded
+	 * values fall, within the bucket precision.
+	 *
+	 * @param percentile percentage, from 0 to 100
+	 * @return latency in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getPercentile( double percentile) {
+		long n = count.get();
+		AtomicLongArray counts = this.counts;
+		if (n == 0 || counts == null)
+			return 0;
+		long rank = Math.max( 1, (long) Math.ceil( Math.min( 100, Math.max( 0, percentile)) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get( i);
+			if (seen >= rank)
+				return Math.min( highest( i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Summarizes the histogram in microseconds.
+	 */
+	@Override
+	public String toString() {
+		return "count=" + getCount()
+				+ " mean=" + micros( getMean())
+				+ " p50=" + micros( getPercentile( 50))
+				+ " p99=" + micros( getPercentile( 99))
+				+ " p99.9=" + micros( getPercentile( 99.9))
+				+ " max=" + micros( getMax()) + "us";
+	}
+
+	private static long micros( long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros( nanos);
+	}
+
+	/**
+	 * Returns the bucket of a value: values below 16 have their own bucket,
+	 * larger ones are placed by their highest bit and the 4 bits below it.
+	 */
+	static int index( long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros( value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the largest value of a bucket.
+	 */
+	static long highest( int index) {
+		int block = index / SUB_BUCKETS;
+		long sub = index % SUB_BUCKETS;
+		if (block == 0)
+			return sub;
+		long lowest = (SUB_BUCKETS + sub) << (block - 1);
+		return lowest + (1L << (block - 1)) - 1;
+	}
+}
@@ -0,0 +1,157 @@
+package com.logentries.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long events take from the queue to the wire.
+ *
+ * <p>The sender reports each encoded event of a batch, then the write of the
+ * batch. Queue wait, encode time, write time and the whole delivery are
+ * recorded in {@link LatencyHistogram}s. Events whose delivery took longer
+ * than the threshold are counted and, at most {@value #MAX_SLOW_EVENTS} per
+ * second, passed to the slow event sink, JDK Flight Recorder when it is
+ * available. The sink is only set up once a threshold is, and shared by all
+ * trackers, so loggers without a threshold never touch Flight Recorder.</p>
+ *
+ * <p>Only the sender thread calls {@link #encoded} and {@link #written}.</p>
+ */
+final class LatencyTracker {
+
+	/** Most slow events reported to the sink per second. */
+	static final int MAX_SLOW_EVENTS = 100;
+
+	/**
+	 * Receives slow events, all durations in nanoseconds.
+	 */
+	interface Sink {
+		void slowEvent( long queueWait, long encode, long write, long delivery, int bytes);
+	}
+
+	final LatencyHistogram queueWait = new LatencyHistogram();
+	final LatencyHistogram encode = new LatencyHistogram();
+	final LatencyHistogram write = new LatencyHistogram();
+	final LatencyHistogram delivery = new LatencyHistogram();
+	/** Number of events slower than the threshold. */
+	final AtomicLong slowEvents = new AtomicLong();
+
+	/** Slow event threshold in nanoseconds, 0 for none. */
+	volatile long threshold;
+	/** Slow event sink, null if none. */
+	volatile Sink sink;
+
+	/*
+	 * Events of the current batch, parallel arrays
+	 */
+	private long[] enqueued = new long[64];
+	private long[] encodeStarted = new long[64];
+	private long[] encodeTimes = new long[64];
+	private int[] sizes = new int[64];
+	private int events;
+
+	/** Start of the current second of slow event reports. */
+	private long windowStart;
+	/** Slow events reported in the current second. */
+	private int reported;
+
+	/**
+	 * Sets the slow event threshold, and the Flight Recorder sink with the
+	 * first threshold.
+	 *
+	 * @param nanos threshold in nanoseconds, 0 for none
+	 */
+	void setThreshold( long nanos) {
+		if (nanos > 0 && sink == null)
+			sink = flightRecorderSink();
+		threshold = nanos;
+	}
+
+	/**
+	 * Records an event encoded in the current batch.
+	 *
+	 * @param enqueuedAt time the event was queued
+	 * @param start time encoding started
+	 * @param end time encoding ended
+	 * @param bytes encoded size, token included
+	 */
+	void encoded( long enqueuedAt, long start, long end, int bytes) {
+		queueWait.record( start - enqueuedAt);
+		encode.record( end - start);
+		if (events == enqueued.length)
+			grow();
+		enqueued[events] = enqueuedAt;
+		encodeStarted[events] = start;
+		encodeTimes[events] = end - start;
+		sizes[events] = bytes;
+		events++;
+	}
+
+	/**
+	 * Records the write of the current batch and starts a new one.
+	 *
+	 * @param start time the first write attempt started
+	 * @param end time the write completed
+	 */
+	void written( long start, long end) {
+		long writeTime = end - start;
+		write.record( writeTime);
+		long limit = threshold;
+		for (int i = 0; i < events; i++) {
+			long total = end - enqueued[i];
+			delivery.record( total);
+			if (limit > 0 && total > limit)
+				slow( encodeStarted[i] - enqueued[i], encodeTimes[i], writeTime, total, sizes[i], end);
+		}
+		events = 0;
+	}
+
+	/**
+	 * Forgets the events of the current batch, they were not sent.
+	 */
+	void discard() {
+		events = 0;
+	}
+
+	private void slow( long wait, long encodeTime, long writeTime, long total, int bytes, long now) {
+		slowEvents.incrementAndGet();
+		if (sink == null)
+			return;
+		if (now - windowStart > TimeUnit.SECONDS.toNanos( 1)) {
+			windowStart = now;
+			reported = 0;
+		}
+		if (reported++ < MAX_SLOW_EVENTS)
+			sink.slowEvent( wait, encodeTime, writeTime, total, bytes);
+	}
+
+	private void grow() {
+		int n = enqueued.length * 2;
+		long[] e = new long[n];
+		long[] s = new long[n];
+		long[] t = new long[n];
+		int[] b = new int[n];
+		System.arraycopy( enqueued, 0, e, 0, events);
+		System.arraycopy( encodeStarted, 0, s, 0, events);
+		System.arraycopy( encodeTimes, 0, t, 0, events);
+		System.arraycopy( sizes, 0, b, 0, events);
+		enqueued = e;
+		encodeStarted = s;
+		encodeTimes = t;
+		sizes = b;
+	}
+
+	/**
+	 * Returns the Flight Recorder sink, null if the JVM has no
+	 * <code>jdk.jfr</code> API.
+	 */
+	static Sink flightRecorderSink() {
+		return FlightRecorder.SINK;
+	}
+
+	/**
+	 * Lazily created sink, the event type is registered once per process.
+	 */
+	private static final class FlightRecorder {
+		static final Sink SINK = FlightRecorderSink.create();
+	}
+}
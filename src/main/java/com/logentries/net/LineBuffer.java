@@ -0,0 +1,233 @@
+package com.logentries.net;
+
+/**
+ * Growable byte buffer the socket appender assembles outgoing lines in.
+ *
+ * <p>It is owned by the sender thread and reused for every event, so the wire
+ * format is built without intermediate strings.</p>
+ */
+final class LineBuffer {
+
+	/** UTF-8 encoding of the unicode line separator used for multi-line events. */
+	static final byte[] LINE_SEPARATOR = { (byte) 0xe2, (byte) 0x80, (byte) 0xa8 };
+
+	/** Buffer content. */
+	byte[] buf;
+	/** Number of valid bytes. */
+	int length;
+
+	LineBuffer( int capacity) {
+		buf = new byte[capacity];
+	}
+
+	void reset() {
+		length = 0;
+	}
+
+	/**
+	 * Makes room for the given number of bytes.
+	 */
+	void ensure( int extra) {
+		int needed = length + extra;
+		if (needed > buf.length) {
+			byte[] b = new byte[Math.max( needed, buf.length * 2)];
+			System.arraycopy( buf, 0, b, 0, length);
+			buf = b;
+		}
+	}
+
+	void append( byte b) {
+		ensure( 1);
+		buf[length++] = b;
+	}
+
+	void append( byte[] b, int offset, int len) {
+		ensure( len);
+		System.arraycopy( b, offset, buf, length, len);
+		length += len;
+	}
+
+	/**
+	 * Appends an UTF-8 encoded event. A trailing line break is dropped and
+	 * inner new lines are replaced with the unicode line separator, so the
+	 * event stays on one line of the token protocol.
+	 */
+	void appendLine( byte[] b, int offset, int len) {
+		int end = lineEnd( b, offset, len);
+
+		ensure( end - offset);
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			if (b[i] != '\n')
+				continue;
+			append( b, start, i - start);
+			append( LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+			start = i + 1;
+		}
+		append( b, start, end - start);
+	}
+
+	/**
+	 * Appends an UTF-8 encoded event as {@link #appendLine(byte[], int, int)}
+	 * does, stopping before the character which would exceed the limit.
+	 *
+	 * @param limit maximal number of bytes to append
+	 * @return offset of the first byte not appended
+	 */
+	int appendLine( byte[] b, int offset, int len, int limit) {
+		int end = lineEnd( b, offset, len);
+		ensure( Math.min( limit, end - offset));
+		int written = 0;
+		int i = offset;
+		while (i < end) {
+			if (b[i] == '\n') {
+				if (written + LINE_SEPARATOR.length > limit)
+					break;
+				append( LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+				written += LINE_SEPARATOR.length;
+				i++;
+				continue;
+			}
+			int n = Math.min( charLength( b[i]), end - i);
+			if (written + n > limit)
+				break;
+			append( b, i, n);
+			written += n;
+			i += n;
+		}
+		return i < end ? i : offset + len;
+	}
+
+	/**
+	 * Returns the number of bytes {@link #appendLine(byte[], int, int)}
+	 * appends for the event.
+	 */
+	static int lineLength( byte[] b, int offset, int len) {
+		int end = lineEnd( b, offset, len);
+		int size = end - offset;
+		for (int i = offset; i < end; i++) {
+			if (b[i] == '\n')
+				size += LINE_SEPARATOR.length - 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Appends characters of the string UTF-8 encoded, with new lines replaced
+	 * by the unicode line separator, stopping before the character which
+	 * would exceed the limit. Unpaired surrogates are sent as '?'.
+	 *
+	 * @param s text to append
+	 * @param from index of the first character to append
+	 * @param limit maximal number of bytes to append
+	 * @return index of the first character not appended
+	 */
+	int appendText( CharSequence s, int from, int limit) {
+		int len = s.length();
+		// At most 3 bytes per char, surrogate pairs take 4 for 2
+		ensure( (int) Math.min( limit, 3L * (len - from)));
+		byte[] out = buf;
+		int pos = length;
+		int max = length + limit;
+		int i = from;
+		while (i < len) {
+			char c = s.charAt( i);
+			if (c < 0x80 && c != '\n') {
+				if (pos == max)
+					break;
+				out[pos++] = (byte) c;
+				i++;
+			} else if (c == '\n') {
+				if (pos + 3 > max)
+					break;
+				out[pos++] = LINE_SEPARATOR[0];
+				out[pos++] = LINE_SEPARATOR[1];
+				out[pos++] = LINE_SEPARATOR[2];
+				i++;
+			} else if (c < 0x800) {
+				if (pos + 2 > max)
+					break;
+				out[pos++] = (byte) (0xc0 | (c >> 6));
+				out[pos++] = (byte) (0x80 | (c & 0x3f));
+				i++;
+			} else if (Character.isHighSurrogate( c) && i + 1 < len && Character.isLowSurrogate( s.charAt( i + 1))) {
+				if (pos + 4 > max)
+					break;
+				int cp = Character.toCodePoint( c, s.charAt( i + 1));
+				out[pos++] = (byte) (0xf0 | (cp >> 18));
+				out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				out[pos++] = (byte) (0x80 | (cp & 0x3f));
+				i += 2;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				if (pos == max)
+					break;
+				out[pos++] = '?';
+				i++;
+			} else {
+				if (pos + 3 > max)
+					break;
+				out[pos++] = (byte) (0xe0 | (c >> 12));
+				out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				out[pos++] = (byte) (0x80 | (c & 0x3f));
+				i++;
+			}
+		}
+		length = pos;
+		return i;
+	}
+
+	/**
+	 * Returns the number of bytes {@link #appendText(CharSequence, int, int)}
+	 * appends for the whole string.
+	 */
+	static long textLength( CharSequence s) {
+		int len = s.length();
+		long size = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt( i);
+			if (c < 0x80 && c != '\n') {
+				size++;
+			} else if (c == '\n') {
+				size += LINE_SEPARATOR.length;
+			} else if (c < 0x800) {
+				size += 2;
+			} else if (Character.isHighSurrogate( c) && i + 1 < len && Character.isLowSurrogate( s.charAt( i + 1))) {
+				size += 4;
+				i++;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				size++;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the end of the event without its trailing line break.
+	 */
+	private static int lineEnd( byte[] b, int offset, int len) {
+		int end = offset + len;
+		if (end > offset && b[end - 1] == '\n') {
+			end--;
+			if (end > offset && b[end - 1] == '\r')
+				end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the length of the UTF-8 sequence starting with the byte, 1 for
+	 * invalid lead bytes.
+	 */
+	private static int charLength( byte lead) {
+		if ((lead & 0xe0) == 0xc0)
+			return 2;
+		if ((lead & 0xf0) == 0xe0)
+			return 3;
+		if ((lead & 0xf8) == 0xf0)
+			return 4;
+		return 1;
+	}
+}
@@ -0,0 +1,272 @@
+package com.logentries.net;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds an {@link AsyncLogger} from a <code>java.util.concurrent.Flow</code>
+ * publisher, requesting only as many items as the queue has room for.
+ *
+ * <p>Demand follows the free queue capacity: items are requested when the
+ * subscription starts, when half of the outstanding demand was delivered, and
+ * whenever the sender has taken events from the queue. A publisher respecting
+ * demand therefore never loses events, as long as no other producer fills the
+ * queue. Items may be strings or other character sequences, UTF-8 encoded
+ * {@link ByteBuffer}s or byte arrays, other objects are logged with
+ * {@link String#valueOf(Object)}.</p>
+ *
+ * <p>The subscription is never called from the sender thread or with a lock
+ * held: room made by the sender is requested from the shared scheduler, so
+ * a synchronous publisher delivers its items there. Requests are made one at
+ * a time, those made while delivering items are issued once the current one
+ * returns.</p>
+ *
+ * <p>The library is built for Java 6, so the subscriber is a proxy
+ * implementing <code>Flow.Subscriber</code>, created on Java 9 and newer:</p>
+ *
+ * <pre>
+ * Flow.Subscriber&lt;String&gt; subscriber = LogSubscriber.create(logger, null);
+ * publisher.subscribe(subscriber);
+ * </pre>
+ */
+public final class LogSubscriber {
+
+	/** Flow.Subscriber, null before Java 9. */
+	private static final Class<?> SUBSCRIBER = flowClass( "Subscriber");
+	/** Flow.Subscription.request(long), null before Java 9. */
+	private static final Method REQUEST = flowMethod( "request", long.class);
+	/** Flow.Subscription.cancel(), null before Java 9. */
+	private static final Method CANCEL = flowMethod( "cancel");
+
+	private final AsyncLogger logger;
+	private final String token;
+	/** Items requested and not delivered yet. */
+	private final AtomicLong outstanding = new AtomicLong();
+	/** Set while a request is scheduled. */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	/** Requests wanted, only the caller which moved it from 0 issues them. */
+	private final AtomicInteger requesting = new AtomicInteger();
+	/** Requests more items, on the shared scheduler. */
+	private final Runnable requester = new Runnable() {
+		public void run() {
+			scheduled.set( false);
+			try {
+				request();
+			} catch (RuntimeException e) {
+				logger.dbg( "Subscription request failed: " + e);
+			}
+		}
+	};
+	/** Run by the sender when it makes room, the publisher may deliver at once so it isn't called there. */
+	private final Runnable replenish = new Runnable() {
+		public void run() {
+			if (scheduled.compareAndSet( false, true))
+				SharedScheduler.delay( requester, 0);
+		}
+	};
+	/** Current subscription, null if none, guarded by this. */
+	private Object subscription;
+
+	LogSubscriber( AsyncLogger logger, String token) {
+		this.logger = logger;
+		this.token = token;
+	}
+
+	/**
+	 * Creates a <code>Flow.Subscriber</code> queueing items to the logger.
+	 *
+	 * @param logger logger to queue items to
+	 * @param token destination token, null for the default token
+	 * @return a <code>java.util.concurrent.Flow.Subscriber</code>
+	 * @throws UnsupportedOperationException before Java 9
+	 */
+	@SuppressWarnings("unchecked")
+	public static <S> S create( AsyncLogger logger, String token) {
+		if (SUBSCRIBER == null || REQUEST == null)
+			throw new UnsupportedOperationException( "java.util.concurrent.Flow requires Java 9");
+		final LogSubscriber target = new LogSubscriber( logger, token);
+		return (S) Proxy.newProxyInstance( LogSubscriber.class.getClassLoader(), new Class<?>[] { SUBSCRIBER },
+				new InvocationHandler() {
+					public Object invoke( Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals( "onSubscribe"))
+							target.onSubscribe( args[0]);
+						else if (name.equals( "onNext"))
+							target.onNext( args[0]);
+						else if (name.equals( "onError"))
+							target.onError( (Throwable) args[0]);
+						else if (name.equals( "onComplete"))
+							target.onComplete();
+						else if (name.equals( "equals"))
+							return proxy == args[0];
+						else if (name.equals( "hashCode"))
+							return System.identityHashCode( proxy);
+						else if (name.equals( "toString"))
+							return "LogSubscriber@" + Integer.toHexString( System.identityHashCode( proxy));
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Starts a subscription and requests the first items. A second
+	 * subscription is cancelled.
+	 */
+	void onSubscribe( Object s) {
+		synchronized (this) {
+			if (subscription != null) {
+				call( s, CANCEL != null && CANCEL.getDeclaringClass().isInstance( s) ? CANCEL : method( s, "cancel"));
+				return;
+			}
+			subscription = s;
+		}
+		logger.drainListeners.add( replenish);
+		request();
+	}
+
+	/**
+	 * Queues an item. Items beyond the demand are queued anyway, dropping the
+	 * oldest events if the queue is full.
+	 *
+	 * @throws NullPointerException if the item is null
+	 */
+	void onNext( Object item) {
+		if (item == null)
+			throw new NullPointerException( "Null item");
+		outstanding.decrementAndGet();
+		if (!offer( item)) {
+			logger.dbg( "Queue full, dropping the oldest event");
+			if (item instanceof ByteBuffer)
+				logger.addEncodedLineToQueue( copy( (ByteBuffer) item), token);
+			else if (item instanceof byte[])
+				logger.addEncodedLineToQueue( (byte[]) item, 0, ((byte[]) item).length, token);
+			else
+				logger.addLineToQueue( String.valueOf( item), token);
+		}
+		request();
+	}
+
+	void onError( Throwable t) {
+		logger.dbg( "Publisher failed: " + t);
+		end();
+	}
+
+	void onComplete() {
+		end();
+	}
+
+	/**
+	 * Returns the items requested and not delivered yet.
+	 */
+	long getOutstanding() {
+		return outstanding.get();
+	}
+
+	private boolean offer( Object item) {
+		if (item instanceof CharSequence)
+			return logger.offer( (CharSequence) item, token);
+		if (item instanceof ByteBuffer)
+			return logger.offer( (ByteBuffer) item, token);
+		if (item instanceof byte[])
+			return logger.offer( ByteBuffer.wrap( (byte[]) item), token);
+		return logger.offer( String.valueOf( item), token);
+	}
+
+	/**
+	 * Tops the demand up to the free queue capacity, once half of it was
+	 * delivered. The subscription is called without the lock, and by one
+	 * caller at a time: a request made meanwhile, such as from
+	 * {@link #onNext(Object)} within the call, is made by that caller once
+	 * the call returns.
+	 */
+	private void request() {
+		if (requesting.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			Object s;
+			long n;
+			synchronized (this) {
+				s = subscription;
+				long free = logger.remainingCapacity();
+				long pending = outstanding.get();
+				n = s != null && pending <= free / 2 ? free - pending : 0;
+				if (n > 0)
+					outstanding.addAndGet( n);
+			}
+			if (n > 0) {
+				try {
+					call( s, REQUEST != null && REQUEST.getDeclaringClass().isInstance( s)
+							? REQUEST : method( s, "request", long.class), n);
+				} catch (RuntimeException e) {
+					requesting.set( 0);
+					throw e;
+				}
+			}
+			missed = requesting.addAndGet( -missed);
+		} while (missed != 0);
+	}
+
+	private void end() {
+		synchronized (this) {
+			subscription = null;
+		}
+		logger.drainListeners.remove( replenish);
+	}
+
+	private static byte[] copy( ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get( bytes);
+		return bytes;
+	}
+
+	private static void call( Object target, Method method, Object... args) {
+		try {
+			method.invoke( target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException( cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException( e);
+		}
+	}
+
+	/**
+	 * Returns a public method of a subscription which isn't a Flow.Subscription,
+	 * such as a Reactive Streams one.
+	 */
+	private static Method method( Object target, String name, Class<?>... types) {
+		try {
+			return target.getClass().getMethod( name, types);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException( target.getClass().getName() + " has no " + name + " method");
+		}
+	}
+
+	private static Class<?> flowClass( String name) {
+		try {
+			return Class.forName( "java.util.concurrent.Flow$" + name);
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	private static Method flowMethod( String name, Class<?>... types) {
+		Class<?> subscription = flowClass( "Subscription");
+		try {
+			return subscription != null ? subscription.getMethod( name, types) : null;
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+}
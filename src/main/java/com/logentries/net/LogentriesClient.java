@@ -2,11 +2,16 @@ package com.logentries.net;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
 
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Client for sending messages to Logentries via HTTP PUT or Token-Based Logging
@@ -33,22 +38,125 @@ public class LogentriesClient
 	private static final int LE_TOKEN_PORT = 10000;
 	/** Port number for TLS Token logging on Logentries API server. */
 	private static final int LE_TOKEN_TLS_PORT = 20000;
+	/** SSLParameters.setEndpointIdentificationAlgorithm(String), null before Java 7. */
+	private static final Method SET_ENDPOINT_IDENTIFICATION = endpointIdentification();
 	
-	final SSLSocketFactory ssl_factory;
 	private boolean ssl_choice = false;
 	private boolean http_choice = false;
-	private Socket socket;
+	/** Server address, null for the Logentries API server. */
+	private final String address;
+	/** Server port, 0 for the Logentries API port. */
+	private final int port;
+	/** TCP keepalive flag. */
+	private boolean keep_alive = false;
+	/** Whether TLS certificates must match the endpoint host name. */
+	private boolean verify_hostname = true;
+	/** Connect and read timeout in milliseconds, 0 for none. */
+	private int timeout = 0;
+	/** Endpoints to connect to, separated by commas, null for the server address. */
+	private String endpoints;
+	/** Time resolved addresses are cached, in milliseconds. */
+	private long dns_ttl = EndpointResolver.DEFAULT_TTL;
+	/** Resolver of the endpoints, created on first connect. */
+	private EndpointResolver resolver;
+	/** Address of the current connection. */
+	private EndpointResolver.Target target;
+	private volatile Socket socket;
+	/** Channel of Unix domain socket connections. */
+	private volatile SocketChannel channel;
+	/** Transport of UDP endpoints, created on first use. */
+	private volatile DatagramSender datagram;
 	private OutputStream stream;
+	/** Whether a write is in progress, see {@link #isStalled(long)}. */
+	private volatile boolean writing;
+	/** Start of the current write, in nanoseconds. */
+	private volatile long write_started;
 	
 	public LogentriesClient(boolean httpPut, boolean ssl)
 	{
-		ssl_factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		this(httpPut, ssl, null, 0);
+	}
+
+	/**
+	 * Creates a client of the given server, used for testing.
+	 *
+	 * @param address server address, null for the Logentries API server
+	 * @param port server port, 0 for the Logentries API port
+	 */
+	LogentriesClient(boolean httpPut, boolean ssl, String address, int port)
+	{
 		ssl_choice = ssl;
 		http_choice = httpPut;
+		this.address = address;
+		this.port = port;
+	}
+
+	/**
+	 * Sets the TCP keepalive flag, so the OS probes idle connections.
+	 *
+	 * @param keepAlive keepalive flag
+	 */
+	public void setKeepAlive(boolean keepAlive)
+	{
+		this.keep_alive = keepAlive;
+	}
+
+	/**
+	 * Sets whether the TLS certificate must match the host name of the
+	 * endpoint. Endpoints given by IP address, or relays whose certificate
+	 * is issued for another name, need it off. Only checked on Java 7 and
+	 * later.
+	 *
+	 * @param verify true (the default) to check the host name
+	 */
+	public void setVerifyHostname(boolean verify)
+	{
+		this.verify_hostname = verify;
+	}
+
+	/**
+	 * Sets the connect and TLS handshake timeout.
+	 *
+	 * @param timeout timeout in milliseconds, 0 for none
+	 */
+	public void setTimeout(int timeout)
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets the endpoints to connect to, in order of preference, for instance
+	 * "unix:/run/relay.sock, api.logentries.com:10000". Endpoints without a
+	 * port use {@link #getPort()}. Unix domain sockets and UDP endpoints
+	 * ("udp:host:port" or "syslog:host:port") never use SSL.
+	 *
+	 * @param endpoints endpoint list, null for the Logentries API server
+	 */
+	public void setEndpoints(String endpoints)
+	{
+		if (endpoints != null && endpoints.trim().length() == 0)
+			endpoints = null;
+		if (endpoints != null)
+			EndpointResolver.parse(endpoints, getPort());
+		this.endpoints = endpoints;
+		this.resolver = null;
+	}
+
+	/**
+	 * Sets the time resolved addresses are cached.
+	 *
+	 * @param ttl cache time in milliseconds
+	 */
+	public void setDnsTtl(long ttl)
+	{
+		this.dns_ttl = ttl;
+		this.resolver = null;
 	}
 
 	public int getPort()
 	{
+		if (port != 0)
+			return port;
 		if (ssl_choice)
 			return http_choice ? LE_HTTP_SSL_PORT: LE_TOKEN_TLS_PORT;
 		else
@@ -57,48 +165,241 @@ public class LogentriesClient
 
 	public String getAddress()
 	{
+		if (address != null)
+			return address;
 		return http_choice ? LE_HTTP_API : LE_TOKEN_API;
 	}
 	
+	/**
+	 * Returns the resolver of the endpoints, creating it if needed.
+	 */
+	EndpointResolver getResolver()
+	{
+		if (resolver == null)
+		{
+			List<EndpointResolver.Endpoint> list = endpoints != null
+					? EndpointResolver.parse(endpoints, getPort())
+					: Collections.singletonList(new EndpointResolver.Endpoint(getAddress(), getPort()));
+			resolver = new EndpointResolver(list, dns_ttl);
+		}
+		return resolver;
+	}
+
+	/**
+	 * Connects to the first endpoint address that accepts the connection.
+	 * Failed addresses are avoided by the following connects for a while.
+	 */
 	public void connect() throws UnknownHostException, IOException
 	{
-		// Open physical connection
-		if(ssl_choice) {
-			if(http_choice)
-			{
-				SSLSocket s = (SSLSocket) ssl_factory.createSocket( getAddress(), getPort() );
-				s.setTcpNoDelay( true);
-				s.startHandshake();
-				socket = s;
-			}else{
-				socket = SSLSocketFactory.getDefault().createSocket( getAddress(), getPort() );
+		EndpointResolver r = getResolver();
+		IOException failure = null;
+		for (EndpointResolver.Target t : r.candidates())
+		{
+			try {
+				connect( t);
+				r.succeeded( t);
+				target = t;
+				return;
+			} catch (IOException e) {
+				r.failed( t);
+				failure = e;
 			}
-		}else{
-			socket = new Socket( getAddress(), getPort() );
+		}
+		if (failure != null)
+			throw failure;
+		throw new UnknownHostException( "Unable to resolve " + r.getEndpoints());
+	}
+
+	/**
+	 * Returns the address of the current connection, null if not connected.
+	 */
+	EndpointResolver.Target getTarget()
+	{
+		return stream != null || isDatagram() ? target : null;
+	}
+
+	/**
+	 * Returns the socket of the current TCP connection, null if none.
+	 */
+	Socket getSocket()
+	{
+		return socket;
+	}
+
+	/**
+	 * Returns the number of datagrams sent to UDP endpoints.
+	 */
+	public long getDatagramsSent()
+	{
+		DatagramSender d = datagram;
+		return d != null ? d.datagrams.get() : 0;
+	}
+
+	/**
+	 * Returns the number of lines sent to UDP endpoints.
+	 */
+	public long getDatagramLines()
+	{
+		DatagramSender d = datagram;
+		return d != null ? d.lines.get() : 0;
+	}
+
+	/**
+	 * Returns the number of lines truncated to fit a datagram.
+	 */
+	public long getDatagramsTruncated()
+	{
+		DatagramSender d = datagram;
+		return d != null ? d.truncated.get() : 0;
+	}
+
+	/**
+	 * Returns the number of datagrams which failed to send.
+	 */
+	public long getDatagramErrors()
+	{
+		DatagramSender d = datagram;
+		return d != null ? d.errors.get() : 0;
+	}
+
+	private boolean isDatagram()
+	{
+		DatagramSender d = datagram;
+		return d != null && d.isOpen();
+	}
+
+	private void connect( EndpointResolver.Target t) throws IOException
+	{
+		if (t.endpoint.path != null)
+		{
+			// Same host, no need for TLS
+			SocketChannel c = UnixSockets.connect( t.endpoint.path);
+			channel = c;
+			this.stream = Channels.newOutputStream( c);
+			return;
+		}
+		if (t.endpoint.isDatagram())
+		{
+			if (datagram == null)
+				datagram = new DatagramSender( DatagramSender.MAX_DATAGRAM);
+			datagram.open( t.address, EndpointResolver.SYSLOG_PREFIX.equals( t.endpoint.scheme));
+			return;
+		}
+
+		// Open physical connection, the timeout also bounds the TLS handshake
+		Socket s = new Socket();
+		try {
+			s.setKeepAlive( keep_alive);
+			s.setSoTimeout( timeout);
+			s.connect( t.address, timeout);
+			if(ssl_choice) {
+				SSLSocket tls = (SSLSocket) TlsContext.factory().createSocket( s, t.endpoint.host, t.endpoint.port, true);
+				if (verify_hostname)
+					verifyHostname( tls);
+				if(http_choice)
+				{
+					tls.setTcpNoDelay( true);
+					tls.startHandshake();
+				}
+				s = tls;
+			}
+		} catch (IOException e) {
+			s.close();
+			throw e;
 		}
 		
-		this.stream = socket.getOutputStream();
+		socket = s;
+		this.stream = s.getOutputStream();
 	}
 	
+	/**
+	 * Makes the handshake check the certificate is that of the host the
+	 * socket was created for, as HTTPS does.
+	 */
+	private static void verifyHostname( SSLSocket tls) throws IOException
+	{
+		if (SET_ENDPOINT_IDENTIFICATION == null)
+			return;
+		SSLParameters params = tls.getSSLParameters();
+		try {
+			SET_ENDPOINT_IDENTIFICATION.invoke( params, "HTTPS");
+		} catch (Exception e) {
+			throw new IOException( "Cannot verify the host name: " + e);
+		}
+		tls.setSSLParameters( params);
+	}
+
+	private static Method endpointIdentification()
+	{
+		try {
+			return SSLParameters.class.getMethod( "setEndpointIdentificationAlgorithm", String.class);
+		} catch (Exception e) {
+			// Java 6
+			return null;
+		}
+	}
+
 	public void write(byte[] buffer, int offset, int length) throws IOException
 	{
+		if (isDatagram()) {
+			// Never blocks, never fails
+			datagram.send(buffer, offset, length);
+			return;
+		}
 		if(this.stream == null){
-			throw new IOException();
+			throw new IOException("Not connected");
+		}
+		write_started = System.nanoTime();
+		writing = true;
+		try {
+			this.stream.write(buffer, offset, length);
+			this.stream.flush();
+		} catch (IOException e) {
+			// Prefer other addresses on reconnect
+			if (resolver != null && target != null)
+				resolver.failed( target);
+			throw e;
+		} finally {
+			writing = false;
 		}
-		this.stream.write(buffer, offset, length);
-		this.stream.flush();
 	}
-	
-	public void close()
+
+	/**
+	 * Returns true if a write has been blocked for longer than the timeout.
+	 * Safe to call from any thread.
+	 *
+	 * @param timeout stall timeout in nanoseconds
+	 */
+	public boolean isStalled(long timeout)
+	{
+		return writing && System.nanoTime() - write_started > timeout;
+	}
+
+	/**
+	 * Closes the socket from another thread, so a blocked write fails.
+	 */
+	public void abort()
 	{
+		Socket s = socket;
+		SocketChannel c = channel;
+		DatagramSender d = datagram;
 		try{
-			if (this.socket != null)
-			{
-				this.socket.close();
-				this.socket = null;
-			}
+			if (d != null)
+				d.close();
+			if (s != null)
+				s.close();
+			if (c != null)
+				c.close();
 		}catch(Exception e){
 			
 		}
 	}
+	
+	public void close()
+	{
+		abort();
+		this.socket = null;
+		this.channel = null;
+		this.stream = null;
+	}
 }
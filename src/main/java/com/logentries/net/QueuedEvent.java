@@ -0,0 +1,102 @@
+package com.logentries.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Entry of the {@link AsyncLogger} queue: a rendered event together with the
+ * token it should be sent to.
+ *
+ * The event is either a string, UTF-8 bytes already encoded by the
+ * appender, or an event object rendered by its formatter on the sender
+ * thread. Pooled events own their byte array and are recycled by the
+ * sender, so appenders copying into them allocate nothing in steady state.
+ */
+final class QueuedEvent {
+
+	/** Largest byte array kept by a recycled event. */
+	static final int MAX_POOLED_SIZE = 16 * 1024;
+
+	/** Rendered event, null if given as bytes. */
+	String line;
+	/** UTF-8 encoded event, null if given as a string. */
+	byte[] bytes;
+	/** Number of valid bytes. */
+	int length;
+	/** Event to format on the sender thread, null otherwise. */
+	Object event;
+	/** Formatter of the event. */
+	EventFormatter<Object> formatter;
+	/** Destination token, null for the default token of the logger. */
+	String token;
+	/** Whether the event was cut on enqueue, as it was too large. */
+	boolean truncated;
+	/** Time the event was queued, from {@link System#nanoTime()}. */
+	long enqueued;
+	/** Whether the event goes back to the pool once sent. */
+	final boolean pooled;
+
+	QueuedEvent( String line, String token) {
+		this.line = line;
+		this.token = token;
+		this.pooled = false;
+	}
+
+	QueuedEvent( byte[] bytes, String token) {
+		this.bytes = bytes;
+		this.length = bytes.length;
+		this.token = token;
+		this.pooled = false;
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> QueuedEvent( T event, EventFormatter<? super T> formatter, String token) {
+		this.event = event;
+		this.formatter = (EventFormatter<Object>) formatter;
+		this.token = token;
+		this.pooled = false;
+	}
+
+	/**
+	 * Creates an empty pooled event.
+	 */
+	QueuedEvent() {
+		this.pooled = true;
+	}
+
+	/**
+	 * Copies encoded bytes into the event, growing its array if needed.
+	 */
+	void copy( byte[] src, int offset, int len, String token) {
+		if (bytes == null || bytes.length < len)
+			bytes = new byte[Math.max( len, 256)];
+		System.arraycopy( src, offset, bytes, 0, len);
+		this.length = len;
+		this.token = token;
+		this.truncated = false;
+	}
+
+	/**
+	 * Copies encoded bytes from the buffer into the event, without moving its
+	 * position.
+	 */
+	void copy( ByteBuffer src, int len, String token) {
+		if (bytes == null || bytes.length < len)
+			bytes = new byte[Math.max( len, 256)];
+		src.duplicate().get( bytes, 0, len);
+		this.length = len;
+		this.token = token;
+		this.truncated = false;
+	}
+
+	/**
+	 * Prepares a pooled event for reuse, large arrays are not retained.
+	 */
+	void clear() {
+		line = null;
+		token = null;
+		length = 0;
+		truncated = false;
+		if (bytes != null && bytes.length > MAX_POOLED_SIZE)
+			bytes = null;
+	}
+}
@@ -0,0 +1,412 @@
+package com.logentries.net;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Masks sensitive values in UTF-8 encoded events, in place.
+ *
+ * <p>The rules are given as a comma separated list:</p>
+ * <ul>
+ * <li><code>card</code>: payment card numbers, 13 to 19 digits optionally
+ * grouped by spaces or dashes, starting with the issuer number of a card
+ * brand issuing that length, and passing the Luhn check. All digits but the
+ * last four are masked. Numbers within a longer token, such as a decimal, and
+ * number values of JSON members, such as timestamps or ids, are kept.</li>
+ * <li><code>email</code>: the local part of email addresses.</li>
+ * <li><code>key:name</code>: the value following <code>name=</code> or
+ * <code>name:</code>, quoted or not, as in <code>password=secret</code> or
+ * <code>"token": "secret"</code>.</li>
+ * <li><code>literal:text</code>: every occurrence of the text.</li>
+ * </ul>
+ *
+ * <p>Keys and literals are compiled into one Aho-Corasick automaton, matched
+ * ignoring ASCII case, and card numbers and email addresses are recognized in
+ * the same pass over the bytes. Masked bytes are replaced by '*', so the event
+ * keeps its length and no copy is made. Instances are immutable and thread
+ * safe.</p>
+ */
+public final class Redactor {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8");
+	private static final byte MASK = '*';
+	/** Longest local part of an email address. */
+	private static final int MAX_LOCAL_PART = 64;
+	/** Card lengths of the brands below. */
+	private static final int ALL_LENGTHS = lengths( 13, 14, 15, 16, 17, 18, 19);
+	private static final int LONG_LENGTHS = lengths( 16, 17, 18, 19);
+	/**
+	 * Issuer ranges of the card brands, on the first six digits, with the bit
+	 * mask of the lengths they issue.
+	 */
+	private static final int[][] ISSUERS = {
+		// Visa
+		{ 400000, 499999, lengths( 13, 16, 19) },
+		// Mastercard
+		{ 222100, 272099, lengths( 16) },
+		{ 510000, 559999, lengths( 16) },
+		// Mir
+		{ 220000, 220499, LONG_LENGTHS },
+		// American Express
+		{ 340000, 349999, lengths( 15) },
+		{ 370000, 379999, lengths( 15) },
+		// Diners Club
+		{ 300000, 305999, lengths( 14, 16, 17, 18, 19) },
+		{ 360000, 369999, lengths( 14, 15, 16, 17, 18, 19) },
+		{ 380000, 399999, LONG_LENGTHS },
+		// JCB
+		{ 352800, 358999, LONG_LENGTHS },
+		// Maestro
+		{ 500000, 509999, ALL_LENGTHS },
+		{ 560000, 589999, ALL_LENGTHS },
+		{ 630000, 639999, ALL_LENGTHS },
+		{ 670000, 679999, ALL_LENGTHS },
+		// Discover
+		{ 601100, 601199, LONG_LENGTHS },
+		{ 644000, 659999, LONG_LENGTHS },
+		// UnionPay
+		{ 620000, 629999, LONG_LENGTHS },
+	};
+
+	/** Whether card numbers are masked. */
+	private final boolean cards;
+	/** Whether email addresses are masked. */
+	private final boolean emails;
+
+	/** Byte class of each byte, 0 for bytes in no pattern. Letters share the class of their lower case. */
+	private final byte[] classes = new byte[256];
+	/** Number of byte classes. */
+	private final int width;
+	/**
+	 * Transitions, indexed by state * width + class. States are stored
+	 * multiplied by the width, and complemented when a pattern ends there.
+	 */
+	private final int[] delta;
+	/** Longest pattern recognized in each state, by state number, -1 for none. */
+	private final int[] output;
+	/** Length of each pattern. */
+	private final int[] lengths;
+	/** Whether each pattern is a key, whose value is masked, or a literal. */
+	private final boolean[] keys;
+
+	private Redactor( boolean cards, boolean emails, List<byte[]> patterns, List<Boolean> isKey) {
+		this.cards = cards;
+		this.emails = emails;
+
+		// Bytes not in any pattern share class 0
+		int n = 1;
+		for (byte[] p : patterns) {
+			for (byte b : p) {
+				int c = lower( b) & 0xff;
+				if (classes[c] == 0) {
+					if (n == 127)
+						throw new IllegalArgumentException( "Too many distinct characters in redaction patterns");
+					classes[c] = (byte) n++;
+				}
+			}
+		}
+		for (int c = 'A'; c <= 'Z'; c++)
+			classes[c] = classes[c + 32];
+		width = n;
+
+		lengths = new int[patterns.size()];
+		keys = new boolean[patterns.size()];
+		int states = 1;
+		for (int i = 0; i < patterns.size(); i++) {
+			lengths[i] = patterns.get( i).length;
+			keys[i] = isKey.get( i);
+			states += lengths[i];
+		}
+
+		// Trie, 0 marks missing transitions as the root has no parent
+		int[] trie = new int[states * width];
+		int[] out = new int[states];
+		Arrays.fill( out, -1);
+		int count = 1;
+		for (int i = 0; i < patterns.size(); i++) {
+			int s = 0;
+			for (byte b : patterns.get( i)) {
+				int c = classes[b & 0xff];
+				if (trie[s * width + c] == 0)
+					trie[s * width + c] = count++;
+				s = trie[s * width + c];
+			}
+			if (out[s] < 0 || lengths[out[s]] < lengths[i])
+				out[s] = i;
+		}
+
+		// Breadth first, completing the transitions with the failure links
+		int[] fail = new int[count];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int c = 0; c < width; c++) {
+			if (trie[c] != 0) {
+				fail[trie[c]] = 0;
+				queue.add( trie[c]);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.removeFirst();
+			if (out[s] < 0)
+				out[s] = out[fail[s]];
+			for (int c = 0; c < width; c++) {
+				int t = trie[s * width + c];
+				if (t != 0) {
+					fail[t] = trie[fail[s] * width + c];
+					queue.add( t);
+				} else {
+					trie[s * width + c] = trie[fail[s] * width + c];
+				}
+			}
+		}
+		delta = new int[count * width];
+		for (int i = 0; i < delta.length; i++)
+			delta[i] = out[trie[i]] >= 0 ? ~(trie[i] * width) : trie[i] * width;
+		output = Arrays.copyOf( out, count);
+	}
+
+	/**
+	 * Compiles the rules.
+	 *
+	 * @param spec comma separated rules, see the class description
+	 * @return the redactor, null if there are no rules
+	 * @throws IllegalArgumentException if a rule is invalid
+	 */
+	public static Redactor compile( String spec) {
+		if (spec == null || spec.trim().length() == 0)
+			return null;
+
+		boolean cards = false;
+		boolean emails = false;
+		List<byte[]> patterns = new ArrayList<byte[]>();
+		List<Boolean> isKey = new ArrayList<Boolean>();
+		for (String part : spec.split( ",")) {
+			String rule = part.trim();
+			if (rule.length() == 0)
+				continue;
+			if (rule.equals( "card")) {
+				cards = true;
+			} else if (rule.equals( "email")) {
+				emails = true;
+			} else if (rule.startsWith( "key:") && rule.length() > 4) {
+				patterns.add( rule.substring( 4).trim().getBytes( UTF8));
+				isKey.add( Boolean.TRUE);
+			} else if (rule.startsWith( "literal:") && rule.length() > 8) {
+				patterns.add( rule.substring( 8).getBytes( UTF8));
+				isKey.add( Boolean.FALSE);
+			} else {
+				throw new IllegalArgumentException( "Unknown redaction rule " + rule
+						+ ", expected card, email, key:name or literal:text");
+			}
+		}
+		return new Redactor( cards, emails, patterns, isKey);
+	}
+
+	/**
+	 * Masks the sensitive values in the UTF-8 encoded text.
+	 *
+	 * @param buf buffer holding the text
+	 * @param from start of the text
+	 * @param to end of the text
+	 */
+	public void redact( byte[] buf, int from, int to) {
+		final boolean patterns = lengths.length > 0;
+		final byte[] classes = this.classes;
+		final int[] delta = this.delta;
+		final int[] output = this.output;
+		final int width = this.width;
+		int state = 0;
+		int digitsStart = -1;
+		for (int i = from; i < to; i++) {
+			byte b = buf[i];
+
+			// Card numbers end at the first byte which isn't a digit or a single separator
+			if (cards) {
+				boolean digit = b >= '0' && b <= '9';
+				if (digit) {
+					if (digitsStart < 0 && (i == from || !isWordByte( buf[i - 1])))
+						digitsStart = i;
+				} else if (digitsStart >= 0 && !(isSeparator( b) && i + 1 < to && isDigit( buf[i + 1]) && isDigit( buf[i - 1]))) {
+					if (!isWordByte( b))
+						maskCard( buf, from, digitsStart, i, to);
+					digitsStart = -1;
+				}
+			}
+
+			if (emails && b == '@')
+				maskEmail( buf, from, i, to);
+
+			if (patterns) {
+				state = delta[state + classes[b & 0xff]];
+				if (state < 0) {
+					state = ~state;
+					int match = output[state / width];
+					if (keys[match])
+						i = maskValue( buf, i + 1, to) - 1;
+					else
+						Arrays.fill( buf, i - lengths[match] + 1, i + 1, MASK);
+				}
+			}
+		}
+		if (digitsStart >= 0)
+			maskCard( buf, from, digitsStart, to, to);
+	}
+
+	/**
+	 * Masks the digits of [start, end) but the last four if they form a valid
+	 * card number, within the text [from, to).
+	 */
+	private static void maskCard( byte[] buf, int from, int start, int end, int to) {
+		if (isEmbedded( buf, from, start, end, to))
+			return;
+		int issuer = 0;
+		int leading = 0;
+		for (int i = start; i < end && leading < 6; i++) {
+			if (isDigit( buf[i])) {
+				issuer = issuer * 10 + buf[i] - '0';
+				leading++;
+			}
+		}
+
+		int digits = 0;
+		int sum = 0;
+		for (int i = end - 1; i >= start; i--) {
+			byte b = buf[i];
+			if (!isDigit( b))
+				continue;
+			int d = b - '0';
+			if ((digits & 1) == 1) {
+				d *= 2;
+				if (d > 9)
+					d -= 9;
+			}
+			sum += d;
+			digits++;
+		}
+		if (digits < 13 || digits > 19 || sum % 10 != 0 || !isIssued( issuer, digits))
+			return;
+
+		int keep = 4;
+		for (int i = end - 1; i >= start; i--) {
+			if (!isDigit( buf[i]))
+				continue;
+			if (keep > 0)
+				keep--;
+			else
+				buf[i] = MASK;
+		}
+	}
+
+	/**
+	 * Returns true if the digits of [start, end) are part of a longer token,
+	 * such as a decimal number, or the number value of a JSON member.
+	 */
+	private static boolean isEmbedded( byte[] buf, int from, int start, int end, int to) {
+		if (start > from && buf[start - 1] == '.')
+			return true;
+		if (end + 1 < to && buf[end] == '.' && isDigit( buf[end + 1]))
+			return true;
+		int i = start;
+		while (i > from && buf[i - 1] == ' ')
+			i--;
+		return i - 2 >= from && buf[i - 1] == ':' && buf[i - 2] == '"';
+	}
+
+	/**
+	 * Returns true if a card brand issues numbers of the given length
+	 * starting with the six digits.
+	 */
+	private static boolean isIssued( int issuer, int digits) {
+		for (int[] range : ISSUERS) {
+			if (issuer >= range[0] && issuer <= range[1] && (range[2] & (1 << digits)) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static int lengths( int... lengths) {
+		int mask = 0;
+		for (int length : lengths)
+			mask |= 1 << length;
+		return mask;
+	}
+
+	/**
+	 * Masks the local part of the email address around the '@' at position at.
+	 */
+	private static void maskEmail( byte[] buf, int from, int at, int to) {
+		int start = at;
+		while (start > from && at - start < MAX_LOCAL_PART && isLocalByte( buf[start - 1]))
+			start--;
+		if (start == at)
+			return;
+
+		// The domain needs a dot followed by a label
+		int end = at + 1;
+		int dot = -1;
+		while (end < to && isDomainByte( buf[end])) {
+			if (buf[end] == '.')
+				dot = end;
+			end++;
+		}
+		if (dot < 0 || dot + 1 >= end || buf[end - 1] == '.' || dot == at + 1)
+			return;
+		Arrays.fill( buf, start, at, MASK);
+	}
+
+	/**
+	 * Masks the value following a key, returns the position after it.
+	 */
+	private static int maskValue( byte[] buf, int i, int to) {
+		// Closing quote of the key, separator, opening quote of the value
+		if (i < to && (buf[i] == '"' || buf[i] == '\''))
+			i++;
+		while (i < to && buf[i] == ' ')
+			i++;
+		if (i == to || (buf[i] != '=' && buf[i] != ':'))
+			return i;
+		i++;
+		while (i < to && buf[i] == ' ')
+			i++;
+		byte quote = 0;
+		if (i < to && (buf[i] == '"' || buf[i] == '\''))
+			quote = buf[i++];
+
+		int start = i;
+		while (i < to && buf[i] != quote && (quote != 0 || !isValueEnd( buf[i])))
+			i++;
+		Arrays.fill( buf, start, i, MASK);
+		return i;
+	}
+
+	private static boolean isDigit( byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isSeparator( byte b) {
+		return b == ' ' || b == '-';
+	}
+
+	private static boolean isWordByte( byte b) {
+		return isDigit( b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+	}
+
+	private static boolean isLocalByte( byte b) {
+		return isWordByte( b) || b == '.' || b == '%' || b == '+' || b == '-';
+	}
+
+	private static boolean isDomainByte( byte b) {
+		return isDigit( b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '.' || b == '-';
+	}
+
+	private static boolean isValueEnd( byte b) {
+		return b == ' ' || b == '\t' || b == ',' || b == ';' || b == '&' || b == ')' || b == '}' || b == ']'
+				|| b == '"' || b == '\'';
+	}
+
+	private static byte lower( byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+	}
+}
@@ -0,0 +1,264 @@
+package com.logentries.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-based routing of events to Logentries tokens.
+ *
+ * <p>A table is compiled once from a specification such as</p>
+ *
+ * <pre>
+ * logger:com.acme.billing=TOKEN1; level:ERROR=TOKEN2; mdc:tenant=acme=TOKEN3
+ * </pre>
+ *
+ * <p>and then consulted for every event. MDC rules are checked first, then
+ * level rules, both in declaration order. Logger rules are compiled into a
+ * prefix trie and pick the longest matching logger prefix; a prefix only
+ * matches on a package boundary. When nothing matches, {@link #route} returns
+ * null and the event goes to the appender's default token.</p>
+ */
+public class RoutingTable {
+
+	/*
+	 * Constants
+	 */
+
+	/** Selector prefix for logger name rules. */
+	static final String LOGGER = "logger:";
+	/** Selector prefix for level threshold rules. */
+	static final String LEVEL = "level:";
+	/** Selector prefix for MDC value rules. */
+	static final String MDC = "mdc:";
+	/** Reads the MDC from a map. */
+	private static final MdcLookup<Map<String, ?>> MAP = new MdcLookup<Map<String, ?>>() {
+		public Object get( Map<String, ?> mdc, String key) {
+			return mdc.get( key);
+		}
+	};
+	/** Level names with their integer values, shared by log4j and logback. */
+	private static final String[] LEVEL_NAMES = { "ALL", "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL" };
+	private static final int[] LEVEL_VALUES = { Integer.MIN_VALUE, 5000, 10000, 20000, 30000, 40000, 50000 };
+
+	/*
+	 * Fields
+	 */
+
+	/** Root of the logger name trie. */
+	private final Node root = new Node();
+	/** Level thresholds in declaration order. */
+	private final int[] levels;
+	private final String[] levelTokens;
+	/** MDC keys, values and tokens in declaration order. */
+	private final String[] mdcKeys;
+	private final String[] mdcValues;
+	private final String[] mdcTokens;
+	/** Whether any logger rule was declared. */
+	private final boolean hasLoggerRules;
+
+	private RoutingTable( List<String[]> loggerRules, List<String[]> levelRules, List<String[]> mdcRules) {
+		for (String[] rule : loggerRules)
+			insert( rule[0], rule[1]);
+		hasLoggerRules = !loggerRules.isEmpty();
+
+		levels = new int[levelRules.size()];
+		levelTokens = new String[levelRules.size()];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = parseLevel( levelRules.get( i)[0]);
+			levelTokens[i] = levelRules.get( i)[1];
+		}
+
+		mdcKeys = new String[mdcRules.size()];
+		mdcValues = new String[mdcRules.size()];
+		mdcTokens = new String[mdcRules.size()];
+		for (int i = 0; i < mdcKeys.length; i++) {
+			String selector = mdcRules.get( i)[0];
+			int eq = selector.indexOf( '=');
+			if (eq <= 0)
+				throw new IllegalArgumentException( "MDC route must look like mdc:key=value=token: " + selector);
+			mdcKeys[i] = selector.substring( 0, eq).trim();
+			mdcValues[i] = selector.substring( eq + 1).trim();
+			mdcTokens[i] = mdcRules.get( i)[1];
+		}
+	}
+
+	/**
+	 * Compiles a routing specification.
+	 *
+	 * <p>Rules are separated by ';' or new lines. Each rule is a selector
+	 * followed by '=' and the destination token.</p>
+	 *
+	 * @param spec routing specification
+	 * @return compiled routing table
+	 * @throws IllegalArgumentException if a rule cannot be parsed
+	 */
+	public static RoutingTable parse( String spec) {
+		List<String[]> loggerRules = new ArrayList<String[]>();
+		List<String[]> levelRules = new ArrayList<String[]>();
+		List<String[]> mdcRules = new ArrayList<String[]>();
+
+		if (spec != null) {
+			for (String rule : spec.split( "[;\\n]")) {
+				rule = rule.trim();
+				if (rule.length() == 0)
+					continue;
+
+				int eq = rule.lastIndexOf( '=');
+				if (eq < 0 || eq == rule.length() - 1)
+					throw new IllegalArgumentException( "Route is missing a destination token: " + rule);
+				String selector = rule.substring( 0, eq).trim();
+				String token = rule.substring( eq + 1).trim();
+
+				if (selector.startsWith( LOGGER))
+					loggerRules.add( new String[] { selector.substring( LOGGER.length()).trim(), token });
+				else if (selector.startsWith( LEVEL))
+					levelRules.add( new String[] { selector.substring( LEVEL.length()).trim(), token });
+				else if (selector.startsWith( MDC))
+					mdcRules.add( new String[] { selector.substring( MDC.length()), token });
+				else
+					throw new IllegalArgumentException( "Unknown route selector: " + selector);
+			}
+		}
+
+		return new RoutingTable( loggerRules, levelRules, mdcRules);
+	}
+
+	/**
+	 * Returns true if no rule was declared.
+	 */
+	public boolean isEmpty() {
+		return !hasLoggerRules && levels.length == 0 && mdcKeys.length == 0;
+	}
+
+	/**
+	 * Returns true if any rule needs the MDC of the event, so callers can
+	 * avoid copying it otherwise.
+	 */
+	public boolean usesMdc() {
+		return mdcKeys.length > 0;
+	}
+
+	/**
+	 * Finds the destination token for an event.
+	 *
+	 * @param loggerName name of the logger, may be null
+	 * @param level integer value of the event level
+	 * @param mdc MDC of the event, may be null
+	 * @return token of the matching route, or null for the default route
+	 */
+	public String route( String loggerName, int level, Map<String, ?> mdc) {
+		return route( loggerName, level, mdc, MAP);
+	}
+
+	/**
+	 * Finds the destination token for an event, reading its MDC through a
+	 * lookup, so MDC implementations which aren't maps need no copy.
+	 *
+	 * @param loggerName name of the logger, may be null
+	 * @param level integer value of the event level
+	 * @param mdc MDC of the event, may be null
+	 * @param lookup reads a value of the MDC
+	 * @return token of the matching route, or null for the default route
+	 */
+	public <T> String route( String loggerName, int level, T mdc, MdcLookup<? super T> lookup) {
+		if (mdc != null) {
+			for (int i = 0; i < mdcKeys.length; i++) {
+				Object value = lookup.get( mdc, mdcKeys[i]);
+				if (value != null && mdcValues[i].equals( value.toString()))
+					return mdcTokens[i];
+			}
+		}
+
+		for (int i = 0; i < levels.length; i++) {
+			if (level >= levels[i])
+				return levelTokens[i];
+		}
+
+		if (hasLoggerRules && loggerName != null)
+			return lookup( loggerName);
+
+		return null;
+	}
+
+	/**
+	 * Walks the trie and returns the token of the longest prefix of the name
+	 * which ends on a package boundary.
+	 */
+	private String lookup( String name) {
+		Node node = root;
+		String match = root.token;
+		int len = name.length();
+		for (int i = 0; i < len; i++) {
+			node = node.child( name.charAt( i));
+			if (node == null)
+				return match;
+			if (node.token != null && (i == len - 1 || name.charAt( i + 1) == '.'))
+				match = node.token;
+		}
+		return match;
+	}
+
+	private void insert( String prefix, String token) {
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++)
+			node = node.addChild( prefix.charAt( i));
+		node.token = token;
+	}
+
+	static int parseLevel( String name) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equalsIgnoreCase( name))
+				return LEVEL_VALUES[i];
+		}
+		throw new IllegalArgumentException( "Unknown level in route: " + name);
+	}
+
+	/**
+	 * Reads values of an MDC.
+	 *
+	 * @param <T> type of the MDC
+	 */
+	public interface MdcLookup<T> {
+
+		/**
+		 * Returns the value of the key, null if it has none.
+		 */
+		Object get( T mdc, String key);
+	}
+
+	/**
+	 * Trie node keyed by a single character. Children are kept in a small
+	 * sorted array, logger names rarely fan out much per character.
+	 */
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		String token;
+
+		Node child( char c) {
+			int i = Arrays.binarySearch( keys, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		Node addChild( char c) {
+			int i = Arrays.binarySearch( keys, c);
+			if (i >= 0)
+				return children[i];
+
+			int at = -i - 1;
+			char[] k = new char[keys.length + 1];
+			Node[] n = new Node[children.length + 1];
+			System.arraycopy( keys, 0, k, 0, at);
+			System.arraycopy( children, 0, n, 0, at);
+			System.arraycopy( keys, at, k, at + 1, keys.length - at);
+			System.arraycopy( children, at, n, at + 1, children.length - at);
+			k[at] = c;
+			n[at] = new Node();
+			keys = k;
+			children = n;
+			return n[at];
+		}
+	}
+}
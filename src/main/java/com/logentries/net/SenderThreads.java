@@ -0,0 +1,84 @@
+package com.logentries.net;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads running {@link AsyncLogger} senders when no executor is
+ * configured.
+ *
+ * <p>On Java 21 and newer senders run on virtual threads, so loggers blocked
+ * on their queue or socket don't hold an OS thread each. The API is looked up
+ * by reflection, older JVMs get a platform daemon thread. Virtual threads can
+ * be turned off with the <code>com.logentries.virtualThreads=false</code>
+ * system property.</p>
+ *
+ * <p>The send path must not block while holding a monitor, which would pin
+ * the virtual thread to its carrier: it only uses <code>java.util.concurrent</code>
+ * locks and no <code>synchronized</code> blocks around I/O.</p>
+ */
+final class SenderThreads {
+
+	/** System property disabling virtual threads. */
+	static final String VIRTUAL_THREADS = "com.logentries.virtualThreads";
+
+	/** Thread.ofVirtual(), null if unavailable. */
+	private static final Method OF_VIRTUAL;
+	/** Thread.Builder.name(String). */
+	private static final Method NAME;
+	/** Thread.Builder.unstarted(Runnable). */
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			if (!"false".equalsIgnoreCase( System.getProperty( VIRTUAL_THREADS))) {
+				Method m = Thread.class.getMethod( "ofVirtual");
+				Class<?> builder = m.getReturnType();
+				name = builder.getMethod( "name", String.class);
+				unstarted = builder.getMethod( "unstarted", Runnable.class);
+				// Preview releases throw unless previews are enabled
+				m.invoke( null);
+				ofVirtual = m;
+			}
+		} catch (Throwable e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	private SenderThreads() {
+	}
+
+	/**
+	 * Returns true if senders run on virtual threads.
+	 */
+	static boolean isVirtual() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates an unstarted thread running the task.
+	 *
+	 * @param task sender task
+	 * @param name thread name
+	 * @return virtual thread if available, daemon platform thread otherwise
+	 */
+	static Thread newThread( Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object builder = NAME.invoke( OF_VIRTUAL.invoke( null), name);
+				return (Thread) UNSTARTED.invoke( builder, task);
+			} catch (Exception e) {
+				// Fall back to a platform thread
+			}
+		}
+		Thread t = new Thread( task, name);
+		// Don't block shut down
+		t.setDaemon( true);
+		return t;
+	}
+}
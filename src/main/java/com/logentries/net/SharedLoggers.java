@@ -0,0 +1,196 @@
+package com.logentries.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the loggers shared by context and name, see
+ * {@link AsyncLogger#share(Object, String, AsyncLogger)}.
+ *
+ * <p>Logging frameworks replace appenders when they reload their
+ * configuration, stopping the old ones before (logback, log4j) or after
+ * (Log4j 2) starting the new ones. Loggers are therefore reference counted,
+ * and closed {@value #GRACE_PERIOD} ms after their last release unless they
+ * are shared again.</p>
+ *
+ * <p>Names are scoped by the identity of their context, such as the logger
+ * context of the framework, so that two contexts in one JVM, as webapps
+ * with the library in a shared class loader, don't share a logger.</p>
+ */
+final class SharedLoggers {
+
+	/** Time a released logger waits to be shared again, in milliseconds. */
+	static final long GRACE_PERIOD = TimeUnit.SECONDS.toMillis( 10);
+
+	/** Loggers by context and name, guarded by the class. */
+	private static final Map<Key, Entry> BY_NAME = new HashMap<Key, Entry>();
+	/** Loggers by identity, guarded by the class. */
+	private static final Map<AsyncLogger, Entry> BY_LOGGER = new IdentityHashMap<AsyncLogger, Entry>();
+
+	private SharedLoggers() {
+	}
+
+	static AsyncLogger share( Object context, String name, AsyncLogger config) {
+		if (name == null)
+			return config;
+		Key key = new Key( context, name);
+		Entry entry;
+		synchronized (SharedLoggers.class) {
+			entry = BY_NAME.get( key);
+			if (entry == null) {
+				entry = new Entry( key, config);
+				BY_NAME.put( key, entry);
+				BY_LOGGER.put( config, entry);
+			} else if (entry.pendingClose != null) {
+				entry.pendingClose.cancel( false);
+				entry.pendingClose = null;
+			}
+			entry.references++;
+		}
+		if (entry.logger == config) {
+			entry.register();
+		} else {
+			config.dbg( "Taking over the running logger " + name);
+			entry.logger.reconfigure( config);
+		}
+		return entry.logger;
+	}
+
+	static void release( final AsyncLogger logger) {
+		synchronized (SharedLoggers.class) {
+			final Entry entry = BY_LOGGER.get( logger);
+			if (entry != null) {
+				if (--entry.references > 0 || entry.pendingClose != null)
+					return;
+				entry.pendingClose = SharedScheduler.delay( new Runnable() {
+					public void run() {
+						closeUnused( entry);
+					}
+				}, GRACE_PERIOD);
+				return;
+			}
+		}
+		logger.close();
+	}
+
+	/**
+	 * Closes the logger if it wasn't shared again.
+	 */
+	static void closeUnused( Entry entry) {
+		synchronized (SharedLoggers.class) {
+			if (entry.references > 0 || BY_NAME.get( entry.key) != entry)
+				return;
+			BY_NAME.remove( entry.key);
+			BY_LOGGER.remove( entry.logger);
+		}
+		entry.unregister();
+		entry.logger.close();
+	}
+
+	/**
+	 * Returns the logger shared under the name in the context, null if none.
+	 */
+	static synchronized AsyncLogger get( Object context, String name) {
+		Entry entry = BY_NAME.get( new Key( context, name));
+		return entry != null ? entry.logger : null;
+	}
+
+	/**
+	 * Returns the registry entry of the name in the context, null if none.
+	 */
+	static synchronized Entry entry( Object context, String name) {
+		return BY_NAME.get( new Key( context, name));
+	}
+
+	/**
+	 * Name within a context, compared by identity.
+	 */
+	private static final class Key {
+		final Object context;
+		final String name;
+
+		Key( Object context, String name) {
+			this.context = context;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals( Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return context == k.context && name.equals( k.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode( context) * 31 + name.hashCode();
+		}
+	}
+
+	static final class Entry {
+		final Key key;
+		final String name;
+		final AsyncLogger logger;
+		/** Appenders using the logger, guarded by the class. */
+		int references;
+		/** Close scheduled after the last release, guarded by the class. */
+		ScheduledFuture<?> pendingClose;
+		/** JMX name, null if not registered. */
+		private ObjectName objectName;
+
+		Entry( Key key, AsyncLogger logger) {
+			this.key = key;
+			this.name = key.name;
+			this.logger = logger;
+		}
+
+		/**
+		 * Returns the JMX name of the logger, with the identity of its
+		 * context if any.
+		 */
+		ObjectName objectName() throws MalformedObjectNameException {
+			String context = key.context != null
+					? "context=" + Integer.toHexString( System.identityHashCode( key.context)) + "," : "";
+			return new ObjectName( "com.logentries:type=AsyncLogger," + context + "name=" + ObjectName.quote( name));
+		}
+
+		/**
+		 * Registers the logger with the platform MBean server, failures only
+		 * lose the monitoring.
+		 */
+		void register() {
+			try {
+				ObjectName on = objectName();
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (server.isRegistered( on))
+					server.unregisterMBean( on);
+				server.registerMBean( new AsyncLoggerManagement( logger), on);
+				objectName = on;
+			} catch (Exception e) {
+				logger.dbg( "Unable to register " + name + " with JMX: " + e);
+			} catch (LinkageError e) {
+				// No JMX, as on some embedded platforms
+			}
+		}
+
+		void unregister() {
+			if (objectName == null)
+				return;
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName);
+			} catch (Exception e) {
+				logger.dbg( "Unable to unregister " + name + " from JMX: " + e);
+			}
+			objectName = null;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.logentries.net;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single daemon thread running the periodic housekeeping of all loggers, such
+ * as the write stall watchdog.
+ *
+ * <p>The thread is only created when the first task is scheduled. Tasks must
+ * be short, must not block and must not throw.</p>
+ */
+final class SharedScheduler {
+
+	private SharedScheduler() {
+	}
+
+	/**
+	 * Runs the task periodically until the returned future is cancelled.
+	 *
+	 * @param task task to run
+	 * @param period period in milliseconds
+	 * @return handle to cancel the task
+	 */
+	static ScheduledFuture<?> schedule( Runnable task, long period) {
+		return Holder.EXECUTOR.scheduleAtFixedRate( task, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the task once after the delay, unless the returned future is
+	 * cancelled.
+	 *
+	 * @param task task to run
+	 * @param delay delay in milliseconds
+	 * @return handle to cancel the task
+	 */
+	static ScheduledFuture<?> delay( Runnable task, long delay) {
+		return Holder.EXECUTOR.schedule( task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Lazily initialized executor.
+	 */
+	private static final class Holder {
+		static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+			public Thread newThread( Runnable r) {
+				Thread t = new Thread( r, "Logentries scheduler");
+				// Don't block shut down
+				t.setDaemon( true);
+				return t;
+			}
+		});
+	}
+}
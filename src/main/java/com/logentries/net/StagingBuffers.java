@@ -0,0 +1,189 @@
+package com.logentries.net;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-thread staging of events, handed to the queue of a logger in bulk.
+ *
+ * <p>Each producer thread appends its events to a stage of its own, whose
+ * lock only the sweeper ever contends for. A stage is handed to the queue in
+ * a single operation when it is full, or when its oldest event is older than
+ * the delay. A sweeper on the shared scheduler hands off the stages of
+ * threads which stopped logging, so no event waits longer than the delay.</p>
+ *
+ * <p>Events of a thread keep their order. Events of different threads may
+ * be sent out of order by up to the delay; their enqueue time is stamped
+ * when they are staged.</p>
+ *
+ * <p>Threads only refer to their stage weakly, the stages belong to the
+ * instance. Once closed, pooled threads which outlive it keep no stage, so
+ * no class of the library stays reachable from them.</p>
+ */
+final class StagingBuffers {
+
+	/** Events staged per thread before a handoff. */
+	static final int STAGE_SIZE = 64;
+
+	/** Logger the stages are handed to. */
+	private final AsyncLogger logger;
+	/** Longest time an event stays staged, in milliseconds. */
+	private final int delay;
+	/** Longest time an event stays staged, in nanoseconds. */
+	private final long delayNanos;
+	/** Stage of the calling thread, held by {@link #all} until closed. */
+	final ThreadLocal<WeakReference<Stage>> stages = new ThreadLocal<WeakReference<Stage>>();
+	/** Stages of all threads, for the sweeper. */
+	private final CopyOnWriteArrayList<Stage> all = new CopyOnWriteArrayList<Stage>();
+	/** Sweeper, scheduled with the first stage, guarded by this. */
+	private ScheduledFuture<?> sweeper;
+	/** Set once closed, events are then queued directly. */
+	private volatile boolean closed;
+
+	/**
+	 * Creates the stages of a logger.
+	 *
+	 * @param logger logger to hand events to
+	 * @param delay longest time an event stays staged, in milliseconds
+	 */
+	StagingBuffers( AsyncLogger logger, int delay) {
+		this.logger = logger;
+		this.delay = delay;
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos( delay);
+	}
+
+	/**
+	 * Stages an event of the calling thread, handing the stage off if it is
+	 * full or old enough.
+	 *
+	 * @return false if closed, the event must then be queued directly
+	 */
+	boolean stage( QueuedEvent event) {
+		WeakReference<Stage> ref = stages.get();
+		Stage s = ref != null ? ref.get() : null;
+		if (s == null) {
+			if (closed) {
+				stages.remove();
+				return false;
+			}
+			s = register();
+		}
+		long now = System.nanoTime();
+		synchronized (s) {
+			if (closed) {
+				stages.remove();
+				return false;
+			}
+			event.enqueued = now;
+			if (s.count == 0)
+				s.oldest = now;
+			s.events[s.count++] = event;
+			if (s.count == STAGE_SIZE || now - s.oldest >= delayNanos)
+				handoff( s);
+		}
+		return true;
+	}
+
+	/**
+	 * Hands off the events of all threads.
+	 */
+	void flush() {
+		for (Stage s : all) {
+			synchronized (s) {
+				if (s.count > 0)
+					handoff( s);
+			}
+		}
+	}
+
+	/**
+	 * Stops staging, handing off the events of all threads.
+	 */
+	void close() {
+		closed = true;
+		synchronized (this) {
+			if (sweeper != null) {
+				sweeper.cancel( false);
+				sweeper = null;
+			}
+		}
+		flush();
+		all.clear();
+	}
+
+	/**
+	 * Hands off the stages holding events for half the delay or more, and
+	 * those of terminated threads. Runs every half delay, so events wait the
+	 * delay at most.
+	 */
+	void sweep() {
+		long age = delayNanos / 2;
+		long now = System.nanoTime();
+		for (Stage s : all) {
+			boolean alive = s.isAlive();
+			synchronized (s) {
+				if (s.count > 0 && (!alive || now - s.oldest >= age))
+					handoff( s);
+			}
+			if (!alive)
+				all.remove( s);
+		}
+	}
+
+	/**
+	 * Creates the stage of the calling thread.
+	 */
+	private Stage register() {
+		Stage s = new Stage( Thread.currentThread());
+		stages.set( new WeakReference<Stage>( s));
+		all.add( s);
+		synchronized (this) {
+			if (sweeper == null && !closed) {
+				sweeper = SharedScheduler.schedule( new Runnable() {
+					public void run() {
+						sweep();
+					}
+				}, Math.max( 1, delay / 2));
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Hands the events of the stage to the logger. Called with the lock of
+	 * the stage.
+	 */
+	private void handoff( Stage s) {
+		logger.handoff( s.events, s.count, s.removed);
+		Arrays.fill( s.events, 0, s.count, null);
+		s.count = 0;
+	}
+
+	/**
+	 * Events staged by one thread, guarded by itself.
+	 */
+	private static final class Stage {
+
+		final QueuedEvent[] events = new QueuedEvent[STAGE_SIZE];
+		/** Receives the events dropped by a handoff. */
+		final QueuedEvent[] removed = new QueuedEvent[STAGE_SIZE];
+		/** Thread staging the events, cleared once collected. */
+		final WeakReference<Thread> owner;
+		/** Number of staged events. */
+		int count;
+		/** Time the oldest event was staged, in nanoseconds. */
+		long oldest;
+
+		Stage( Thread owner) {
+			this.owner = new WeakReference<Thread>( owner);
+		}
+
+		boolean isAlive() {
+			Thread t = owner.get();
+			return t != null && t.isAlive();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.logentries.net;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Process-wide TLS socket factory of the loggers.
+ *
+ * <p>Setting up the default {@link javax.net.ssl.SSLContext} loads the JSSE
+ * provider, the trust store and a secure random generator, which takes a
+ * noticeable time. It is done once per process and only when a logger uses
+ * SSL. {@link #preload()} starts it in the background as soon as SSL is
+ * configured, so neither the configuring thread nor, usually, the first
+ * connection waits for it.</p>
+ */
+final class TlsContext {
+
+	/** Whether the background set up was started. */
+	private static final AtomicBoolean PRELOADING = new AtomicBoolean();
+
+	private TlsContext() {
+	}
+
+	/**
+	 * Returns the default TLS socket factory, setting it up if needed.
+	 */
+	static SSLSocketFactory factory() {
+		return Holder.FACTORY;
+	}
+
+	/**
+	 * Sets up the factory on a background thread, once.
+	 */
+	static void preload() {
+		if (!PRELOADING.compareAndSet( false, true))
+			return;
+		Thread t = new Thread( new Runnable() {
+			public void run() {
+				factory();
+			}
+		}, "Logentries TLS setup");
+		t.setDaemon( true);
+		t.start();
+	}
+
+	/**
+	 * Lazily initialized factory.
+	 */
+	private static final class Holder {
+		static final SSLSocketFactory FACTORY = (SSLSocketFactory) SSLSocketFactory.getDefault();
+	}
+}
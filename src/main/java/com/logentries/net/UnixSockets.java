@@ -0,0 +1,110 @@
+package com.logentries.net;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens Unix domain socket channels, on JDKs which support them (16+).
+ *
+ * <p>The library targets older JDKs, so the API is looked up reflectively.</p>
+ */
+final class UnixSockets {
+
+	/** StandardProtocolFamily.UNIX, null if unsupported. */
+	private static final Object UNIX = unixFamily();
+	/** SocketChannel.open(ProtocolFamily). */
+	private static final Method OPEN = UNIX != null ? method( SocketChannel.class, "open", "java.net.ProtocolFamily") : null;
+	/** UnixDomainSocketAddress.of(String). */
+	private static final Method ADDRESS = UNIX != null ? method( "java.net.UnixDomainSocketAddress", "of", String.class) : null;
+
+	private UnixSockets() {
+	}
+
+	/**
+	 * Returns true if the JDK supports Unix domain socket channels.
+	 */
+	static boolean isSupported() {
+		return OPEN != null && ADDRESS != null;
+	}
+
+	/**
+	 * Connects a blocking channel to the socket file.
+	 *
+	 * @param path path of the socket file
+	 * @return connected channel
+	 * @throws IOException if the JDK lacks support or the connect failed
+	 */
+	static SocketChannel connect( String path) throws IOException {
+		if (!isSupported())
+			throw new IOException( "Unix domain sockets need Java 16 or newer");
+
+		SocketChannel channel = (SocketChannel) invoke( OPEN, UNIX);
+		try {
+			channel.connect( address( path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Returns the socket address of the socket file.
+	 */
+	static SocketAddress address( String path) throws IOException {
+		if (!isSupported())
+			throw new IOException( "Unix domain sockets need Java 16 or newer");
+		return (SocketAddress) invoke( ADDRESS, path);
+	}
+
+	/**
+	 * Returns the protocol family for a channel open method.
+	 */
+	static Object family() {
+		return UNIX;
+	}
+
+	private static Object invoke( Method method, Object arg) throws IOException {
+		try {
+			return method.invoke( null, arg);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException( cause.toString());
+		} catch (IllegalAccessException e) {
+			throw new IOException( e.toString());
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object unixFamily() {
+		try {
+			Class c = Class.forName( "java.net.StandardProtocolFamily");
+			return Enum.valueOf( c, "UNIX");
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	private static Method method( Class<?> type, String name, String paramType) {
+		try {
+			return type.getMethod( name, Class.forName( paramType));
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	private static Method method( String type, String name, Class<?> paramType) {
+		try {
+			return Class.forName( type).getMethod( name, paramType);
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+}
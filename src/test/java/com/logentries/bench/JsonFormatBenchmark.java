@@ -0,0 +1,72 @@
+package com.logentries.bench;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.logentries.logback.LogentriesAppender;
+import com.logentries.net.AsyncLogger;
+
+/**
+ * Compares the cost of the pattern layout and the JSON event format of the
+ * logback appender.
+ *
+ * <p>Not a unit test; run it with
+ * <code>java -cp target/classes:target/test-classes:... com.logentries.bench.JsonFormatBenchmark</code>.</p>
+ */
+public class JsonFormatBenchmark {
+
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 1000000;
+
+	public static void main(String[] args) {
+		LoggerContext context = new LoggerContext();
+		Logger logger = context.getLogger("com.acme.billing.InvoiceService");
+		context.putProperty("ignored", "ignored");
+		LoggingEvent event = new LoggingEvent("fqcn", logger, Level.INFO,
+				"Invoice {} created for customer {} with \"quotes\"", null, new Object[] { 42, "acme" });
+		event.getMDCPropertyMap();
+
+		LogentriesAppender text = appender(context, "text");
+		LogentriesAppender json = appender(context, "json");
+
+		for (int round = 0; round < 3; round++) {
+			report("pattern", text, event);
+			report("json", json, event);
+		}
+	}
+
+	private static LogentriesAppender appender(LoggerContext context, String format) {
+		LogentriesAppender appender = new LogentriesAppender(new NullLogger());
+		appender.setContext(context);
+		appender.setFacility("USER");
+		appender.setFormat(format);
+		appender.start();
+		return appender;
+	}
+
+	private static void report(String name, LogentriesAppender appender, LoggingEvent event) {
+		for (int i = 0; i < WARMUP; i++) {
+			appender.doAppend(event);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			appender.doAppend(event);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + ": " + (elapsed / ITERATIONS) + " ns/event");
+	}
+
+	/**
+	 * Logger which drops everything, so only formatting is measured.
+	 */
+	static class NullLogger extends AsyncLogger {
+		@Override
+		public void addLineToQueue(String line, String token) {
+		}
+
+		@Override
+		public void addEncodedLineToQueue(byte[] line, String token) {
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.logentries.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.ReusableSimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import com.logentries.log4j2.LogentriesAppender;
+
+/**
+ * Measures time and heap allocation per event of the Log4j 2 appender, from
+ * a reused event to the {@link com.logentries.net.AsyncLogger} queue, without
+ * routes and with MDC routes.
+ *
+ * <p>The logger has no credentials, so the sender never starts and the full
+ * queue keeps recycling its oldest events. Not a unit test; run it with
+ * <code>-Dlog4j2.enable.threadlocals=true</code> on the classpath of the test
+ * sources.</p>
+ */
+public class Log4j2AppenderBenchmark {
+
+	private static final int WARMUP = 500000;
+	private static final int ITERATIONS = 2000000;
+
+	public static void main(String[] args) {
+		PatternLayout layout = PatternLayout.newBuilder()
+				.withPattern("%d{ISO8601} %-5level [%t] %logger - %m%n")
+				.withCharset(Charset.forName("UTF-8"))
+				.build();
+		// HTTP PUT without an account key: the sender never starts
+		LogentriesAppender plain = LogentriesAppender.newBuilder().setName("bench").setHttpPut(true)
+				.setLayout(layout).build();
+		// The event has a tenant no route matches, so every rule is checked
+		LogentriesAppender routed = LogentriesAppender.newBuilder().setName("bench-mdc").setHttpPut(true)
+				.setLayout(layout).setRoutes("mdc:tenant=acme=TOKEN1; mdc:region=eu=TOKEN2").build();
+
+		ReusableSimpleMessage message = new ReusableSimpleMessage();
+		message.set("Invoice 42 created for customer acme");
+		SortedArrayStringMap contextData = new SortedArrayStringMap();
+		contextData.putValue("tenant", "globex");
+		MutableLogEvent event = new MutableLogEvent();
+		event.setLoggerName("com.acme.billing.InvoiceService");
+		event.setLevel(Level.INFO);
+		event.setMessage(message);
+		event.setThreadName("main");
+		event.setContextData(contextData);
+
+		run("log4j2", plain, event);
+		run("log4j2 mdc routes", routed, event);
+	}
+
+	private static void run(String name, LogentriesAppender appender, MutableLogEvent event) {
+		appender.start();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < WARMUP; i++) {
+				event.setTimeMillis(System.currentTimeMillis());
+				appender.append(event);
+			}
+
+			long allocated = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				event.setTimeMillis(System.currentTimeMillis());
+				appender.append(event);
+			}
+			long elapsed = System.nanoTime() - start;
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+			System.out.println(name + ": " + (elapsed / ITERATIONS) + " ns/event, "
+					+ ((double) allocated / ITERATIONS) + " bytes/event");
+		}
+		appender.stop();
+	}
+}
@@ -0,0 +1,67 @@
+package com.logentries.bench;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import com.logentries.net.AsyncLogger;
+
+/**
+ * Measures the cost of starting many loggers: time until each has delivered
+ * its first line to a local endpoint, and the platform threads they hold.
+ *
+ * <p>Senders run on virtual threads from Java 21; run it with
+ * <code>-Dcom.logentries.virtualThreads=false</code> to compare with platform
+ * threads.</p>
+ *
+ * <p>Not a unit test; run it with
+ * <code>java -cp target/classes:target/test-classes:... com.logentries.bench.SenderStartupBenchmark</code>.</p>
+ */
+public class SenderStartupBenchmark {
+
+	private static final int LOGGERS = 500;
+
+	public static void main(String[] args) throws Exception {
+		final ServerSocket server = new ServerSocket(0, LOGGERS);
+		final CountDownLatch received = new CountDownLatch(LOGGERS);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Socket peer = server.accept();
+						InputStream in = peer.getInputStream();
+						// One line each, wait for its end
+						int b;
+						while ((b = in.read()) != -1 && b != '\n') {
+						}
+						received.countDown();
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		AsyncLogger[] loggers = new AsyncLogger[LOGGERS];
+		long start = System.nanoTime();
+		for (int i = 0; i < LOGGERS; i++) {
+			loggers[i] = new AsyncLogger();
+			loggers[i].setToken("f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1");
+			loggers[i].setEndpoints("127.0.0.1:" + server.getLocalPort());
+			loggers[i].addLineToQueue("started " + i);
+		}
+		received.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(LOGGERS + " loggers: " + (elapsed / 1000 / LOGGERS) + " us/logger, "
+				+ (ManagementFactory.getThreadMXBean().getThreadCount() - threads) + " more platform threads");
+		for (AsyncLogger logger : loggers)
+			logger.close();
+		server.close();
+	}
+}
@@ -0,0 +1,116 @@
+package com.logentries.bench;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.logentries.net.AsyncLogger;
+
+/**
+ * Compares the cost of logging from many threads at once with events queued
+ * one by one and with per-thread staging. Threads do some work between
+ * events, as request threads would; the cost of logging is their time per
+ * event minus that of the same work without logging. A local endpoint
+ * discards what the sender writes.
+ *
+ * <p>Not a unit test; run it with
+ * <code>java -cp target/classes:target/test-classes:... com.logentries.bench.StagingBenchmark [threads]</code>.</p>
+ */
+public class StagingBenchmark {
+
+	private static final int EVENTS_PER_THREAD = 1000000;
+	/** Iterations of busy work between events. */
+	private static final int WORK = 200;
+	private static final int ROUNDS = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final ServerSocket server = new ServerSocket(0);
+		Thread sink = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						final Socket peer = server.accept();
+						Thread reader = new Thread(new Runnable() {
+							public void run() {
+								try {
+									InputStream in = peer.getInputStream();
+									byte[] buf = new byte[65536];
+									while (in.read(buf) != -1) {
+									}
+								} catch (Exception e) {
+									// Closed
+								}
+							}
+						});
+						reader.setDaemon(true);
+						reader.start();
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		});
+		sink.setDaemon(true);
+		sink.start();
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long work = run(null, threads);
+			run("direct", threads, 0, server.getLocalPort(), work);
+			run("staged 5ms", threads, 5, server.getLocalPort(), work);
+		}
+		server.close();
+	}
+
+	private static void run(String name, int threads, int stagingDelay, int port, long work) throws Exception {
+		final AsyncLogger logger = new AsyncLogger();
+		logger.setToken("f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1");
+		logger.setEndpoints("127.0.0.1:" + port);
+		logger.setStagingDelay(stagingDelay);
+		long perEvent = run(logger, threads);
+		System.out.println(name + ", " + threads + " threads: " + (perEvent - work) + " ns/event logging cost per thread, "
+				+ logger.getDroppedEvents() * 100 / ((long) threads * EVENTS_PER_THREAD) + "% dropped");
+		logger.close();
+	}
+
+	/**
+	 * Runs the producers, logging to the logger unless null.
+	 *
+	 * @return time per event of each thread, in nanoseconds
+	 */
+	private static long run(final AsyncLogger logger, int threads) throws Exception {
+		final byte[] line = "2016-03-01 12:00:00,000 INFO [worker-1] c.e.Service - Invoice 42 created".getBytes(UTF8);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong busy = new AtomicLong();
+		Thread[] producers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			producers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long begin = System.nanoTime();
+					long sum = 0;
+					for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+						for (int w = 0; w < WORK; w++)
+							sum = sum * 31 + w;
+						if (logger != null)
+							logger.addEncodedLineToQueue(line, 0, line.length, null);
+					}
+					busy.addAndGet(System.nanoTime() - begin + (sum == 42 ? 1 : 0));
+				}
+			});
+			producers[t].start();
+		}
+		start.countDown();
+		for (Thread producer : producers)
+			producer.join();
+		return busy.get() / ((long) threads * EVENTS_PER_THREAD);
+	}
+}
@@ -0,0 +1,88 @@
+package com.logentries.bench;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import com.logentries.net.AsyncLogger;
+
+/**
+ * Measures what short-lived processes pay for logging: the time to create the
+ * first logger, class initialization included, the time until its first line
+ * reaches a local endpoint, and the heap held by loggers that never log.
+ * Also prints the one-off cost of the default TLS context, which only loggers
+ * using SSL set up.
+ *
+ * <p>Only the first figures of a fresh JVM mean anything, so each run
+ * measures once. Not a unit test; run it with
+ * <code>java -cp target/classes:target/test-classes:... com.logentries.bench.StartupFootprintBenchmark</code>.</p>
+ */
+public class StartupFootprintBenchmark {
+
+	private static final int IDLE_LOGGERS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		final CountDownLatch received = new CountDownLatch(1);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket peer = server.accept();
+					InputStream in = peer.getInputStream();
+					int b;
+					while ((b = in.read()) != -1 && b != '\n') {
+					}
+					received.countDown();
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		long start = System.nanoTime();
+		AsyncLogger first = new AsyncLogger();
+		long created = System.nanoTime();
+		first.setToken("f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1");
+		first.setEndpoints("127.0.0.1:" + server.getLocalPort());
+		first.addLineToQueue("first");
+		received.await();
+		long delivered = System.nanoTime();
+
+		long tlsStart = System.nanoTime();
+		SSLSocketFactory.getDefault();
+		long tls = System.nanoTime() - tlsStart;
+
+		// Configured, but disabled or silent
+		long before = usedHeap();
+		AsyncLogger[] idle = new AsyncLogger[IDLE_LOGGERS];
+		for (int i = 0; i < IDLE_LOGGERS; i++) {
+			idle[i] = new AsyncLogger();
+			idle[i].setEndpoints("127.0.0.1:" + server.getLocalPort());
+		}
+		long perLogger = (usedHeap() - before) / IDLE_LOGGERS;
+
+		System.out.println("first logger created in " + (created - start) / 1000 + " us, first line delivered in "
+				+ (delivered - start) / 1000 + " us");
+		System.out.println("idle logger footprint: " + perLogger + " bytes");
+		System.out.println("default TLS context: " + tls / 1000 + " us");
+
+		first.close();
+		for (AsyncLogger logger : idle)
+			logger.close();
+		server.close();
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,134 @@
+package com.logentries.jul;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.logentries.net.AsyncLogger;
+import com.logentries.net.EventFormatter;
+
+public class LogentriesHandlerTest {
+
+	private static final String PREFIX = "com.logentries.jul.LogentriesHandler.";
+
+	/** Formatter with a trailing line break, like the JDK ones. */
+	public static class MessageFormatter extends Formatter {
+		@Override
+		public String format(LogRecord record) {
+			return record.getLevel() + " " + formatMessage(record) + "\n";
+		}
+	}
+
+	private static void configure(String properties) throws Exception {
+		LogManager.getLogManager().readConfiguration(new ByteArrayInputStream(properties.getBytes("ISO-8859-1")));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		LogManager.getLogManager().readConfiguration();
+	}
+
+	@Test
+	public void configurationTest() throws Exception {
+		configure(PREFIX + "token = some-token\n"
+				+ PREFIX + "ssl = true\n"
+				+ PREFIX + "level = WARNING\n"
+				+ PREFIX + "lazy = true\n"
+				+ PREFIX + "formatter = " + MessageFormatter.class.getName() + "\n");
+
+		LogentriesHandler handler = new LogentriesHandler();
+		assertEquals("some-token", handler.le_async.getToken());
+		assertTrue(handler.le_async.getSsl());
+		assertEquals(Level.WARNING, handler.getLevel());
+		assertTrue(handler.lazy);
+		assertTrue(handler.getFormatter() instanceof MessageFormatter);
+	}
+
+	@Test
+	public void contextClassLoaderTest() throws Exception {
+		configure(PREFIX + "formatter = com.acme.WebappFormatter\n");
+		// Only the loader of the application knows the formatter
+		ClassLoader webapp = new ClassLoader(getClass().getClassLoader()) {
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (name.equals("com.acme.WebappFormatter"))
+					return MessageFormatter.class;
+				return super.loadClass(name, resolve);
+			}
+		};
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(webapp);
+		try {
+			LogentriesHandler handler = new LogentriesHandler(Mockito.mock(AsyncLogger.class));
+			assertTrue(handler.getFormatter() instanceof MessageFormatter);
+		} finally {
+			thread.setContextClassLoader(previous);
+		}
+	}
+
+	@Test
+	public void unknownFormatterTest() throws Exception {
+		configure(PREFIX + "formatter = com.acme.MissingFormatter\n");
+		PrintStream err = System.err;
+		ByteArrayOutputStream reported = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(reported, true));
+		LogentriesHandler handler;
+		try {
+			handler = new LogentriesHandler(Mockito.mock(AsyncLogger.class));
+		} finally {
+			System.setErr(err);
+		}
+		assertTrue("Default formatter expected", handler.getFormatter() instanceof SimpleFormatter);
+		String report = reported.toString("ISO-8859-1");
+		assertTrue(report, report.contains("com.acme.MissingFormatter"));
+	}
+
+	@Test
+	public void publishTest() throws Exception {
+		configure(PREFIX + "level = INFO\n"
+				+ PREFIX + "formatter = " + MessageFormatter.class.getName() + "\n");
+		AsyncLogger client = Mockito.mock(AsyncLogger.class);
+		LogentriesHandler handler = new LogentriesHandler(client);
+
+		handler.publish(new LogRecord(Level.FINE, "dropped"));
+		handler.publish(new LogRecord(Level.INFO, "sent {0}"));
+		LogRecord record = new LogRecord(Level.INFO, "sent {0}");
+		record.setParameters(new Object[] { "with params" });
+		handler.publish(record);
+
+		Mockito.verify(client).addLineToQueue("INFO sent {0}", null);
+		Mockito.verify(client).addLineToQueue("INFO sent with params", null);
+		Mockito.verify(client, Mockito.never()).addLineToQueue(Mockito.contains("dropped"), (String) Mockito.any());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void lazyTest() throws Exception {
+		configure(PREFIX + "lazy = true\n"
+				+ PREFIX + "routes = level:ERROR=errors\n"
+				+ PREFIX + "formatter = " + MessageFormatter.class.getName() + "\n");
+		AsyncLogger client = Mockito.mock(AsyncLogger.class);
+		LogentriesHandler handler = new LogentriesHandler(client);
+
+		LogRecord record = new LogRecord(Level.SEVERE, "failed");
+		handler.publish(record);
+
+		ArgumentCaptor<EventFormatter> formatter = ArgumentCaptor.forClass(EventFormatter.class);
+		Mockito.verify(client).addEventToQueue(Mockito.same(record), formatter.capture(), Mockito.eq("errors"));
+		assertEquals("Record should be formatted by the sender", "SEVERE failed",
+				formatter.getValue().format(record));
+	}
+}
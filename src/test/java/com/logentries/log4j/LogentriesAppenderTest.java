@@ -2,7 +2,13 @@ package com.logentries.log4j;
 
 import static org.junit.Assert.*;
 
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.logentries.net.AsyncLogger;
 
 public class LogentriesAppenderTest {
 
@@ -26,4 +32,19 @@ public class LogentriesAppenderTest {
 		assertEquals(le.le_async.getSsl(),true);
 	}
 
+	@Test
+	public void jsonFormatTest() {
+		LogentriesAppender le = new LogentriesAppender();
+		le.le_async = Mockito.mock(AsyncLogger.class);
+		le.setFormat("json");
+		assertFalse("JSON format doesn't need a layout", le.requiresLayout());
+
+		Logger logger = Logger.getLogger("com.acme.Foo");
+		le.doAppend(new LoggingEvent("fqcn", logger, 1234L, Level.WARN, "say \"hi\"", "main",
+				null, null, null, null));
+
+		Mockito.verify(le.le_async).addLineToQueue(
+				"{\"timestamp\":1234,\"level\":\"WARN\",\"logger\":\"com.acme.Foo\",\"thread\":\"main\",\"message\":\"say \\\"hi\\\"\"}",
+				null);
+	}
 }
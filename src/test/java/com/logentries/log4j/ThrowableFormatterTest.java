@@ -0,0 +1,85 @@
+package com.logentries.log4j;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class ThrowableFormatterTest {
+
+	private static Throwable nested() {
+		try {
+			try {
+				throw new IllegalStateException("inner");
+			} catch (IllegalStateException e) {
+				throw new RuntimeException("outer", e);
+			}
+		} catch (RuntimeException e) {
+			return e;
+		}
+	}
+
+	private static String printed(Throwable t) {
+		StringWriter w = new StringWriter();
+		t.printStackTrace(new PrintWriter(w));
+		String s = w.toString().trim();
+		return s.replace(System.getProperty("line.separator"), ThrowableFormatter.DELIMITER);
+	}
+
+	@Test
+	public void testMatchesPrintStackTrace()
+	{
+		Throwable t = nested();
+		StringBuilder out = new StringBuilder();
+		new ThrowableFormatter().format(t, out);
+		assertEquals(printed(t), out.toString());
+	}
+
+	@Test
+	public void testMaxFrames()
+	{
+		Throwable t = new RuntimeException("boom");
+		t.setStackTrace(new StackTraceElement[] {
+				new StackTraceElement("a.A", "a", "A.java", 1),
+				new StackTraceElement("b.B", "b", "B.java", 2),
+				new StackTraceElement("c.C", "c", "C.java", 3) });
+
+		ThrowableFormatter f = new ThrowableFormatter();
+		f.setMaxFrames(1);
+		StringBuilder out = new StringBuilder();
+		f.format(t, out);
+		assertEquals("java.lang.RuntimeException: boom" + ThrowableFormatter.DELIMITER
+				+ "\tat a.A.a(A.java:1)" + ThrowableFormatter.DELIMITER
+				+ "\t... 2 more", out.toString());
+	}
+
+	@Test
+	public void testFrameFilter()
+	{
+		Throwable t = new RuntimeException("boom");
+		t.setStackTrace(new StackTraceElement[] {
+				new StackTraceElement("a.A", "a", "A.java", 1),
+				new StackTraceElement("sun.reflect.GeneratedMethodAccessor1", "invoke", null, -1),
+				new StackTraceElement("com.sun.proxy.$Proxy3", "call", null, -1),
+				new StackTraceElement("c.C", "c", "C.java", 3) });
+
+		ThrowableFormatter f = new ThrowableFormatter();
+		f.setFrameFilter("sun.reflect, com.sun.proxy");
+		StringBuilder out = new StringBuilder();
+		f.format(t, out);
+		assertEquals("java.lang.RuntimeException: boom" + ThrowableFormatter.DELIMITER
+				+ "\tat a.A.a(A.java:1)" + ThrowableFormatter.DELIMITER
+				+ "\t... 2 filtered" + ThrowableFormatter.DELIMITER
+				+ "\tat c.C.c(C.java:3)", out.toString());
+	}
+
+	@Test
+	public void testLines()
+	{
+		StringBuilder out = new StringBuilder("event, ");
+		ThrowableFormatter.formatLines(new String[] { "a", "\tat b" }, out);
+		assertEquals("event, a" + ThrowableFormatter.DELIMITER + "\tat b", out.toString());
+	}
+}
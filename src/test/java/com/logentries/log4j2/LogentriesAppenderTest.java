@@ -0,0 +1,159 @@
+package com.logentries.log4j2;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.logentries.net.AsyncLogger;
+import com.logentries.net.RoutingTable;
+
+public class LogentriesAppenderTest {
+
+	private static final String token = "some-token";
+	private static final String location = "some location";
+	private static final String accountKey = "account key";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static LogEvent event(String logger, Level level, String message) {
+		return Log4jLogEvent.newBuilder().setLoggerName(logger).setLevel(level)
+				.setMessage(new SimpleMessage(message)).build();
+	}
+
+	@Test
+	public void factoryTest() {
+		LogentriesAppender le = LogentriesAppender.newBuilder().setName("le").setToken(token).setHttpPut(true)
+				.setKey(accountKey).setLocation(location).setSsl(true).setVerifyHostname(false).setKeepAlive(true)
+				.setIdleTimeout(300).setWriteTimeout(30).setEndpoints("localhost:10000").setMaxEventSize(4096).setOversizePolicy("split")
+				.setRedact("card, key:password").setSlowEventThreshold(250).setStagingDelay(5).build();
+		assertEquals(le.le_async.getToken(), token);
+		assertEquals(le.le_async.getHttpPut(), true);
+		assertEquals(le.le_async.getKey(), accountKey);
+		assertEquals(le.le_async.getLocation(), location);
+		assertEquals(le.le_async.getSsl(), true);
+		assertEquals(le.le_async.getVerifyHostname(), false);
+		assertEquals(le.le_async.getKeepAlive(), true);
+		assertEquals(le.le_async.getIdleTimeout(), 300);
+		assertEquals(le.le_async.getWriteTimeout(), 30);
+		assertEquals(le.le_async.getEndpoints(), "localhost:10000");
+		assertEquals(le.le_async.getRedact(), "card, key:password");
+		assertEquals(le.le_async.getSlowEventThreshold(), 250);
+		assertEquals(le.le_async.getStagingDelay(), 5);
+		assertNull("No routes configured", le.routes);
+		assertNotNull("Default layout should be used", le.getLayout());
+
+		assertNull("Appender needs a name", LogentriesAppender.newBuilder().setToken(token).build());
+	}
+
+	private static Configuration configuration(String context) {
+		ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+		builder.setLoggerContext(new LoggerContext(context));
+		return builder.build(false);
+	}
+
+	@Test
+	public void contextTest() {
+		// Two logger contexts in one JVM, each with an appender named le
+		LogentriesAppender a = LogentriesAppender.newBuilder().setName("le").setToken("token-a")
+				.setConfiguration(configuration("a")).build();
+		LogentriesAppender b = LogentriesAppender.newBuilder().setName("le").setToken("token-b")
+				.setConfiguration(configuration("b")).build();
+		assertNotSame(a.le_async, b.le_async);
+		assertEquals("token-a", a.le_async.getToken());
+		assertEquals("token-b", b.le_async.getToken());
+		a.stop();
+		b.stop();
+	}
+
+	@Test
+	public void encodeTest() {
+		AsyncLogger client = Mockito.mock(AsyncLogger.class);
+		Mockito.when(client.getRenderLimit()).thenReturn(Integer.MAX_VALUE);
+		PatternLayout layout = PatternLayout.newBuilder().withPattern("%level %logger - %m%n").withCharset(UTF8).build();
+		LogentriesAppender le = new LogentriesAppender("le", null, layout, true, null, client,
+				RoutingTable.parse("level:ERROR=errors"));
+		le.start();
+
+		ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> offset = ArgumentCaptor.forClass(Integer.class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+
+		le.append(event("com.acme.Foo", Level.WARN, "caf\u00e9"));
+		Mockito.verify(client).addEncodedLineToQueue(bytes.capture(), offset.capture(), length.capture(),
+				(String) Mockito.isNull());
+		assertEquals("WARN com.acme.Foo - caf\u00e9\n",
+				new String(bytes.getValue(), offset.getValue(), length.getValue(), UTF8));
+
+		le.append(event("com.acme.Foo", Level.ERROR, "failed"));
+		Mockito.verify(client).addEncodedLineToQueue(bytes.capture(), offset.capture(), length.capture(),
+				Mockito.eq("errors"));
+	}
+
+	@Test
+	public void mdcRouteTest() {
+		AsyncLogger client = Mockito.mock(AsyncLogger.class);
+		Mockito.when(client.getRenderLimit()).thenReturn(Integer.MAX_VALUE);
+		LogentriesAppender le = new LogentriesAppender("le", null, PatternLayout.createDefaultLayout(), true, null,
+				client, RoutingTable.parse("mdc:tenant=acme=acme-token"));
+
+		SortedArrayStringMap contextData = new SortedArrayStringMap();
+		contextData.putValue("tenant", "acme");
+		le.append(Log4jLogEvent.newBuilder().setLoggerName("com.acme.Foo").setLevel(Level.INFO)
+				.setMessage(new SimpleMessage("routed")).setContextData(contextData).build());
+		Mockito.verify(client).addEncodedLineToQueue(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt(),
+				Mockito.eq("acme-token"));
+
+		le.append(event("com.acme.Foo", Level.INFO, "default"));
+		Mockito.verify(client).addEncodedLineToQueue(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt(),
+				(String) Mockito.isNull());
+	}
+
+	@Test
+	public void largeEventTest() {
+		AsyncLogger client = Mockito.mock(AsyncLogger.class);
+		Mockito.when(client.getRenderLimit()).thenReturn(Integer.MAX_VALUE, 101);
+		PatternLayout layout = PatternLayout.newBuilder().withPattern("%m").build();
+		LogentriesAppender le = new LogentriesAppender("le", null, layout, true, null, client, null);
+
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			message.append(i % 10);
+
+		ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> offset = ArgumentCaptor.forClass(Integer.class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		le.append(event("com.acme.Foo", Level.INFO, message.toString()));
+		Mockito.verify(client).addEncodedLineToQueue(bytes.capture(), offset.capture(), length.capture(),
+				(String) Mockito.isNull());
+		assertEquals("Buffer should grow for events larger than its initial size", message.toString(),
+				new String(bytes.getValue(), offset.getValue(), length.getValue(), UTF8));
+
+		// Events to be truncated are not rendered past the limit
+		le.append(event("com.acme.Foo", Level.INFO, message.toString()));
+		Mockito.verify(client, Mockito.times(2)).addEncodedLineToQueue(bytes.capture(), offset.capture(),
+				length.capture(), (String) Mockito.isNull());
+		assertEquals(101, length.getValue().intValue());
+		assertEquals(message.substring(0, 101), new String(bytes.getValue(), offset.getValue(), 101, UTF8));
+	}
+
+	@Test
+	public void levelTest() {
+		assertEquals(40000, LogentriesAppender.toLevel(Level.ERROR));
+		assertEquals(20000, LogentriesAppender.toLevel(Level.INFO));
+		assertEquals(5000, LogentriesAppender.toLevel(Level.TRACE));
+	}
+}
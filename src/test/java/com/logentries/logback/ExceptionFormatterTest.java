@@ -2,6 +2,7 @@ package com.logentries.logback;
 
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import com.logentries.net.JsonWriter;
 import junit.framework.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -26,4 +27,27 @@ public class ExceptionFormatterTest {
                 ExceptionFormatter.DELIMITER + ExceptionFormatter.TAB +
                 "trace level 1" + ExceptionFormatter.DELIMITER);
 	}
+
+	@Test
+	public void testJsonException() {
+        IThrowableProxy cause = Mockito.mock(IThrowableProxy.class);
+        Mockito.stub(cause.getClassName()).toReturn("java.io.IOException");
+        Mockito.stub(cause.getMessage()).toReturn("closed");
+
+        StackTraceElementProxy l1 = Mockito.mock(StackTraceElementProxy.class);
+        Mockito.stub(l1.getSTEAsString()).toReturn("at Foo.bar(Foo.java:1)");
+
+        IThrowableProxy error = Mockito.mock(IThrowableProxy.class);
+        Mockito.stub(error.getClassName()).toReturn("com.foo.SomeException");
+        Mockito.stub(error.getMessage()).toReturn("err!");
+        Mockito.stub(error.getStackTraceElementProxyArray()).toReturn(new StackTraceElementProxy[] {l1});
+        Mockito.stub(error.getCause()).toReturn(cause);
+
+        JsonWriter json = new JsonWriter(new StringBuilder());
+        ExceptionFormatter.writeException(error, json);
+        Assert.assertEquals("{\"class\":\"com.foo.SomeException\",\"message\":\"err!\"," +
+                "\"stack\":[\"at Foo.bar(Foo.java:1)\"]," +
+                "\"cause\":{\"class\":\"java.io.IOException\",\"message\":\"closed\",\"stack\":[]}}",
+                json.buffer().toString());
+	}
 }
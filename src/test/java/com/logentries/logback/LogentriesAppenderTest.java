@@ -1,22 +1,46 @@
 package com.logentries.logback;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import com.logentries.net.AsyncLogger;
 import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 public class LogentriesAppenderTest {
 
     private static final String token = "some-token";
     private static final String location = "some location";
     private static final String accountKey = "account key";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private AsyncLogger client;
     private LogentriesAppender le;
+    /** Queued lines, as "token: line". */
+    private final List<String> queued = new ArrayList<String>();
 
     @Before
     public void setUp() {
         client = Mockito.mock(AsyncLogger.class);
+        Mockito.when(client.getRenderLimit()).thenReturn(Integer.MAX_VALUE);
+        // The appender reuses its buffer, record the lines as they are queued
+        Mockito.doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                queued.add(args[3] + ": " + new String((byte[]) args[0], (Integer) args[1], (Integer) args[2], UTF8));
+                return null;
+            }
+        }).when(client).addEncodedLineToQueue(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt(),
+                (String) Mockito.any());
         le = new LogentriesAppender(client);
     }
 
@@ -59,4 +83,85 @@ public class LogentriesAppenderTest {
         }
         Assert.assertTrue("No exception thrown", true);
     }
+
+    @Test
+    public void testRoutes() {
+        LoggerContext context = new LoggerContext();
+        Logger billing = context.getLogger("com.acme.billing.Invoice");
+        Logger other = context.getLogger("org.example.Foo");
+
+        le.setContext(context);
+        le.setFacility("USER");
+        le.setRoutes("logger:com.acme.billing=billing-token");
+        le.start();
+
+        le.doAppend(new LoggingEvent("fqcn", billing, Level.INFO, "routed", null, null));
+        le.doAppend(new LoggingEvent("fqcn", other, Level.INFO, "default", null, null));
+
+        Assert.assertEquals(2, queued.size());
+        Assert.assertTrue(queued.get(0), queued.get(0).startsWith("billing-token: "));
+        Assert.assertTrue(queued.get(0).endsWith("routed"));
+        Assert.assertTrue(queued.get(1), queued.get(1).startsWith("null: "));
+        Assert.assertTrue(queued.get(1).endsWith("default"));
+    }
+
+    @Test
+    public void testEncoder() {
+        LoggerContext context = new LoggerContext();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%level %logger - %msg%n");
+        encoder.start();
+
+        le.setContext(context);
+        le.setEncoder(encoder);
+        le.start();
+        le.doAppend(new LoggingEvent("fqcn", context.getLogger("com.acme.Foo"), Level.WARN,
+                "caf\u00e9", null, null));
+
+        Assert.assertEquals("Configured encoder should render the event in UTF-8",
+                "null: WARN com.acme.Foo - caf\u00e9\n", queued.get(0));
+    }
+
+    @Test
+    public void testEncoderCharsetForcedToUtf8() {
+        LoggerContext context = new LoggerContext();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%msg");
+        encoder.setCharset(Charset.forName("ISO-8859-1"));
+        encoder.start();
+
+        le.setContext(context);
+        le.setEncoder(encoder);
+        le.start();
+        le.doAppend(new LoggingEvent("fqcn", context.getLogger("com.acme.Foo"), Level.INFO,
+                "caf\u00e9", null, null));
+
+        Assert.assertEquals(UTF8, encoder.getCharset());
+        Assert.assertEquals("null: caf\u00e9", queued.get(0));
+    }
+
+    @Test
+    public void testRenderLimit() {
+        Mockito.when(client.getRenderLimit()).thenReturn(65);
+        LoggerContext context = new LoggerContext();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%msg");
+        encoder.start();
+
+        le.setContext(context);
+        le.setEncoder(encoder);
+        le.start();
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            message.append(i % 10);
+        }
+        le.doAppend(new LoggingEvent("fqcn", context.getLogger("com.acme.Foo"), Level.INFO,
+                message.toString(), null, null));
+
+        Assert.assertEquals("Bytes past the limit should not be kept",
+                "null: " + message.substring(0, 65), queued.get(0));
+    }
 }
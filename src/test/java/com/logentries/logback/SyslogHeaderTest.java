@@ -0,0 +1,58 @@
+package com.logentries.logback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.logentries.net.AsyncLogger;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.nio.charset.Charset;
+
+public class SyslogHeaderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testMatchesSyslogStartConverter() {
+        LoggerContext context = new LoggerContext();
+        AsyncLogger client = Mockito.mock(AsyncLogger.class);
+        LogentriesAppender le = new LogentriesAppender(client);
+        le.setContext(context);
+        le.setFacility("LOCAL3");
+        le.start();
+        Layout<ILoggingEvent> reference = le.buildLayout();
+
+        Level[] levels = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR };
+        long[] times = { 0L, 999L, 1000L, 1400000000123L, 1400000000999L, 1400000001000L };
+        for (Level level : levels) {
+            for (long time : times) {
+                LoggingEvent event = new LoggingEvent("fqcn", context.getLogger("com.acme.Foo"), level,
+                        "message", null, null);
+                event.setTimeStamp(time);
+                event.setThreadName("main");
+
+                Mockito.reset(client);
+                Mockito.when(client.getRenderLimit()).thenReturn(Integer.MAX_VALUE);
+                le.doAppend(event);
+                ArgumentCaptor<byte[]> line = ArgumentCaptor.forClass(byte[].class);
+                ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+                Mockito.verify(client).addEncodedLineToQueue(line.capture(), Mockito.eq(0), length.capture(),
+                        (String) Mockito.isNull());
+                Assert.assertEquals(reference.doLayout(event), new String(line.getValue(), 0, length.getValue(), UTF8));
+            }
+        }
+    }
+
+    @Test
+    public void testTimestampCache() {
+        SyslogHeader header = new SyslogHeader(8, "host");
+        byte[] first = header.timestamp(1400000000123L);
+        Assert.assertSame("Same second should reuse the cached timestamp", first, header.timestamp(1400000000999L));
+        Assert.assertNotSame(first, header.timestamp(1400000001000L));
+    }
+}
@@ -0,0 +1,318 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AsyncLoggerTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testEncodedLinesAreCopiedAndRecycled()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		byte[] buffer = "xxhello".getBytes(UTF8);
+		logger.addEncodedLineToQueue(buffer, 2, 5, "token");
+		buffer[2] = 'j';
+
+		QueuedEvent event = logger.queue.poll();
+		assertEquals("Event should hold a copy of the line", "hello", new String(event.bytes, 0, event.length, UTF8));
+		assertEquals("token", event.token);
+
+		logger.recycle(event);
+		logger.addEncodedLineToQueue(buffer, 2, 5, null);
+		assertSame("Recycled event should be reused", event, logger.queue.poll());
+		assertEquals("jello", new String(event.bytes, 0, event.length, UTF8));
+		assertNull(event.token);
+	}
+
+	@Test
+	public void testUnpooledEventsAreNotRecycled()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.addLineToQueue("line");
+		logger.recycle(logger.queue.poll());
+		assertTrue(logger.pool.isEmpty());
+	}
+
+	@Test
+	public void testLinesAreSentToEndpoint() throws Exception
+	{
+		String token = "f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1";
+		ServerSocket server = new ServerSocket(0);
+		AsyncLogger logger = new AsyncLogger();
+		try {
+			logger.setToken(token);
+			logger.setEndpoints("127.0.0.1:" + server.getLocalPort());
+			for (int i = 0; i < 100; i++)
+				logger.addLineToQueue("line " + i);
+			logger.addLineToQueue("routed", "other");
+
+			Socket peer = server.accept();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(peer.getInputStream(), UTF8));
+			for (int i = 0; i < 100; i++)
+				assertEquals(token + "line " + i, reader.readLine());
+			assertEquals("otherrouted", reader.readLine());
+			peer.close();
+
+			// Recorded right after the write
+			for (int i = 0; i < 100 && logger.getDeliveryLatency().getCount() < 101; i++)
+				Thread.sleep(50);
+			assertEquals(101, logger.getDeliveryLatency().getCount());
+			assertEquals(101, logger.getQueueWaitLatency().getCount());
+			assertTrue(logger.getWriteLatency().getCount() >= 1);
+		} finally {
+			logger.close();
+			server.close();
+		}
+	}
+
+	private static String encode( AsyncLogger logger, QueuedEvent event)
+	{
+		logger.appender.buffer.reset();
+		logger.appender.encode(event);
+		return new String(logger.appender.buffer.buf, 0, logger.appender.buffer.length, UTF8);
+	}
+
+	private static String repeat( String s, int n)
+	{
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			b.append(s);
+		return b.toString();
+	}
+
+	@Test
+	public void testOversizedEventsAreTruncated()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setMaxEventSize(100);
+		logger.addLineToQueue(repeat("\u00e9", 10000));
+		byte[] bytes = repeat("x", 10000).getBytes(UTF8);
+		logger.addEncodedLineToQueue(bytes, 0, bytes.length, null);
+		logger.setToken("t ");
+
+		QueuedEvent event = logger.queue.poll();
+		assertEquals("Oversized lines should be cut on enqueue", 101, event.line.length());
+		assertEquals("t " + repeat("\u00e9", 44) + " [truncated]\n", encode(logger, event));
+
+		event = logger.queue.poll();
+		assertEquals("Oversized events should be copied up to the limit", 101, event.length);
+		assertEquals("t " + repeat("x", 88) + " [truncated]\n", encode(logger, event));
+
+		assertEquals("t " + repeat("x", 100) + "\n", encode(logger, new QueuedEvent(repeat("x", 100), null)));
+	}
+
+	@Test
+	public void testOversizedEventsAreSplit()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setToken("t ");
+		logger.setMaxEventSize(64);
+		logger.setOversizePolicy("split");
+
+		String message = repeat("0123456789", 10) + "\n" + repeat("\u00e9", 20);
+		String[] lines = encode(logger, new QueuedEvent(message, null)).split("\n");
+		assertEquals(4, lines.length);
+		String id = lines[0].substring("t [chunk ".length(), lines[0].indexOf(' ', "t [chunk ".length()));
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < lines.length; i++) {
+			String prefix = "t [chunk " + id + " " + (i + 1) + (i == lines.length - 1 ? " end] " : "] ");
+			assertTrue(lines[i], lines[i].startsWith(prefix));
+			assertTrue("Chunks should fit the limit", lines[i].substring(2).getBytes(UTF8).length <= 64);
+			joined.append(lines[i].substring(prefix.length()));
+		}
+		assertEquals(message.replace('\n', '\u2028'), joined.toString());
+
+		byte[] bytes = message.getBytes(UTF8);
+		String[] fromBytes = encode(logger, new QueuedEvent(bytes, null)).split("\n");
+		assertEquals(4, fromBytes.length);
+		assertTrue(fromBytes[3], fromBytes[3].contains(" 4 end] \u00e9"));
+	}
+
+	@Test
+	public void testEventsAreRedacted()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setToken("password=");
+		logger.setRedact("card, key:password");
+		assertEquals("card, key:password", logger.getRedact());
+
+		assertEquals("The token should not be redacted", "password=login password=*** card ************1111\n",
+				encode(logger, new QueuedEvent("login password=abc card 4111111111111111", null)));
+
+		logger.setMaxEventSize(64);
+		assertEquals("password=" + repeat("password=* ", 4) + "password [truncated]\n",
+				encode(logger, new QueuedEvent(repeat("password=x ", 10), null)));
+
+		// Secrets across the cut are masked whole
+		String card = "4111 1111 1111 1111";
+		String message = repeat("x", 40) + " " + card + " tail";
+		assertEquals("Events should be rendered in full to be redacted", Integer.MAX_VALUE, logger.getRenderLimit());
+		assertEquals("password=" + repeat("x", 40) + " **** **** * [truncated]\n",
+				encode(logger, new QueuedEvent(message, null)));
+
+		logger.setOversizePolicy("split");
+		StringBuilder joined = new StringBuilder();
+		for (String line : encode(logger, new QueuedEvent(message.getBytes(UTF8), null)).split("\n")) {
+			assertFalse(line, line.contains("4111"));
+			joined.append(line.substring(line.indexOf("] ") + 2));
+		}
+		assertEquals(repeat("x", 40) + " **** **** **** 1111 tail", joined.toString());
+		logger.setOversizePolicy("truncate");
+
+		logger.setRedact(null);
+		assertNull(logger.getRedact());
+		assertEquals("password=password=abc\n", encode(logger, new QueuedEvent("password=abc", null)));
+	}
+
+	@Test
+	public void testSenderRunsOnExecutor() throws Exception
+	{
+		ServerSocket server = new ServerSocket(0);
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+		AsyncLogger logger = new AsyncLogger();
+		try {
+			logger.setToken("f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1");
+			logger.setEndpoints("127.0.0.1:" + server.getLocalPort());
+			logger.setExecutor(executor);
+			logger.addLineToQueue("line");
+
+			Socket peer = server.accept();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(peer.getInputStream(), UTF8));
+			assertTrue(reader.readLine().endsWith("line"));
+			assertTrue(logger.appender.getThread().getName().startsWith("pool-"));
+
+			// Closing frees the pool thread
+			logger.close();
+			for (int i = 0; i < 100 && executor.getCompletedTaskCount() == 0; i++)
+				Thread.sleep(50);
+			assertEquals(1, executor.getCompletedTaskCount());
+			assertNull(logger.appender.getThread());
+			peer.close();
+
+			// Not restarted once closed
+			logger.addLineToQueue("line");
+			assertEquals(1, executor.getTaskCount());
+		} finally {
+			logger.close();
+			executor.shutdownNow();
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+			server.close();
+		}
+	}
+
+	@Test
+	public void testOfferDoesNotDrop()
+	{
+		// No token, so nothing drains the queue
+		AsyncLogger logger = new AsyncLogger();
+		int capacity = logger.remainingCapacity();
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < capacity + 10; i++)
+			lines.add("line " + i);
+
+		assertEquals(capacity, logger.offer(lines, null));
+		assertEquals(0, logger.remainingCapacity());
+		assertFalse(logger.offer("more", null));
+		ByteBuffer record = ByteBuffer.wrap("record".getBytes(UTF8));
+		assertFalse(logger.offer(record, null));
+		assertEquals("A rejected record should not be consumed", 6, record.remaining());
+		assertEquals("line 0", logger.queue.peek().line);
+
+		logger.recycle(logger.queue.poll());
+		assertTrue(logger.offer(record, "other"));
+		assertEquals(0, record.remaining());
+	}
+
+	@Test
+	public void testOfferedRecordsAreCopied()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setMaxEventSize(64);
+		ByteBuffer direct = ByteBuffer.allocateDirect(100);
+		direct.put(repeat("y", 100).getBytes(UTF8));
+		direct.flip();
+		assertTrue(logger.offer(direct, null));
+		logger.setToken("t ");
+
+		QueuedEvent event = logger.queue.poll();
+		assertTrue(event.truncated);
+		assertEquals(65, event.length);
+		assertEquals("t " + repeat("y", 52) + " [truncated]\n", encode(logger, event));
+	}
+
+	@Test
+	public void testReconfigureKeepsConnectionAndQueue() throws Exception
+	{
+		String token = "f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1";
+		ServerSocket first = new ServerSocket(0);
+		ServerSocket second = new ServerSocket(0);
+		AsyncLogger logger = new AsyncLogger();
+		try {
+			logger.setToken(token);
+			logger.setEndpoints("127.0.0.1:" + first.getLocalPort());
+			logger.addLineToQueue("one");
+			Socket peer = first.accept();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(peer.getInputStream(), UTF8));
+			assertEquals(token + "one", reader.readLine());
+
+			// Same connection settings, the connection is kept
+			AsyncLogger config = new AsyncLogger();
+			config.setToken(token);
+			config.setEndpoints("127.0.0.1:" + first.getLocalPort());
+			config.setRedact("key:password");
+			config.setBatchSize(1024);
+			logger.reconfigure(config);
+			assertEquals(1024, logger.getBatchSize());
+			logger.addLineToQueue("password=secret");
+			assertEquals(token + "password=******", reader.readLine());
+
+			// New endpoint, the sender moves over
+			config.setEndpoints("127.0.0.1:" + second.getLocalPort());
+			logger.reconfigure(config);
+			logger.addLineToQueue("two");
+			Socket moved = second.accept();
+			reader = new BufferedReader(new InputStreamReader(moved.getInputStream(), UTF8));
+			assertEquals(token + "two", reader.readLine());
+			peer.close();
+			moved.close();
+		} finally {
+			logger.close();
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testQueueSize()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		assertTrue("The queue should grow as needed", logger.queue.slots() < 32768);
+		logger.setQueueSize(2);
+		assertTrue(logger.offer("a", null));
+		assertEquals(1, logger.remainingCapacity());
+		assertTrue(logger.offer("b", null));
+		assertFalse(logger.offer("c", null));
+		logger.addLineToQueue("d");
+		assertEquals("The oldest event should be dropped", 2, logger.getQueueLength());
+		assertEquals("b", logger.queue.peek().line);
+		assertEquals(1, logger.getDroppedEvents());
+
+		logger.setQueueSize(Integer.MAX_VALUE);
+		assertEquals(32768, logger.getQueueSize());
+	}
+}
@@ -0,0 +1,103 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatagramSenderTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DatagramSocket receiver;
+	private DatagramSender sender;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		receiver.setSoTimeout(5000);
+		sender = new DatagramSender(32);
+	}
+
+	@After
+	public void tearDown()
+	{
+		sender.close();
+		receiver.close();
+	}
+
+	private String receive() throws Exception
+	{
+		DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+		receiver.receive(p);
+		return new String(p.getData(), 0, p.getLength(), UTF8);
+	}
+
+	private void send( String lines)
+	{
+		byte[] b = ("xx" + lines).getBytes(UTF8);
+		sender.send(b, 2, b.length - 2);
+	}
+
+	@Test
+	public void testLinesArePacked() throws Exception
+	{
+		sender.open(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()), false);
+		send("t one\nt two\nt three\nt a longer line\n");
+		assertEquals("t one\nt two\nt three\n", receive());
+		assertEquals("t a longer line\n", receive());
+
+		// Too long lines are truncated without splitting characters
+		send("t short\nt 01234567890123456789012345\u00e9\u00e9\u00e9\nt next\n");
+		assertEquals("t short\n", receive());
+		assertEquals("t 01234567890123456789012345\u00e9\n", receive());
+		assertEquals("t next\n", receive());
+
+		assertEquals(5, sender.datagrams.get());
+		assertEquals(7, sender.lines.get());
+		assertEquals(1, sender.truncated.get());
+		assertEquals(0, sender.errors.get());
+	}
+
+	@Test
+	public void testSyslogFraming() throws Exception
+	{
+		sender = new DatagramSender(DatagramSender.MAX_DATAGRAM);
+		sender.open(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()), true);
+		send("token one\ntoken two\n");
+		String first = receive();
+		assertTrue(first, first.matches("<14>1 \\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\dZ \\S+ - - - - token one"));
+		assertTrue(receive().endsWith(" - - - - token two"));
+	}
+
+	@Test
+	public void testBoundary()
+	{
+		byte[] b = "a\u00e9".getBytes(UTF8);
+		assertEquals(1, DatagramSender.boundary(b, 0, 2));
+		assertEquals(1, DatagramSender.boundary(b, 0, 1));
+	}
+
+	@Test
+	public void testClientUdpEndpoint() throws Exception
+	{
+		LogentriesClient client = new LogentriesClient(false, true);
+		client.setEndpoints("udp:127.0.0.1:" + receiver.getLocalPort());
+		client.connect();
+		byte[] lines = "token one\ntoken two\n".getBytes(UTF8);
+		client.write(lines, 0, lines.length);
+		assertEquals("token one\ntoken two\n", receive());
+		assertEquals(1, client.getDatagramsSent());
+		assertEquals(2, client.getDatagramLines());
+		assertEquals("udp:127.0.0.1/127.0.0.1:" + receiver.getLocalPort(), client.getTarget().toString());
+		client.close();
+	}
+}
@@ -0,0 +1,165 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EndpointResolverTest {
+
+	/** Resolver with a fake clock and DNS. */
+	static class FakeResolver extends EndpointResolver {
+		long time;
+		int lookups;
+		/** Whether lookups fail. */
+		boolean dnsDown;
+
+		FakeResolver( String spec) {
+			super(parse(spec, 10000), 60000);
+		}
+
+		@Override
+		InetAddress[] lookup( String host) throws UnknownHostException {
+			lookups++;
+			if (dnsDown || host.equals("unknown"))
+				throw new UnknownHostException(host);
+			return new InetAddress[] {
+				InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")
+			};
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void testParse()
+	{
+		List<EndpointResolver.Endpoint> list = EndpointResolver.parse(" relay, api.logentries.com:20000 ,[::1]:9000", 10000);
+		assertEquals(3, list.size());
+		assertEquals("relay:10000", list.get(0).toString());
+		assertEquals("api.logentries.com:20000", list.get(1).toString());
+		assertEquals("::1", list.get(2).host);
+		assertEquals(9000, list.get(2).port);
+
+		try {
+			EndpointResolver.parse("relay:port", 10000);
+			fail("Invalid port should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testAddressesAreCachedAndRotated()
+	{
+		FakeResolver resolver = new FakeResolver("relay");
+		List<EndpointResolver.Target> first = resolver.candidates();
+		List<EndpointResolver.Target> second = resolver.candidates();
+		assertEquals("Addresses should be cached", 1, resolver.lookups);
+		assertEquals(2, first.size());
+		assertEquals("Connections should be spread over the addresses",
+				first.get(1).address, second.get(0).address);
+
+		resolver.time += 61000000000L;
+		resolver.candidates();
+		assertEquals("Addresses should be resolved again after the TTL", 2, resolver.lookups);
+	}
+
+	@Test
+	public void testFailedLookupsAreRetriedAfterBackoff()
+	{
+		FakeResolver resolver = new FakeResolver("relay");
+		resolver.dnsDown = true;
+		assertTrue(resolver.candidates().isEmpty());
+		resolver.dnsDown = false;
+		assertTrue("Failure should be cached for the backoff", resolver.candidates().isEmpty());
+		assertEquals(1, resolver.lookups);
+
+		resolver.time += 1000000000L;
+		assertEquals("Lookup should be retried after the backoff, not the TTL", 2, resolver.candidates().size());
+		assertEquals(2, resolver.lookups);
+
+		// Stale addresses are used while DNS is down
+		resolver.dnsDown = true;
+		resolver.time += 61000000000L;
+		assertEquals(2, resolver.candidates().size());
+		assertEquals(3, resolver.lookups);
+		resolver.time += 1000000000L;
+		resolver.candidates();
+		assertEquals("Lookup should be retried after the backoff", 4, resolver.lookups);
+		resolver.time += 1000000000L;
+		resolver.candidates();
+		assertEquals("Backoff should grow", 4, resolver.lookups);
+	}
+
+	@Test
+	public void testFailedAddressesAreTriedLast()
+	{
+		FakeResolver resolver = new FakeResolver("unknown, relay:1, cloud:2");
+		List<EndpointResolver.Target> targets = resolver.candidates();
+		assertEquals("Unresolved endpoints should be skipped", 4, targets.size());
+		assertEquals("relay", targets.get(0).endpoint.host);
+		assertEquals("cloud", targets.get(2).endpoint.host);
+
+		// Fail both relay addresses, the first one twice
+		resolver.failed(targets.get(0));
+		resolver.failed(targets.get(0));
+		resolver.failed(targets.get(1));
+		targets = resolver.candidates();
+		assertEquals("cloud", targets.get(0).endpoint.host);
+		assertEquals("cloud", targets.get(1).endpoint.host);
+		assertEquals("Shorter backoff should come first", "127.0.0.2",
+				targets.get(2).address.getAddress().getHostAddress());
+
+		// Backoff of the second address is over
+		resolver.time += 1000000000L;
+		targets = resolver.candidates();
+		assertEquals("relay", targets.get(0).endpoint.host);
+		assertEquals("cloud", targets.get(1).endpoint.host);
+
+		resolver.succeeded(targets.get(3));
+		assertEquals("relay", resolver.candidates().get(1).endpoint.host);
+	}
+
+	@Test
+	public void testClientFailsOverToNextEndpoint() throws Exception
+	{
+		ServerSocket closed = new ServerSocket(0);
+		int deadPort = closed.getLocalPort();
+		closed.close();
+
+		ServerSocket server = new ServerSocket(0);
+		try {
+			LogentriesClient client = new LogentriesClient(false, false);
+			client.setEndpoints("127.0.0.1:" + deadPort + ", 127.0.0.1:" + server.getLocalPort());
+			client.connect();
+			Socket peer = server.accept();
+			assertEquals(server.getLocalPort(), client.getTarget().address.getPort());
+
+			byte[] line = "token hello\n".getBytes("UTF-8");
+			client.write(line, 0, line.length);
+			byte[] read = new byte[line.length];
+			int n = 0;
+			while (n < read.length)
+				n += peer.getInputStream().read(read, n, read.length - n);
+			assertEquals("token hello\n", new String(read, "UTF-8"));
+
+			// The dead endpoint is avoided on reconnect
+			client.close();
+			peer.close();
+			EndpointResolver.Target next = client.getResolver().candidates().get(0);
+			assertEquals(server.getLocalPort(), next.address.getPort());
+			client.close();
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class EventQueueTest {
+
+	@Test
+	public void testGrowsUpToCapacity()
+	{
+		EventQueue queue = new EventQueue(2, 5);
+		assertEquals(2, queue.slots());
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		for (int i = 0; i < 5; i++)
+			assertTrue(queue.offer(new QueuedEvent("e" + i, null)));
+		assertFalse("A full queue should reject events", queue.offer(new QueuedEvent("e5", null)));
+		assertEquals("Slots should double, but not past the capacity", 5, queue.slots());
+		assertEquals(5, queue.size());
+		assertEquals(0, queue.remainingCapacity());
+
+		for (int i = 0; i < 5; i++)
+			assertEquals("e" + i, queue.poll().line);
+		assertEquals(5, queue.remainingCapacity());
+	}
+
+	@Test
+	public void testGrowWrappedRing()
+	{
+		EventQueue queue = new EventQueue(4, 16);
+		for (int i = 0; i < 3; i++)
+			queue.offer(new QueuedEvent("a" + i, null));
+		queue.poll();
+		queue.poll();
+		// a2 sits at the end of the array, b0 to b2 wrap around
+		for (int i = 0; i < 3; i++)
+			queue.offer(new QueuedEvent("b" + i, null));
+		assertEquals(4, queue.slots());
+		queue.offer(new QueuedEvent("c", null));
+		assertEquals(8, queue.slots());
+
+		assertEquals("a2", queue.peek().line);
+		String[] expected = { "a2", "b0", "b1", "b2", "c" };
+		for (String line : expected)
+			assertEquals(line, queue.poll().line);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testOfferMany()
+	{
+		EventQueue queue = new EventQueue(4, 16);
+		queue.offer(new QueuedEvent("a", null));
+		queue.offer(new QueuedEvent("b", null));
+		queue.poll();
+		QueuedEvent[] events = new QueuedEvent[8];
+		for (int i = 0; i < events.length; i++)
+			events[i] = new QueuedEvent("c" + i, null);
+		QueuedEvent[] removed = new QueuedEvent[8];
+
+		assertEquals(0, queue.offer(events, 5, 100, removed));
+		assertEquals(8, queue.slots());
+		assertEquals(6, queue.size());
+
+		// The oldest make room
+		assertEquals(2, queue.offer(events, 2, 6, removed));
+		assertEquals("b", removed[0].line);
+		assertEquals("c0", removed[1].line);
+
+		// More than the limit, the first new ones are dropped too
+		assertEquals(8, queue.offer(events, 8, 6, removed));
+		assertEquals("c1", removed[1].line);
+		assertEquals(6, queue.size());
+		String[] expected = { "c2", "c3", "c4", "c5", "c6", "c7" };
+		for (String line : expected)
+			assertEquals(line, queue.poll().line);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testTakeWaitsForEvent() throws Exception
+	{
+		final EventQueue queue = new EventQueue(1, 1);
+		final AtomicReference<QueuedEvent> taken = new AtomicReference<QueuedEvent>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread sender = new Thread() {
+			@Override
+			public void run()
+			{
+				try {
+					taken.set(queue.take());
+				} catch (InterruptedException e) {
+					// Not expected
+				}
+				done.countDown();
+			}
+		};
+		sender.start();
+		assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+		QueuedEvent event = new QueuedEvent("line", null);
+		queue.offer(event);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertSame(event, taken.get());
+	}
+}
@@ -0,0 +1,436 @@
+package com.logentries.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * In-process stand-in for the Logentries token TCP endpoint, with injectable
+ * faults.
+ *
+ * <p>Lines are expected as the token followed by "event N", N being a
+ * sequence number. The server records which numbers arrived, once each, and
+ * the connections they came on, so events lost with a broken connection can
+ * be told apart from events lost anywhere else, and from duplicates resent
+ * after a reconnect.</p>
+ */
+final class FakeLogentriesServer implements Closeable {
+
+	/**
+	 * Faults the server can be switched to.
+	 */
+	enum Fault {
+		/** Lines are read as fast as they arrive. */
+		NONE,
+		/** About 64 KB are read per second, so writes block. */
+		SLOW_READER,
+		/** Connections are reset after a few kilobytes, in the middle of a batch. */
+		RESET,
+		/** The port stops listening and open connections are closed, connects are refused. */
+		REFUSE,
+		/** New connections are not read from for a while, as during a slow TLS handshake. */
+		HANDSHAKE_DELAY,
+		/** Connections are no longer read from nor closed, as if the peer vanished. */
+		HALF_OPEN
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Bytes read at a time by a slow reader. */
+	private static final int SLOW_CHUNK = 1024;
+	/** Pause of a slow reader after each chunk, in milliseconds. */
+	private static final int SLOW_PAUSE = 16;
+	/** Bytes read on a connection before it is reset. */
+	private static final int RESET_AFTER = 4096;
+	/** Receive buffer of connections, small so that faults show quickly. */
+	private static final int RECEIVE_BUFFER = 16 * 1024;
+	/** Sequence numbers follow the token and this prefix. */
+	private static final byte[] EVENT = "event ".getBytes(UTF8);
+
+	private final byte[] token;
+	private final int port;
+	/** Current fault, changed under the lock of the server. */
+	private volatile Fault fault = Fault.NONE;
+	/** Time new connections wait before being read during a handshake delay, in milliseconds. */
+	private volatile long handshakeDelay = 500;
+
+	/*
+	 * Guarded by this
+	 */
+	private ServerSocket listener;
+	private boolean closed;
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private final BitSet delivered = new BitSet();
+	private int maxSeq = -1;
+	private int duplicates;
+	private int garbled;
+
+	/**
+	 * Starts listening on an ephemeral port of the loopback interface.
+	 *
+	 * @param token token expected in front of each line
+	 */
+	FakeLogentriesServer( String token) throws IOException
+	{
+		this.token = token.getBytes(UTF8);
+		ServerSocket socket = new ServerSocket();
+		socket.setReceiveBufferSize(RECEIVE_BUFFER);
+		socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		this.port = socket.getLocalPort();
+		listen(socket);
+	}
+
+	int getPort()
+	{
+		return port;
+	}
+
+	String getEndpoint()
+	{
+		return "127.0.0.1:" + port;
+	}
+
+	void setHandshakeDelay( long millis)
+	{
+		this.handshakeDelay = millis;
+	}
+
+	/**
+	 * Switches to the fault, replacing the previous one.
+	 */
+	synchronized void inject( Fault fault) throws IOException
+	{
+		if (this.fault == Fault.REFUSE && fault != Fault.REFUSE)
+			listen(bind());
+		this.fault = fault;
+		if (fault == Fault.REFUSE)
+		{
+			listener.close();
+			for (Connection c : connections)
+				c.close(false);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Goes back to normal. Connections left half open are reset, their unread
+	 * lines are lost.
+	 */
+	void clear() throws IOException
+	{
+		inject(Fault.NONE);
+	}
+
+	/**
+	 * Returns the number of distinct events received.
+	 */
+	synchronized int getDelivered()
+	{
+		return delivered.cardinality();
+	}
+
+	synchronized boolean isDelivered( int seq)
+	{
+		return delivered.get(seq);
+	}
+
+	/**
+	 * Returns the number of events received more than once.
+	 */
+	synchronized int getDuplicates()
+	{
+		return duplicates;
+	}
+
+	/**
+	 * Returns the number of lines without the token or a sequence number.
+	 */
+	synchronized int getGarbled()
+	{
+		return garbled;
+	}
+
+	synchronized int getConnections()
+	{
+		return connections.size();
+	}
+
+	/**
+	 * Waits for an event with a sequence number of at least the one given.
+	 *
+	 * @return false on timeout
+	 */
+	synchronized boolean awaitSeq( int seq, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (maxSeq < seq)
+		{
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the event may have been lost with a connection broken
+	 * by a fault: it was sent after the first event received on that
+	 * connection, and before the first event received on the next one.
+	 */
+	synchronized boolean inLossWindow( int seq)
+	{
+		int before = -1;
+		for (int i = 0; i < connections.size(); i++)
+		{
+			Connection c = connections.get(i);
+			if (c.faulted)
+			{
+				int lower = c.first >= 0 ? Math.min(c.first, before + 1) : before + 1;
+				int upper = Integer.MAX_VALUE;
+				for (int j = i + 1; j < connections.size() && upper == Integer.MAX_VALUE; j++)
+				{
+					if (connections.get(j).first >= 0)
+						upper = connections.get(j).first;
+				}
+				if (seq >= lower && seq < upper)
+					return true;
+			}
+			before = Math.max(before, c.max);
+		}
+		return false;
+	}
+
+	/**
+	 * Stops listening and closes all connections.
+	 */
+	public synchronized void close() throws IOException
+	{
+		closed = true;
+		listener.close();
+		for (Connection c : connections)
+			c.close(false);
+		notifyAll();
+	}
+
+	private ServerSocket bind() throws IOException
+	{
+		ServerSocket socket = new ServerSocket();
+		socket.setReuseAddress(true);
+		socket.setReceiveBufferSize(RECEIVE_BUFFER);
+		socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+		return socket;
+	}
+
+	private void listen( final ServerSocket socket)
+	{
+		listener = socket;
+		Thread acceptor = new Thread("Fake Logentries acceptor") {
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (true)
+						accepted(socket.accept());
+				}
+				catch (IOException e)
+				{
+					// Closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void accepted( Socket socket) throws IOException
+	{
+		final Connection c = new Connection(socket);
+		synchronized (this)
+		{
+			if (closed || fault == Fault.REFUSE)
+			{
+				socket.close();
+				return;
+			}
+			connections.add(c);
+		}
+		Thread reader = new Thread("Fake Logentries connection " + socket.getPort()) {
+			@Override
+			public void run()
+			{
+				c.read();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private synchronized void received( Connection c, byte[] line, int length)
+	{
+		int seq = parse(line, length);
+		if (seq < 0)
+		{
+			garbled++;
+			return;
+		}
+		if (c.first < 0)
+			c.first = seq;
+		c.max = Math.max(c.max, seq);
+		if (delivered.get(seq))
+			duplicates++;
+		else
+			delivered.set(seq);
+		if (seq > maxSeq)
+		{
+			maxSeq = seq;
+			notifyAll();
+		}
+	}
+
+	private int parse( byte[] line, int length)
+	{
+		int i = 0;
+		if (length < token.length + EVENT.length + 1)
+			return -1;
+		for (byte b : token)
+		{
+			if (line[i++] != b)
+				return -1;
+		}
+		for (byte b : EVENT)
+		{
+			if (line[i++] != b)
+				return -1;
+		}
+		int seq = 0;
+		int digits = 0;
+		for (; i < length && line[i] >= '0' && line[i] <= '9'; i++, digits++)
+			seq = seq * 10 + line[i] - '0';
+		return digits > 0 ? seq : -1;
+	}
+
+	/**
+	 * Accepted connection, read by a thread of its own.
+	 */
+	private final class Connection {
+
+		final Socket socket;
+		/** First and largest sequence numbers received, guarded by the server. */
+		int first = -1;
+		int max = -1;
+		/** Whether a fault broke the connection, guarded by the server. */
+		boolean faulted;
+
+		Connection( Socket socket)
+		{
+			this.socket = socket;
+		}
+
+		void read()
+		{
+			byte[] buf = new byte[8192];
+			byte[] line = new byte[1024];
+			int length = 0;
+			long bytes = 0;
+			try
+			{
+				InputStream in = socket.getInputStream();
+				if (fault == Fault.HANDSHAKE_DELAY)
+					Thread.sleep(handshakeDelay);
+				while (true)
+				{
+					Fault f = fault;
+					if (f == Fault.HALF_OPEN)
+					{
+						stall();
+						return;
+					}
+					if (f == Fault.RESET && bytes >= RESET_AFTER)
+					{
+						close(true);
+						return;
+					}
+
+					int n = in.read(buf, 0, f == Fault.SLOW_READER ? SLOW_CHUNK : buf.length);
+					if (n < 0)
+						break;
+					bytes += n;
+					for (int i = 0; i < n; i++)
+					{
+						if (buf[i] == '\n')
+						{
+							received(this, line, length);
+							length = 0;
+							continue;
+						}
+						if (length == line.length)
+						{
+							byte[] bigger = new byte[length * 2];
+							System.arraycopy(line, 0, bigger, 0, length);
+							line = bigger;
+						}
+						line[length++] = buf[i];
+					}
+					if (f == Fault.SLOW_READER)
+						Thread.sleep(SLOW_PAUSE);
+				}
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// Closed by a fault or the server
+			}
+			catch (InterruptedException e)
+			{
+				close(false);
+			}
+		}
+
+		/**
+		 * Leaves the connection unread until the fault is cleared, then resets
+		 * it.
+		 */
+		private void stall() throws InterruptedException
+		{
+			FakeLogentriesServer server = FakeLogentriesServer.this;
+			synchronized (server)
+			{
+				faulted = true;
+				while (fault == Fault.HALF_OPEN && !closed)
+					server.wait();
+			}
+			close(true);
+		}
+
+		/**
+		 * Closes the connection, with a reset rather than a regular close if
+		 * requested. Either way the connection counts as broken by a fault.
+		 */
+		void close( boolean reset)
+		{
+			synchronized (FakeLogentriesServer.this)
+			{
+				faulted = true;
+			}
+			try
+			{
+				if (reset)
+					socket.setSoLinger(true, 0);
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// Already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class JsonWriterTest {
+
+	@Test
+	public void testObject()
+	{
+		JsonWriter w = new JsonWriter(new StringBuilder());
+		w.beginObject()
+			.name("a").value(1)
+			.name("b").value("x")
+			.name("c").beginArray().value("y").value((String) null).endArray()
+			.name("d").beginObject().endObject()
+			.endObject();
+		assertEquals("{\"a\":1,\"b\":\"x\",\"c\":[\"y\",null],\"d\":{}}", w.buffer().toString());
+	}
+
+	@Test
+	public void testEscaping()
+	{
+		JsonWriter w = new JsonWriter(new StringBuilder());
+		w.value("q\"b\\n\nt\tu\u0001l\u2028e");
+		assertEquals("\"q\\\"b\\\\n\\nt\\tu\\u0001l\\u2028e\"", w.buffer().toString());
+	}
+
+	@Test
+	public void testReset()
+	{
+		JsonWriter w = new JsonWriter(new StringBuilder());
+		w.beginObject().name("a").value(1).endObject();
+		w.reset().beginObject().name("b").value(2).endObject();
+		assertEquals("Reset should clear output and separator state", "{\"b\":2}", w.buffer().toString());
+	}
+}
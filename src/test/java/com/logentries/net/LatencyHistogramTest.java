@@ -0,0 +1,39 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets()
+	{
+		for (long v : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE }) {
+			int i = LatencyHistogram.index(v);
+			assertTrue(v + " should be in its bucket", LatencyHistogram.highest(i) >= v);
+			assertTrue(v + " should be above the previous bucket", i == 0 || LatencyHistogram.highest(i - 1) < v);
+			assertTrue("Buckets should be within 1/16", LatencyHistogram.highest(i) - v <= v / 16);
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highest(LatencyHistogram.index(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99));
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		histogram.record(-5);
+
+		assertEquals(1001, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500000, histogram.getMean(), 1000);
+		assertEquals(500000, histogram.getPercentile(50), 500000 / 16);
+		assertEquals(990000, histogram.getPercentile(99), 990000 / 16);
+		assertEquals(1000000, histogram.getPercentile(100));
+		assertEquals(0, histogram.getPercentile(0));
+		assertTrue(histogram.toString(), histogram.toString().startsWith("count=1001 "));
+	}
+}
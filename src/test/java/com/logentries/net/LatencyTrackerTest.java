@@ -0,0 +1,69 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+	@Test
+	public void testSlowEventsAreSampled()
+	{
+		final List<long[]> reported = new ArrayList<long[]>();
+		LatencyTracker tracker = new LatencyTracker();
+		tracker.sink = new LatencyTracker.Sink() {
+			public void slowEvent( long queueWait, long encode, long write, long delivery, int bytes) {
+				reported.add(new long[] { queueWait, encode, write, delivery, bytes });
+			}
+		};
+		tracker.threshold = TimeUnit.MILLISECONDS.toNanos(10);
+
+		long t = TimeUnit.SECONDS.toNanos(100);
+		long ms = TimeUnit.MILLISECONDS.toNanos(1);
+		tracker.encoded(t, t + 20 * ms, t + 21 * ms, 100);
+		tracker.encoded(t + 20 * ms, t + 21 * ms, t + 22 * ms, 50);
+		tracker.written(t + 22 * ms, t + 25 * ms);
+
+		assertEquals(2, tracker.delivery.getCount());
+		assertEquals(1, tracker.slowEvents.get());
+		assertEquals(1, reported.size());
+		assertArrayEquals(new long[] { 20 * ms, ms, 3 * ms, 25 * ms, 100 }, reported.get(0));
+
+		// Beyond the budget of a second, slow events are only counted
+		for (int i = 0; i < 2 * LatencyTracker.MAX_SLOW_EVENTS; i++)
+			tracker.encoded(t, t + 30 * ms, t + 30 * ms, 10);
+		tracker.written(t + 30 * ms, t + 30 * ms);
+		assertEquals(1 + 2 * LatencyTracker.MAX_SLOW_EVENTS, tracker.slowEvents.get());
+		assertEquals(LatencyTracker.MAX_SLOW_EVENTS, reported.size());
+
+		tracker.encoded(t, t + 30 * ms, t + 30 * ms, 10);
+		tracker.written(t + 2000 * ms, t + 2000 * ms);
+		assertEquals(LatencyTracker.MAX_SLOW_EVENTS + 1, reported.size());
+	}
+
+	@Test
+	public void testFlightRecorderSink()
+	{
+		// Present from Java 8u262, committing without a recording is a no-op
+		LatencyTracker.Sink sink = LatencyTracker.flightRecorderSink();
+		if (sink != null)
+			sink.slowEvent(1, 2, 3, 4, 5);
+		assertSame("One sink per process", sink, LatencyTracker.flightRecorderSink());
+	}
+
+	@Test
+	public void testSinkSetWithThreshold()
+	{
+		LatencyTracker tracker = new LatencyTracker();
+		assertNull("No sink without a threshold", tracker.sink);
+		tracker.setThreshold(0);
+		assertNull(tracker.sink);
+		tracker.setThreshold(TimeUnit.MILLISECONDS.toNanos(10));
+		assertSame(LatencyTracker.flightRecorderSink(), tracker.sink);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10), tracker.threshold);
+	}
+}
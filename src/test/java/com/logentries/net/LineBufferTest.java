@@ -0,0 +1,68 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class LineBufferTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testAppendLine()
+	{
+		LineBuffer buffer = new LineBuffer(4);
+		byte[] line = "first\nsecond\r\n".getBytes(UTF8);
+		buffer.appendLine(line, 0, line.length);
+		assertEquals("Inner new lines should become line separators, the trailing one dropped",
+				"first\u2028second", new String(buffer.buf, 0, buffer.length, UTF8));
+	}
+
+	@Test
+	public void testGrowAndReset()
+	{
+		LineBuffer buffer = new LineBuffer(2);
+		byte[] data = "abcdef".getBytes(UTF8);
+		buffer.append(data, 0, data.length);
+		buffer.append((byte) '\n');
+		assertEquals("abcdef\n", new String(buffer.buf, 0, buffer.length, UTF8));
+
+		buffer.reset();
+		buffer.append(data, 1, 2);
+		assertEquals("bc", new String(buffer.buf, 0, buffer.length, UTF8));
+	}
+
+	@Test
+	public void testAppendText()
+	{
+		String text = "a\u00e9\u20ac\ud83d\ude00\ud83d\nz";
+		LineBuffer buffer = new LineBuffer(1);
+		assertEquals(text.length(), buffer.appendText(text, 0, Integer.MAX_VALUE));
+		String expected = "a\u00e9\u20ac\ud83d\ude00?\u2028z";
+		assertEquals("Should match the JDK encoder", expected, new String(buffer.buf, 0, buffer.length, UTF8));
+		assertEquals(buffer.length, LineBuffer.textLength(text));
+
+		// Characters are never split
+		buffer.reset();
+		assertEquals(3, buffer.appendText(text, 0, 9));
+		assertEquals("a\u00e9\u20ac", new String(buffer.buf, 0, buffer.length, UTF8));
+		assertEquals(5, buffer.appendText(text, 3, 4));
+		assertEquals(10, buffer.length);
+	}
+
+	@Test
+	public void testBoundedAppendLine()
+	{
+		byte[] line = "xa\u00e9\nb\n".getBytes(UTF8);
+		assertEquals(7, LineBuffer.lineLength(line, 1, line.length - 1));
+
+		LineBuffer buffer = new LineBuffer(4);
+		assertEquals("Should stop before the split character", 2, buffer.appendLine(line, 1, line.length - 1, 2));
+		assertEquals("a", new String(buffer.buf, 0, buffer.length, UTF8));
+		assertEquals(4, buffer.appendLine(line, 2, line.length - 2, 4));
+		assertEquals(line.length, buffer.appendLine(line, 4, line.length - 4, 4));
+		assertEquals("a\u00e9\u2028b", new String(buffer.buf, 0, buffer.length, UTF8));
+	}
+}
@@ -0,0 +1,125 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class LogSubscriberTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Subscription of a publisher honouring demand. */
+	public static class Subscription {
+		volatile long requested;
+		volatile Thread requestedBy;
+		boolean cancelled;
+
+		public void request(long n)
+		{
+			requested += n;
+			requestedBy = Thread.currentThread();
+		}
+
+		public void cancel()
+		{
+			cancelled = true;
+		}
+	}
+
+	@Test
+	public void testDemandFollowsQueueCapacity() throws Exception
+	{
+		// No token, so nothing drains the queue
+		AsyncLogger logger = new AsyncLogger();
+		int capacity = logger.remainingCapacity();
+		LogSubscriber subscriber = new LogSubscriber(logger, "audit");
+		Subscription subscription = new Subscription();
+		subscriber.onSubscribe(subscription);
+		assertEquals(capacity, subscription.requested);
+
+		// Deliver everything requested, with no room left nothing more is asked
+		for (int i = 0; i < capacity; i++)
+			subscriber.onNext(i % 3 == 0 ? "line" : i % 3 == 1 ? ByteBuffer.wrap("bytes".getBytes(UTF8)) : "x".getBytes(UTF8));
+		assertEquals(0, logger.remainingCapacity());
+		assertEquals(0, subscriber.getOutstanding());
+		assertEquals(capacity, subscription.requested);
+		assertEquals("audit", logger.queue.peek().token);
+
+		// The sender makes room, more is requested from another thread
+		for (int i = 0; i < capacity / 2; i++)
+			logger.queue.poll();
+		for (Runnable listener : logger.drainListeners)
+			listener.run();
+		for (int i = 0; i < 100 && subscription.requested == capacity; i++)
+			Thread.sleep(20);
+		assertEquals(capacity + capacity / 2, subscription.requested);
+		assertNotSame(Thread.currentThread(), subscription.requestedBy);
+
+		// A second subscription is refused
+		Subscription other = new Subscription();
+		subscriber.onSubscribe(other);
+		assertTrue(other.cancelled);
+
+		subscriber.onComplete();
+		assertTrue(logger.drainListeners.isEmpty());
+	}
+
+	@Test
+	public void testExcessItemsDropOldest()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		int capacity = logger.remainingCapacity();
+		for (int i = 0; i < capacity; i++)
+			logger.addLineToQueue("old " + i);
+
+		LogSubscriber subscriber = new LogSubscriber(logger, null);
+		Subscription subscription = new Subscription();
+		subscriber.onSubscribe(subscription);
+		assertEquals(0, subscription.requested);
+		subscriber.onNext("new");
+		assertEquals("old 1", logger.queue.peek().line);
+		subscriber.onError(new IllegalStateException());
+		assertTrue(logger.drainListeners.isEmpty());
+	}
+
+	@Test
+	public void testSynchronousPublisher()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		final int capacity = logger.remainingCapacity();
+		final LogSubscriber subscriber = new LogSubscriber(logger, null);
+		final int[] depth = new int[2];
+		// Delivers the items within request, as a range publisher does
+		Subscription subscription = new Subscription() {
+			@Override
+			public void request(long n)
+			{
+				super.request(n);
+				depth[1] = Math.max(depth[1], ++depth[0]);
+				for (long i = 0; i < n; i++)
+					subscriber.onNext("item");
+				depth[0]--;
+			}
+		};
+		subscriber.onSubscribe(subscription);
+		assertEquals("Requests should not nest", 1, depth[1]);
+		assertEquals(capacity, subscription.requested);
+		assertEquals(0, logger.remainingCapacity());
+	}
+
+	@Test
+	public void testNullItemRejected()
+	{
+		LogSubscriber subscriber = new LogSubscriber(new AsyncLogger(), null);
+		subscriber.onSubscribe(new Subscription());
+		try {
+			subscriber.onNext(null);
+			fail("Null items should be rejected");
+		} catch (NullPointerException e) {
+			// Expected
+		}
+	}
+}
@@ -1,5 +1,17 @@
 package com.logentries.net;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import org.junit.Assume;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -43,4 +55,111 @@ public class LogentriesClientTest {
 		LogentriesClient client6 = new LogentriesClient(false, false);
 		assertEquals("Port 10000 should be used for Token TCP", client6.getPort(), TOKEN_PORT);
 	}
+
+	@Test
+	public void testStalledWriteIsAborted() throws Exception
+	{
+		ServerSocket server = new ServerSocket(0);
+		try {
+			final LogentriesClient client = new LogentriesClient(false, false, "localhost", server.getLocalPort());
+			client.setTimeout(5000);
+			client.connect();
+			// The peer never reads, so writes block once the buffers are full
+			Socket peer = server.accept();
+
+			final IOException[] failure = new IOException[1];
+			Thread writer = new Thread() {
+				public void run() {
+					byte[] chunk = new byte[64 * 1024];
+					try {
+						while (true)
+							client.write(chunk, 0, chunk.length);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writer.start();
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!client.isStalled(TimeUnit.MILLISECONDS.toNanos(200))) {
+				assertTrue("Write should block", System.currentTimeMillis() < deadline);
+				Thread.sleep(50);
+			}
+			client.abort();
+			writer.join(5000);
+			assertNotNull("Blocked write should fail once aborted", failure[0]);
+			assertFalse(client.isStalled(0));
+			peer.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testIpLiteralEndpoint() throws Exception
+	{
+		ServerSocket server = new ServerSocket(0);
+		try {
+			String endpoint = "127.0.0.1:" + server.getLocalPort();
+
+			// Token TLS connects without a handshake, the first write starts it
+			LogentriesClient client = new LogentriesClient(false, true);
+			client.setEndpoints(endpoint);
+			client.setVerifyHostname(false);
+			client.connect();
+			server.accept().close();
+			assertEquals("127.0.0.1", client.getTarget().endpoint.host);
+			SSLSocket tls = (SSLSocket) client.getSocket();
+			assertNull("Host name should not be checked",
+					tls.getSSLParameters().getEndpointIdentificationAlgorithm());
+			client.close();
+
+			client = new LogentriesClient(false, true);
+			client.setEndpoints(endpoint);
+			client.connect();
+			server.accept().close();
+			tls = (SSLSocket) client.getSocket();
+			assertEquals("Host name should be checked by default", "HTTPS",
+					tls.getSSLParameters().getEndpointIdentificationAlgorithm());
+			client.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testUnixDomainSocket() throws Exception
+	{
+		Assume.assumeTrue(UnixSockets.isSupported());
+
+		File path = File.createTempFile("logentries", ".sock");
+		path.delete();
+		ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class
+				.getMethod("open", Class.forName("java.net.ProtocolFamily"))
+				.invoke(null, UnixSockets.family());
+		try {
+			server.bind(UnixSockets.address(path.getPath()));
+
+			// SSL is ignored for local sockets
+			LogentriesClient client = new LogentriesClient(false, true);
+			client.setEndpoints("unix:" + path.getPath());
+			client.connect();
+			SocketChannel peer = server.accept();
+
+			byte[] line = "token hello\n".getBytes("UTF-8");
+			client.write(line, 0, line.length);
+			ByteBuffer read = ByteBuffer.allocate(line.length);
+			while (read.hasRemaining())
+				peer.read(read);
+			assertEquals("token hello\n", new String(read.array(), "UTF-8"));
+			assertEquals("unix:" + path.getPath(), client.getTarget().toString());
+
+			client.close();
+			peer.close();
+		} finally {
+			server.close();
+			path.delete();
+		}
+	}
 }
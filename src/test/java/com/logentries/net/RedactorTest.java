@@ -0,0 +1,103 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class RedactorTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static String redact(String rules, String text)
+	{
+		byte[] bytes = text.getBytes(UTF8);
+		Redactor.compile(rules).redact(bytes, 0, bytes.length);
+		return new String(bytes, UTF8);
+	}
+
+	@Test
+	public void testCards()
+	{
+		assertEquals("paid with ************1111 today", redact("card", "paid with 4111111111111111 today"));
+		assertEquals("card ****-****-****-1111.", redact("card", "card 4111-1111-1111-1111."));
+		assertEquals("card **** **** **** 1111", redact("card", "card 4111 1111 1111 1111"));
+		assertEquals("Failing the Luhn check", "order 4111111111111112", redact("card", "order 4111111111111112"));
+		assertEquals("Too short", "id 411111111111", redact("card", "id 411111111111"));
+		assertEquals("Part of a word", "x4111111111111111", redact("card", "x4111111111111111"));
+		assertEquals("Double separators", "4111--1111-1111-1111", redact("card", "4111--1111-1111-1111"));
+		assertEquals("amex ***********0005", redact("card", "amex 378282246310005"));
+		assertEquals("mc ************4444", redact("card", "mc 5555555555554444"));
+		assertEquals("No issuer starts with 1", "id 1000000000009", redact("card", "id 1000000000009"));
+		assertEquals("No 15 digit Visa", "id 411111111111116", redact("card", "id 411111111111116"));
+		assertEquals("Decimal", "total 4111111111111111.50", redact("card", "total 4111111111111111.50"));
+		assertEquals("JSON number", "{\"id\": 4111111111111111}", redact("card", "{\"id\": 4111111111111111}"));
+		assertEquals("JSON string", "{\"card\":\"************1111\"}", redact("card", "{\"card\":\"4111111111111111\"}"));
+	}
+
+	@Test
+	public void testTimestampsKept()
+	{
+		// About one in ten 13 digit numbers passes the Luhn check
+		long millis = 1700000000000L;
+		for (int i = 0; i < 1000; i++) {
+			String plain = "at " + (millis + i) + " done";
+			assertEquals(plain, redact("card", plain));
+			String json = "{\"timestamp\":" + (millis + i) + "}";
+			assertEquals(json, redact("card", json));
+		}
+	}
+
+	@Test
+	public void testEmails()
+	{
+		assertEquals("mail ********@example.com sent", redact("email", "mail john.doe@example.com sent"));
+		assertEquals("No domain", "user@localhost", redact("email", "user@localhost"));
+		assertEquals("No local part", "@example.com", redact("email", "@example.com"));
+		assertEquals("<***@b.io>", redact("email", "<a+b@b.io>"));
+	}
+
+	@Test
+	public void testKeys()
+	{
+		String rules = "key:password, key:token";
+		assertEquals("login password=****** ok", redact(rules, "login password=secret ok"));
+		assertEquals("{\"Password\": \"*******\", \"user\":\"x\"}",
+				redact(rules, "{\"Password\": \"abc def\", \"user\":\"x\"}"));
+		assertEquals("a=1&token=***&b=2", redact(rules, "a=1&token=abc&b=2"));
+		assertEquals("Key without value", "password is required", redact(rules, "password is required"));
+	}
+
+	@Test
+	public void testLiterals()
+	{
+		assertEquals("host ******** and ********", redact("literal:internal", "host internal and INTERNAL"));
+		assertEquals("Overlapping patterns, the longest wins", "*******s",
+				redact("literal:abc, literal:abcdefg", "abcdefgs"));
+	}
+
+	@Test
+	public void testRegion()
+	{
+		byte[] bytes = "token password=x password=y".getBytes(UTF8);
+		Redactor.compile("key:password").redact(bytes, 6, 16);
+		assertEquals("Only the region should be redacted", "token password=* password=y", new String(bytes, UTF8));
+	}
+
+	@Test
+	public void testCompile()
+	{
+		assertNull(Redactor.compile(null));
+		assertNull(Redactor.compile(" "));
+		try
+		{
+			Redactor.compile("card, ssn");
+			fail("Unknown rules should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected
+		}
+	}
+}
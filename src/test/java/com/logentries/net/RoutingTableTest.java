@@ -0,0 +1,60 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RoutingTableTest {
+
+	private static final int INFO = 20000;
+	private static final int ERROR = 40000;
+
+	@Test
+	public void testLoggerPrefix()
+	{
+		RoutingTable table = RoutingTable.parse("logger:com.acme=A; logger:com.acme.billing=B");
+
+		assertEquals("Exact logger name should match", "A", table.route("com.acme", INFO, null));
+		assertEquals("Longest prefix should win", "B", table.route("com.acme.billing.Invoice", INFO, null));
+		assertEquals("Shorter prefix should match children", "A", table.route("com.acme.shipping.Box", INFO, null));
+		assertNull("Prefix should only match on a package boundary", table.route("com.acmexyz.Foo", INFO, null));
+		assertNull("Unrelated logger should use the default route", table.route("org.example.Foo", INFO, null));
+	}
+
+	@Test
+	public void testPrecedence()
+	{
+		RoutingTable table = RoutingTable.parse("logger:com.acme=A\nlevel:ERROR=E; mdc:tenant=big=M");
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("tenant", "big");
+
+		assertEquals("MDC rules should be checked first", "M", table.route("com.acme.Foo", ERROR, mdc));
+		assertEquals("Level rules should be checked before logger rules", "E", table.route("com.acme.Foo", ERROR, null));
+		assertEquals("Logger rule should apply below the level threshold", "A", table.route("com.acme.Foo", INFO, null));
+		assertTrue(table.usesMdc());
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		RoutingTable table = RoutingTable.parse(" ; ");
+		assertTrue(table.isEmpty());
+		assertFalse(table.usesMdc());
+		assertNull(table.route("com.acme.Foo", ERROR, null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownSelector()
+	{
+		RoutingTable.parse("thread:main=A");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingToken()
+	{
+		RoutingTable.parse("logger:com.acme=");
+	}
+}
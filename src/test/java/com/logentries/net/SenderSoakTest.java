@@ -0,0 +1,244 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.logentries.net.FakeLogentriesServer.Fault;
+
+/**
+ * Soak tests of the sender against the faults of {@link FakeLogentriesServer}.
+ *
+ * <p>Events are logged at a steady rate through a clean phase, then cycles of
+ * a fault and a recovery. Every event must end up delivered, counted as
+ * dropped, or lost with a connection the fault broke, and the sender must
+ * recover once the fault is cleared.</p>
+ *
+ * <p>The regular build only runs a single cycle of connection resets. The
+ * other faults run with a soak length, which repeats the cycle for the given
+ * number of seconds, and also check that the heap doesn't grow, that the
+ * sender doesn't spin while the server misbehaves, and that it is back
+ * within its longest reconnect delay. Faults last longer with a longer
+ * phase, for instance <code>mvn test -Dtest=SenderSoakTest
+ * -Dcom.logentries.soak.seconds=600 -Dcom.logentries.soak.phase=10000</code>.</p>
+ */
+public class SenderSoakTest {
+
+	private static final String TOKEN = "f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1";
+	/** Length of each phase, in milliseconds. */
+	private static final long PHASE = Long.getLong("com.logentries.soak.phase", 1000);
+	/** Length of the soak, 0 for a single cycle of the smoke test only. */
+	private static final long SOAK = TimeUnit.SECONDS.toMillis(Long.getLong("com.logentries.soak.seconds", 0));
+	/** Longest wait for the sender to deliver once a fault is cleared. */
+	private static final long DELIVERY_TIMEOUT = 120000;
+	/** Events logged per second. */
+	private static final int RATE = 5000;
+	/** Filler making events about 100 bytes long. */
+	private static final String PADDING = " 0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef0123456789";
+	/** Write timeout, long enough for a slow reader to drain a batch. */
+	private static final int WRITE_TIMEOUT = 5;
+	/** Longest reconnect delay of the sender plus the write timeout, with some slack. */
+	private static final long MAX_RECOVERY = 30000;
+	/** Largest heap growth over the soak, in bytes. */
+	private static final long MAX_HEAP_GROWTH = 16 << 20;
+	/** Largest share of the wall time the sender may spend on the CPU. */
+	private static final double MAX_SENDER_CPU = 0.5;
+
+	@Test
+	public void testSlowReader() throws Exception
+	{
+		assumeTrue(SOAK > 0);
+		// A short queue, so the backlog overflows rather than piles up
+		soak(Fault.SLOW_READER, 1000, true);
+	}
+
+	@Test
+	public void testHandshakeDelay() throws Exception
+	{
+		assumeTrue(SOAK > 0);
+		soak(Fault.HANDSHAKE_DELAY, 0, true);
+	}
+
+	/**
+	 * Smoke test of the regular build.
+	 */
+	@Test
+	public void testConnectionResets() throws Exception
+	{
+		soak(Fault.RESET, 0, false);
+	}
+
+	@Test
+	public void testRefusedConnects() throws Exception
+	{
+		assumeTrue(SOAK > 0);
+		soak(Fault.REFUSE, 0, false);
+	}
+
+	@Test
+	public void testHalfOpenConnections() throws Exception
+	{
+		assumeTrue(SOAK > 0);
+		soak(Fault.HALF_OPEN, 0, false);
+	}
+
+	/**
+	 * Runs the soak against the fault.
+	 *
+	 * @param fault fault to inject
+	 * @param queueSize queue size, 0 for the default
+	 * @param lossless whether the fault may not lose events
+	 */
+	private static void soak( Fault fault, int queueSize, boolean lossless) throws Exception
+	{
+		FakeLogentriesServer server = new FakeLogentriesServer(TOKEN);
+		AsyncLogger logger = new AsyncLogger();
+		Producer producer = new Producer(logger);
+		try {
+			logger.setToken(TOKEN);
+			logger.setEndpoints(server.getEndpoint());
+			logger.setWriteTimeout(WRITE_TIMEOUT);
+			if (queueSize > 0)
+				logger.setQueueSize(queueSize);
+
+			// Clean phase, warms up the pools
+			producer.start();
+			Thread.sleep(PHASE);
+			assertTrue("No events delivered", server.getDelivered() > 0);
+			long heapBefore = SOAK > 0 ? usedHeap() : 0;
+			Thread sender = logger.appender.getThread();
+			long cpuBefore = cpuTime(sender);
+			long start = System.nanoTime();
+
+			int cycles = 0;
+			long recovery = 0;
+			long end = System.currentTimeMillis() + SOAK;
+			do {
+				server.inject(fault);
+				if (fault == Fault.HANDSHAKE_DELAY)
+					logger.reconnect();
+				Thread.sleep(PHASE);
+
+				int cleared = producer.produced();
+				long clearedAt = System.nanoTime();
+				server.clear();
+				assertTrue("No recovery from " + fault, server.awaitSeq(cleared, DELIVERY_TIMEOUT));
+				recovery = Math.max(recovery, System.nanoTime() - clearedAt);
+				Thread.sleep(PHASE);
+				cycles++;
+			} while (System.currentTimeMillis() < end);
+
+			// Events are sent in order, once the last one is in all are accounted for
+			producer.finish();
+			int produced = producer.produced();
+			assertTrue("Last event not delivered", server.awaitSeq(produced - 1, DELIVERY_TIMEOUT));
+			long wall = System.nanoTime() - start;
+			long cpu = cpuTime(sender) - cpuBefore;
+
+			int delivered = server.getDelivered();
+			long dropped = logger.getDroppedEvents();
+			long lost = produced - delivered - dropped;
+
+			assertEquals("Lines without token or sequence number", 0, server.getGarbled());
+			if (lossless) {
+				assertEquals("Events neither delivered nor dropped", 0, lost);
+			} else {
+				assertEquals("Events dropped with the default queue", 0, dropped);
+				for (int seq = 0; seq < produced; seq++)
+					assertTrue("Event " + seq + " lost outside a broken connection",
+							server.isDelivered(seq) || server.inLossWindow(seq));
+			}
+
+			// Resources and timings only hold on a machine dedicated to the soak
+			if (SOAK > 0) {
+				assertTrue("Recovery from " + fault + " took " + TimeUnit.NANOSECONDS.toMillis(recovery) + " ms",
+						recovery < TimeUnit.MILLISECONDS.toNanos(MAX_RECOVERY));
+				long heapGrowth = usedHeap() - heapBefore;
+				assertTrue("Heap grew by " + (heapGrowth >> 10) + " KB", heapGrowth < MAX_HEAP_GROWTH);
+				// Not measurable on virtual threads
+				if (cpu >= 0)
+					assertTrue("Sender spent " + (100 * cpu / wall) + "% of the time on the CPU", cpu < wall * MAX_SENDER_CPU);
+			}
+		} finally {
+			producer.finish();
+			logger.close();
+			server.close();
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns the CPU time of the thread in nanoseconds, -1 if not available.
+	 */
+	private static long cpuTime( Thread thread)
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (thread == null || !threads.isThreadCpuTimeSupported())
+			return -1;
+		return threads.getThreadCpuTime(thread.getId());
+	}
+
+	/**
+	 * Logs numbered events at {@link #RATE} until finished.
+	 */
+	private static final class Producer extends Thread {
+
+		private final AsyncLogger logger;
+		private final AtomicInteger next = new AtomicInteger();
+		private volatile boolean running = true;
+
+		Producer( AsyncLogger logger)
+		{
+			super("Soak producer");
+			this.logger = logger;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			long start = System.nanoTime();
+			while (running) {
+				long due = (System.nanoTime() - start) * RATE / TimeUnit.SECONDS.toNanos(1);
+				while (next.get() < due) {
+					logger.addLineToQueue("event " + next.get() + PADDING);
+					next.incrementAndGet();
+				}
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of events logged so far.
+		 */
+		int produced()
+		{
+			return next.get();
+		}
+
+		void finish() throws InterruptedException
+		{
+			running = false;
+			join();
+		}
+	}
+}
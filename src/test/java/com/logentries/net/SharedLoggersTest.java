@@ -0,0 +1,102 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class SharedLoggersTest {
+
+	@Test
+	public void testReloadTakesOverLogger() throws Exception
+	{
+		AsyncLogger first = new AsyncLogger();
+		first.setToken("first");
+		assertSame(first, AsyncLogger.share("test/reload", first));
+
+		// Log4j 2 starts the new appender before stopping the old one
+		AsyncLogger second = new AsyncLogger();
+		second.setToken("second");
+		assertSame(first, AsyncLogger.share("test/reload", second));
+		assertEquals("second", first.getToken());
+		AsyncLogger.release(first);
+		assertSame(first, SharedLoggers.get(null, "test/reload"));
+
+		// Logback stops the old appender first
+		AsyncLogger.release(first);
+		assertSame("Released loggers should wait to be taken over", first, SharedLoggers.get(null, "test/reload"));
+		AsyncLogger third = new AsyncLogger();
+		third.setToken("third");
+		third.setQueueSize(100);
+		assertSame(first, AsyncLogger.share("test/reload", third));
+		assertEquals("third", first.getToken());
+		assertEquals(100, first.getQueueSize());
+
+		AsyncLogger.release(first);
+		assertNull("Private loggers are not shared", SharedLoggers.get(null, "test/other"));
+		assertSame(third, AsyncLogger.share(null, third));
+	}
+
+	@Test
+	public void testNamesAreScopedByContext() throws Exception
+	{
+		// Two webapps, each with an appender named le
+		Object contextA = new Object();
+		Object contextB = new Object();
+		AsyncLogger a = new AsyncLogger();
+		a.setToken("a");
+		AsyncLogger b = new AsyncLogger();
+		b.setToken("b");
+		assertSame(a, AsyncLogger.share(contextA, "test/le", a));
+		assertSame("Contexts should not share loggers", b, AsyncLogger.share(contextB, "test/le", b));
+		assertEquals("a", a.getToken());
+		assertSame(a, SharedLoggers.get(contextA, "test/le"));
+		assertSame(b, SharedLoggers.get(contextB, "test/le"));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(2, server.queryNames(new ObjectName("com.logentries:type=AsyncLogger,name="
+				+ ObjectName.quote("test/le") + ",*"), null).size());
+
+		// A reload within a context still takes over its logger
+		AsyncLogger reloaded = new AsyncLogger();
+		reloaded.setToken("a2");
+		assertSame(a, AsyncLogger.share(contextA, "test/le", reloaded));
+		assertEquals("a2", a.getToken());
+		assertEquals("b", b.getToken());
+
+		AsyncLogger.release(a);
+		AsyncLogger.release(a);
+		AsyncLogger.release(b);
+		SharedLoggers.closeUnused(SharedLoggers.entry(contextA, "test/le"));
+		SharedLoggers.closeUnused(SharedLoggers.entry(contextB, "test/le"));
+		assertNull(SharedLoggers.get(contextA, "test/le"));
+	}
+
+	@Test
+	public void testJmx() throws Exception
+	{
+		AsyncLogger logger = AsyncLogger.share("test/jmx", new AsyncLogger());
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.logentries:type=AsyncLogger,name=" + ObjectName.quote("test/jmx"));
+		assertTrue(server.isRegistered(name));
+
+		server.setAttribute(name, new Attribute("MaxEventSize", 4096));
+		server.setAttribute(name, new Attribute("SlowEventThreshold", 250));
+		assertEquals(4096, logger.getMaxEventSize());
+		assertEquals(250, logger.getSlowEventThreshold());
+		assertEquals(0, server.getAttribute(name, "QueueLength"));
+		int version = logger.transportVersion.get();
+		server.invoke(name, "reconnect", null, null);
+		assertEquals(version + 1, logger.transportVersion.get());
+
+		AsyncLogger.release(logger);
+		SharedLoggers.closeUnused(SharedLoggers.entry(null, "test/jmx"));
+		assertFalse(server.isRegistered(name));
+		assertNull(SharedLoggers.get(null, "test/jmx"));
+	}
+}
@@ -0,0 +1,143 @@
+package com.logentries.net;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class StagingBuffersTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testStagedUntilFullOrSwept() throws Exception
+	{
+		// No token, so nothing drains the queue
+		AsyncLogger logger = new AsyncLogger();
+		logger.setStagingDelay(50);
+		try {
+			for (int i = 0; i < 3; i++)
+				logger.addLineToQueue("a" + i);
+			assertEquals("Events should wait in the thread's stage", 0, logger.getQueueLength());
+
+			// The sweeper hands idle stages off
+			for (int i = 0; i < 100 && logger.getQueueLength() == 0; i++)
+				Thread.sleep(20);
+			assertEquals(3, logger.getQueueLength());
+			for (int i = 0; i < 3; i++)
+				assertEquals("a" + i, logger.queue.poll().line);
+
+			// A full stage is handed off at once
+			for (int i = 0; i < StagingBuffers.STAGE_SIZE; i++)
+				logger.addLineToQueue("b" + i);
+			assertEquals(StagingBuffers.STAGE_SIZE, logger.getQueueLength());
+		} finally {
+			logger.close();
+		}
+	}
+
+	@Test
+	public void testDisablingHandsOff()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setStagingDelay(60000);
+		logger.addLineToQueue("staged");
+		assertTrue("Offers should not be staged", logger.offer("offered", null));
+		assertEquals(1, logger.getQueueLength());
+
+		logger.setStagingDelay(0);
+		assertEquals(2, logger.getQueueLength());
+		assertEquals("offered", logger.queue.poll().line);
+		assertEquals("staged", logger.queue.poll().line);
+		logger.addLineToQueue("direct");
+		assertEquals(1, logger.getQueueLength());
+	}
+
+	@Test
+	public void testClosedStagesReleased() throws Exception
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setStagingDelay(60000);
+		logger.addLineToQueue("staged");
+		StagingBuffers staging = logger.staging;
+		WeakReference<?> stage = new WeakReference<Object>(staging.stages.get().get());
+		assertNotNull(stage.get());
+
+		// The thread lives on, its stage goes with the replaced instance
+		logger.setStagingDelay(100);
+		for (int i = 0; i < 100 && stage.get() != null; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertNull("Stage kept by the thread", stage.get());
+
+		// A late event clears the thread's entry
+		assertFalse(staging.stage(new QueuedEvent("late", null)));
+		assertNull(staging.stages.get());
+		logger.close();
+	}
+
+	@Test
+	public void testHandoffDropsOldest()
+	{
+		AsyncLogger logger = new AsyncLogger();
+		logger.setQueueSize(10);
+		logger.setStagingDelay(60000);
+		for (int i = 0; i < StagingBuffers.STAGE_SIZE; i++)
+			logger.addLineToQueue("e" + i);
+		assertEquals(10, logger.getQueueLength());
+		assertEquals(StagingBuffers.STAGE_SIZE - 10, logger.getDroppedEvents());
+		assertEquals("e" + (StagingBuffers.STAGE_SIZE - 10), logger.queue.peek().line);
+		logger.close();
+	}
+
+	@Test
+	public void testThreadOrderKept() throws Exception
+	{
+		final String token = "f2e0b8a6-4bd2-4f5c-9e05-2f37a8b2c3d1";
+		final int threads = 4;
+		final int events = 2000;
+		ServerSocket server = new ServerSocket(0);
+		final AsyncLogger logger = new AsyncLogger();
+		try {
+			logger.setToken(token);
+			logger.setEndpoints("127.0.0.1:" + server.getLocalPort());
+			logger.setStagingDelay(5);
+
+			Thread[] producers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				producers[t] = new Thread() {
+					@Override
+					public void run()
+					{
+						for (int i = 0; i < events; i++)
+							logger.addLineToQueue(thread + " " + i);
+					}
+				};
+				producers[t].start();
+			}
+
+			Socket peer = server.accept();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(peer.getInputStream(), UTF8));
+			int[] next = new int[threads];
+			for (int n = 0; n < threads * events; n++) {
+				String[] parts = reader.readLine().substring(token.length()).split(" ");
+				int thread = Integer.parseInt(parts[0]);
+				assertEquals("Events of thread " + thread + " out of order", next[thread]++, Integer.parseInt(parts[1]));
+			}
+			for (Thread producer : producers)
+				producer.join();
+			peer.close();
+		} finally {
+			logger.close();
+			server.close();
+		}
+	}
+}